@@ -0,0 +1,467 @@
+import java.util.LinkedList;
+import java.util.List;
+import java.util.function.Function;
+
+import typed_tree.*;
+
+// rewrites arithmetic and comparisons by algebraic identities, using a table
+// of rules that are tried on every expression after its operands. the rules
+// hold exactly for java ints, which wrap around, and for ieee doubles with
+// their signed zeros, infinities and nans. rules that only hold for doubles
+// when those special values are ignored are marked as fast math and only
+// used when asked for. literals are moved to the right of commutative
+// operators, where the compiler can turn a multiplication by a power of two
+// into a shift
+public class AlgebraicSimplifier {
+
+    // a rule gives the rewritten expression, or null when it does not apply.
+    // it is only tried on operands of the given type, or on any when the
+    // type is null
+    private record Rule(String name, CType type, boolean fastMath,
+            Function<TypedExp, TypedExp> rewrite) {
+    }
+
+    // how often the rules may rewrite one expression, each rewrite either
+    // makes it smaller or puts it in a form no rule undoes
+    private static final int MAX_REWRITES = 16;
+
+    private final boolean fastMath;
+
+    private final List<Rule> rules = List.of(
+            new Rule("c * x = x * c", null, false, this::literalToTheRight),
+            new Rule("x * 1 = x", null, false, this::multiplyByOne),
+            new Rule("x / 1 = x", null, false, this::divideByOne),
+            new Rule("x * 0 = 0", CType.INT, false, this::multiplyByZero),
+            new Rule("x * 0.0 = 0.0", CType.DOUBLE, true,
+                    this::multiplyByZero),
+            new Rule("x / 2^k = x * 2^-k", CType.DOUBLE, false,
+                    this::divideByPowerOfTwo),
+            new Rule("x / c = x * (1 / c)", CType.DOUBLE, true,
+                    this::divideByConstant),
+            new Rule("(x * c1) * c2 = x * (c1 * c2)", CType.INT, false,
+                    this::reassociateProduct),
+            new Rule("(x * c1) * c2 = x * (c1 * c2)", CType.DOUBLE, true,
+                    this::reassociateProduct),
+            new Rule("x + 0 = x", CType.INT, false, this::addZero),
+            new Rule("x - 0.0 = x", CType.DOUBLE, false,
+                    this::addExactZero),
+            new Rule("x + 0.0 = x", CType.DOUBLE, true, this::addZero),
+            new Rule("(x + c1) + c2 = x + (c1 + c2)", CType.INT, false,
+                    this::reassociateSum),
+            new Rule("(x + c1) + c2 = x + (c1 + c2)", CType.DOUBLE, true,
+                    this::reassociateSum),
+            new Rule("x - x = 0", CType.INT, false, this::subtractSelf),
+            new Rule("x - x = 0.0", CType.DOUBLE, true, this::subtractSelf),
+            new Rule("x < x = false", CType.INT, false, this::compareSelf),
+            new Rule("x < x = false", CType.BOOL, false, this::compareSelf),
+            new Rule("x < x = false", CType.DOUBLE, true, this::compareSelf),
+            new Rule("b == true = b", CType.BOOL, false,
+                    this::compareWithTrue),
+            new Rule("(a < b) == false = a >= b", CType.BOOL, false,
+                    e -> compareWithFalse(e, false)),
+            new Rule("(a < b) == false = a >= b", CType.BOOL, true,
+                    e -> compareWithFalse(e, true)));
+
+    public AlgebraicSimplifier() {
+        this(false);
+    }
+
+    public AlgebraicSimplifier(boolean fastMath) {
+        this.fastMath = fastMath;
+    }
+
+    public TypedStm simplifyStm(TypedStm stm) {
+        return switch (stm) {
+            case TypedStm.Exp s -> new TypedStm.Exp(s.type(),
+                    simplifyExp(s.exp()), s.line());
+
+            case TypedStm.Decls s -> s;
+
+            case TypedStm.Init s -> new TypedStm.Init(s.type(), s.name(),
+                    simplifyExp(s.exp()), s.line());
+
+            case TypedStm.Return s -> new TypedStm.Return(
+                    simplifyExp(s.exp()), s.line());
+
+            case TypedStm.While s -> new TypedStm.While(
+                    simplifyExp(s.exp()),
+                    simplifyStm(s.stm()), s.line());
+
+            case TypedStm.IfElse s -> new TypedStm.IfElse(
+                    simplifyExp(s.exp()),
+                    simplifyStm(s.stm1()),
+                    simplifyStm(s.stm2()), s.line());
+
+            case TypedStm.Block s -> {
+                LinkedList<TypedStm> stms = new LinkedList<>();
+                for (var statement : s.stms()) {
+                    stms.add(simplifyStm(statement));
+                }
+                yield new TypedStm.Block(stms);
+            }
+
+            default -> throw new RuntimeException(
+                    "Statement " + stm.getClass() + " not yet implemented.");
+        };
+    }
+
+    public TypedExp simplifyExp(TypedExp exp) {
+        return switch (exp) {
+            case TypedExp.Paren e -> new TypedExp.Paren(
+                    simplifyExp(e.exp()), e.type());
+
+            case TypedExp.Func e -> {
+                LinkedList<TypedExp> args = new LinkedList<>();
+                for (var argument : e.exps()) {
+                    args.add(simplifyExp(argument));
+                }
+                yield new TypedExp.Func(e.id(), args, e.type());
+            }
+
+            case TypedExp.Mul _ -> TreeAnalysis.foldSpine(
+                    exp, this::simplifyExp,
+                    (node, exp1, exp2) -> applyRules(
+                            TreeAnalysis.withOperands(node, exp1, exp2)));
+
+            case TypedExp.Add _ -> TreeAnalysis.foldSpine(
+                    exp, this::simplifyExp,
+                    (node, exp1, exp2) -> applyRules(
+                            TreeAnalysis.withOperands(node, exp1, exp2)));
+
+            case TypedExp.Cmp e -> applyRules(new TypedExp.Cmp(
+                    simplifyExp(e.exp1()),
+                    simplifyExp(e.exp2()),
+                    e.operator()));
+
+            case TypedExp.And e -> new TypedExp.And(
+                    simplifyExp(e.exp1()),
+                    simplifyExp(e.exp2()));
+
+            case TypedExp.Or e -> new TypedExp.Or(
+                    simplifyExp(e.exp1()),
+                    simplifyExp(e.exp2()));
+
+            case TypedExp.Assign e -> new TypedExp.Assign(e.id(),
+                    simplifyExp(e.exp()), e.type());
+
+            case TypedExp.Int2Double e -> new TypedExp.Int2Double(
+                    simplifyExp(e.exp()));
+
+            // literals, identifiers and increments
+            default -> exp;
+        };
+    }
+
+    // tries the rules in order and starts over after every rewrite, since
+    // the result may match an earlier rule
+    private TypedExp applyRules(TypedExp exp) {
+        int rewrites = 0;
+        boolean changed = true;
+        while (changed && rewrites < MAX_REWRITES) {
+            changed = false;
+            for (Rule rule : rules) {
+                if (rule.fastMath() && !fastMath
+                        || rule.type() != null
+                                && rule.type() != operandType(exp)) {
+                    continue;
+                }
+                TypedExp rewritten = rule.rewrite().apply(exp);
+                if (rewritten != null) {
+                    exp = rewritten;
+                    ++rewrites;
+                    changed = true;
+                    break;
+                }
+            }
+        }
+        return exp;
+    }
+
+    // the type the operator works on, which for a comparison is not the
+    // type of its result
+    private CType operandType(TypedExp exp) {
+        if (exp instanceof TypedExp.Cmp e) {
+            return e.exp1().type();
+        }
+        return exp.type();
+    }
+
+    //// the rules
+
+    // a literal operand is never evaluated, so swapping it with the other
+    // operand keeps the order of everything that has an effect. ieee
+    // addition and multiplication are commutative as well, and so is
+    // equality
+    private TypedExp literalToTheRight(TypedExp exp) {
+        if (exp instanceof TypedExp.Mul e && e.operator() == Operator.MUL
+                && TreeAnalysis.isLiteral(strip(e.exp1()))
+                && !TreeAnalysis.isLiteral(strip(e.exp2()))) {
+            return new TypedExp.Mul(e.exp2(), e.exp1(), e.type(),
+                    e.operator());
+        }
+        if (exp instanceof TypedExp.Add e && e.operator() == Operator.ADD
+                && TreeAnalysis.isLiteral(strip(e.exp1()))
+                && !TreeAnalysis.isLiteral(strip(e.exp2()))) {
+            return new TypedExp.Add(e.exp2(), e.exp1(), e.type(),
+                    e.operator());
+        }
+        if (exp instanceof TypedExp.Cmp e
+                && (e.operator() == Operator.EQU
+                        || e.operator() == Operator.NEQ)
+                && TreeAnalysis.isLiteral(strip(e.exp1()))
+                && !TreeAnalysis.isLiteral(strip(e.exp2()))) {
+            return new TypedExp.Cmp(e.exp2(), e.exp1(), e.operator());
+        }
+        return null;
+    }
+
+    // exact for doubles too, a nan stays a nan and a zero keeps its sign
+    private TypedExp multiplyByOne(TypedExp exp) {
+        if (exp instanceof TypedExp.Mul e && e.operator() == Operator.MUL
+                && isValue(e.exp2(), 1)) {
+            return e.exp1();
+        }
+        return null;
+    }
+
+    private TypedExp divideByOne(TypedExp exp) {
+        if (exp instanceof TypedExp.Mul e && e.operator() == Operator.DIV
+                && isValue(e.exp2(), 1)) {
+            return e.exp1();
+        }
+        return null;
+    }
+
+    // the other operand is dropped, so it may not do anything. for doubles
+    // the result could have been nan or a negative zero instead
+    private TypedExp multiplyByZero(TypedExp exp) {
+        if (exp instanceof TypedExp.Mul e && e.operator() == Operator.MUL
+                && isValue(e.exp2(), 0) && TreeAnalysis.isPure(e.exp1())) {
+            return zero(e.type());
+        }
+        return null;
+    }
+
+    // both sides are the exact value rounded once, as long as the inverse
+    // is a normal double
+    private TypedExp divideByPowerOfTwo(TypedExp exp) {
+        if (exp instanceof TypedExp.Mul e && e.operator() == Operator.DIV
+                && strip(e.exp2()) instanceof TypedExp.DoubleLit divisor) {
+            double value = divisor.value();
+            int exponent = Math.getExponent(value);
+            double inverse = 1 / value;
+            if (Math.abs(value) == Math.scalb(1.0, exponent)
+                    && Math.getExponent(inverse) >= Double.MIN_EXPONENT
+                    && Double.isFinite(inverse)) {
+                return multiplyBy(e, inverse);
+            }
+        }
+        return null;
+    }
+
+    // the inverse is rounded, so the product may differ in the last bit
+    private TypedExp divideByConstant(TypedExp exp) {
+        if (exp instanceof TypedExp.Mul e && e.operator() == Operator.DIV
+                && strip(e.exp2()) instanceof TypedExp.DoubleLit divisor) {
+            double inverse = 1 / divisor.value();
+            if (Double.isFinite(inverse) && inverse != 0) {
+                return multiplyBy(e, inverse);
+            }
+        }
+        return null;
+    }
+
+    // int multiplication wraps around, so it stays associative. rounding
+    // makes double multiplication depend on the grouping
+    private TypedExp reassociateProduct(TypedExp exp) {
+        if (exp instanceof TypedExp.Mul e && e.operator() == Operator.MUL
+                && strip(e.exp1()) instanceof TypedExp.Mul inner
+                && inner.operator() == Operator.MUL) {
+            TypedExp constant = combine(strip(inner.exp2()), strip(e.exp2()),
+                    Operator.MUL);
+            if (constant != null) {
+                return new TypedExp.Mul(inner.exp1(), constant, e.type(),
+                        Operator.MUL);
+            }
+        }
+        return null;
+    }
+
+    private TypedExp addZero(TypedExp exp) {
+        if (exp instanceof TypedExp.Add e && isValue(e.exp2(), 0)) {
+            return e.exp1();
+        }
+        return null;
+    }
+
+    // -0.0 + 0.0 is 0.0, so only subtracting a zero or adding a negative
+    // zero leaves every double as it is
+    private TypedExp addExactZero(TypedExp exp) {
+        if (exp instanceof TypedExp.Add e
+                && strip(e.exp2()) instanceof TypedExp.DoubleLit zero
+                && zero.value() == 0) {
+            boolean subtraction = e.operator() != Operator.ADD;
+            boolean negative = Double.doubleToRawLongBits(zero.value()) != 0;
+            if (subtraction != negative) {
+                return e.exp1();
+            }
+        }
+        return null;
+    }
+
+    // int addition and subtraction wrap around, so the constants of a chain
+    // can be summed up first in any order
+    private TypedExp reassociateSum(TypedExp exp) {
+        if (exp instanceof TypedExp.Add e
+                && strip(e.exp1()) instanceof TypedExp.Add inner) {
+            TypedExp outerConstant = signed(strip(e.exp2()), e.operator());
+            TypedExp innerConstant = signed(strip(inner.exp2()),
+                    inner.operator());
+            if (outerConstant != null && innerConstant != null) {
+                return new TypedExp.Add(inner.exp1(),
+                        combine(innerConstant, outerConstant, Operator.ADD),
+                        e.type(), Operator.ADD);
+            }
+        }
+        return null;
+    }
+
+    // inf - inf and nan - nan are nan for doubles
+    private TypedExp subtractSelf(TypedExp exp) {
+        if (exp instanceof TypedExp.Add e && e.operator() != Operator.ADD
+                && strip(e.exp1()).equals(strip(e.exp2()))
+                && TreeAnalysis.isPure(e.exp1())) {
+            return zero(e.type());
+        }
+        return null;
+    }
+
+    // nan is not equal to itself
+    private TypedExp compareSelf(TypedExp exp) {
+        if (exp instanceof TypedExp.Cmp e
+                && strip(e.exp1()).equals(strip(e.exp2()))
+                && TreeAnalysis.isPure(e.exp1())) {
+            Operator operator = e.operator();
+            return new TypedExp.BoolLit(operator == Operator.EQU
+                    || operator == Operator.LTE
+                    || operator == Operator.GTE);
+        }
+        return null;
+    }
+
+    // b == true and b != false are b itself
+    private TypedExp compareWithTrue(TypedExp exp) {
+        if (exp instanceof TypedExp.Cmp e
+                && strip(e.exp2()) instanceof TypedExp.BoolLit bool
+                && bool.value() == (e.operator() == Operator.EQU)) {
+            return e.exp1();
+        }
+        return null;
+    }
+
+    // b == false and b != true negate a comparison b. a comparison of
+    // doubles is only negated with fast math, since both a < b and a >= b
+    // are false when one of them is nan
+    private TypedExp compareWithFalse(TypedExp exp, boolean doubles) {
+        if (exp instanceof TypedExp.Cmp e
+                && strip(e.exp2()) instanceof TypedExp.BoolLit bool
+                && bool.value() != (e.operator() == Operator.EQU)
+                && strip(e.exp1()) instanceof TypedExp.Cmp cmp
+                && (cmp.exp1().type() == CType.DOUBLE) == doubles) {
+            return new TypedExp.Cmp(cmp.exp1(), cmp.exp2(),
+                    negate(cmp.operator()));
+        }
+        return null;
+    }
+
+    //// helpers
+
+    private TypedExp strip(TypedExp exp) {
+        while (exp instanceof TypedExp.Paren paren) {
+            exp = paren.exp();
+        }
+        return exp;
+    }
+
+    private boolean isValue(TypedExp exp, int value) {
+        return switch (strip(exp)) {
+            case TypedExp.IntLit e -> e.value() == value;
+            case TypedExp.DoubleLit e -> e.value() == value;
+            default -> false;
+        };
+    }
+
+    private TypedExp multiplyBy(TypedExp.Mul division, double factor) {
+        return new TypedExp.Mul(division.exp1(), new TypedExp.DoubleLit(factor),
+                division.type(), Operator.MUL);
+    }
+
+    private TypedExp zero(CType type) {
+        return type == CType.DOUBLE
+                ? new TypedExp.DoubleLit(0.0)
+                : new TypedExp.IntLit(0);
+    }
+
+    // the constant added by the operator, so a subtraction of c becomes an
+    // addition of -c. null if it is not a constant or can not be negated
+    // exactly
+    private TypedExp signed(TypedExp constant, Operator operator) {
+        boolean subtraction = operator != Operator.ADD;
+        return switch (constant) {
+            case TypedExp.IntLit c -> new TypedExp.IntLit(
+                    subtraction ? -c.value() : c.value());
+            case TypedExp.DoubleLit c -> new TypedExp.DoubleLit(
+                    subtraction ? -c.value() : c.value());
+            default -> null;
+        };
+    }
+
+    private TypedExp combine(TypedExp lhs, TypedExp rhs, Operator operator) {
+        if (lhs instanceof TypedExp.IntLit a
+                && rhs instanceof TypedExp.IntLit b) {
+            return new TypedExp.IntLit(operator == Operator.MUL
+                    ? a.value() * b.value()
+                    : a.value() + b.value());
+        }
+        if (lhs instanceof TypedExp.DoubleLit a
+                && rhs instanceof TypedExp.DoubleLit b) {
+            return new TypedExp.DoubleLit(operator == Operator.MUL
+                    ? a.value() * b.value()
+                    : a.value() + b.value());
+        }
+        return null;
+    }
+
+    private Operator negate(Operator operator) {
+        return switch (operator) {
+            case Operator.LTH -> Operator.GTE;
+            case Operator.GTE -> Operator.LTH;
+            case Operator.GTH -> Operator.LTE;
+            case Operator.LTE -> Operator.GTH;
+            case Operator.EQU -> Operator.NEQ;
+            case Operator.NEQ -> Operator.EQU;
+            default -> throw new IllegalArgumentException(
+                    "Unsupported comparison " + operator);
+        };
+    }
+
+    public TypedDef.Func simplifyFunc(TypedDef.Func function) {
+        LinkedList<TypedStm> stms = new LinkedList<>();
+        for (var stm : function.stms()) {
+            stms.add(simplifyStm(stm));
+        }
+        return new TypedDef.Func(
+                function.returns(),
+                function.args(),
+                stms,
+                function.funcName());
+    }
+
+    public TypedProgram simplify(TypedProgram program) {
+        LinkedList<TypedDef> definitions = new LinkedList<>();
+        for (TypedDef def : program.defintions()) {
+            definitions.add(simplifyFunc((TypedDef.Func) def));
+        }
+        return new TypedProgram(definitions);
+    }
+}
@@ -0,0 +1,276 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+import typed_tree.*;
+
+// splits a method body into basic blocks and lays them out again so that as
+// many jumps as possible become fall-throughs. jumps to blocks that only jump
+// on are sent straight to where they end up, and a goto back to a short loop
+// test is replaced by a copy of the test with the condition flipped, so a
+// while loop takes one conditional branch per iteration instead of a goto and
+// a branch. labels nothing jumps to are left out
+public class BlockLayout {
+
+    // the longest loop test, in instructions, that is copied to the bottom of
+    // the loop
+    private static final int MAX_COPIED_TEST = 16;
+
+    private static class Block {
+        LinkedList<Integer> labels = new LinkedList<>();
+        LinkedList<JVMInstr> instrs = new LinkedList<>();
+
+        // a conditional jump ending the block and the block it jumps to
+        JVMInstr condition = null;
+        Block taken = null;
+
+        // where execution goes otherwise, null if the block ends in a return
+        Block next = null;
+    }
+
+    private ArrayList<Block> blocks = new ArrayList<>();
+    private int nextLabel = 0;
+
+    public BlockLayout(List<JVMInstr> body) {
+        HashMap<Integer, Block> labelBlocks = new HashMap<>();
+        ArrayList<Integer> jumps = new ArrayList<>();
+        ArrayList<JVMInstr> instrs = new ArrayList<>(body);
+
+        // a block starts at the first instruction, at a label and after any
+        // jump or return
+        Block block = null;
+        for (int i = 0; i < instrs.size(); i++) {
+            JVMInstr instr = instrs.get(i);
+            if (block == null || instr instanceof JVMInstr.Label
+                    && !block.instrs.isEmpty()) {
+                Block following = new Block();
+                if (block != null) {
+                    block.next = following;
+                }
+                block = following;
+                blocks.add(block);
+            }
+
+            if (instr instanceof JVMInstr.Label label) {
+                block.labels.add(label.label());
+                labelBlocks.put(label.label(), block);
+                nextLabel = Math.max(nextLabel, label.label() + 1);
+                continue;
+            }
+
+            if (instr.jumpTarget() != null) {
+                jumps.add(blocks.size() - 1);
+                jumps.add(instr.jumpTarget());
+                if (instr.fallsThrough()) {
+                    block.condition = instr;
+                } else {
+                    // the goto is made again when the layout needs it
+                    block.next = null;
+                }
+            } else {
+                block.instrs.add(instr);
+            }
+
+            if (instr.jumpTarget() != null || !instr.fallsThrough()) {
+                Block following = instr.fallsThrough() ? new Block() : null;
+                if (following != null) {
+                    block.next = following;
+                }
+                block = following;
+                if (following != null) {
+                    blocks.add(following);
+                }
+            }
+        }
+
+        // the targets of the jumps are only known once every label is seen
+        for (int i = 0; i < jumps.size(); i += 2) {
+            Block source = blocks.get(jumps.get(i));
+            Block target = labelBlocks.get(jumps.get(i + 1));
+            if (source.condition != null) {
+                source.taken = target;
+            } else {
+                source.next = target;
+            }
+        }
+
+        // a block that falls off the end of the method would have nowhere to
+        // go in a new order
+        for (Block b : blocks) {
+            if (b.next == null && b.condition == null
+                    && (b.instrs.isEmpty() || b.instrs.getLast().fallsThrough())) {
+                throw new IllegalArgumentException(
+                        "Method body can fall through its end.");
+            }
+        }
+    }
+
+    public LinkedList<JVMInstr> layout() {
+        threadJumps();
+        return emit(order());
+    }
+
+    // a block without instructions that only passes control on is skipped
+    // by everything jumping to it
+    private void threadJumps() {
+        for (Block block : blocks) {
+            block.next = destination(block.next);
+            if (block.condition != null) {
+                block.taken = destination(block.taken);
+            }
+        }
+    }
+
+    private Block destination(Block block) {
+        HashSet<Block> seen = new HashSet<>();
+        while (block != null && block.instrs.isEmpty()
+                && block.condition == null && block.next != null
+                && seen.add(block)) {
+            block = block.next;
+        }
+        return block;
+    }
+
+    // chains of blocks that fall into each other, starting with the entry.
+    // each block is followed by its successor when that is still free, a
+    // conditional jump is flipped when only the jumped to block is free, and
+    // a goto back to a loop test is replaced by a copy of the test
+    private List<Block> order() {
+        LinkedList<Block> order = new LinkedList<>();
+        HashSet<Block> placed = new HashSet<>();
+        HashSet<Block> reachable = reachableFrom(blocks.get(0));
+        for (Block start : blocks) {
+            if (!reachable.contains(start)) {
+                // everything jumping here was threaded past it
+                continue;
+            }
+            Block block = start;
+            while (block != null && !placed.contains(block)) {
+                placed.add(block);
+                order.add(block);
+
+                if (block.condition == null && block.next != null
+                        && placed.contains(block.next)
+                        && isLoopTest(block.next, block)) {
+                    Block test = block.next;
+                    block.instrs.addAll(test.instrs);
+                    block.condition = test.condition;
+                    block.taken = test.taken;
+                    block.next = test.next;
+                }
+
+                if (block.next != null && !placed.contains(block.next)) {
+                    block = block.next;
+                } else if (block.condition != null
+                        && !placed.contains(block.taken)) {
+                    block.condition = negate(block.condition);
+                    Block taken = block.taken;
+                    block.taken = block.next;
+                    block.next = taken;
+                    block = taken;
+                } else {
+                    block = null;
+                }
+            }
+        }
+        return order;
+    }
+
+    // a short block deciding whether to run the loop again, which the block
+    // at the bottom of the loop jumps back to
+    private boolean isLoopTest(Block test, Block bottom) {
+        return test != bottom
+                && test.condition != null
+                && test.instrs.size() <= MAX_COPIED_TEST
+                && (test.next == bottom || test.taken == bottom
+                        || reaches(test, bottom));
+    }
+
+    // whether the block can be reached from the test, so the test really is
+    // at the top of a loop around it
+    private boolean reaches(Block test, Block block) {
+        HashSet<Block> reachable = new HashSet<>();
+        reachable.addAll(reachableFrom(test.next));
+        reachable.addAll(reachableFrom(test.taken));
+        return reachable.contains(block);
+    }
+
+    private HashSet<Block> reachableFrom(Block start) {
+        HashSet<Block> seen = new HashSet<>();
+        LinkedList<Block> worklist = new LinkedList<>();
+        worklist.add(start);
+        while (!worklist.isEmpty()) {
+            Block current = worklist.poll();
+            if (current == null || !seen.add(current)) {
+                continue;
+            }
+            worklist.add(current.next);
+            worklist.add(current.taken);
+        }
+        return seen;
+    }
+
+    private LinkedList<JVMInstr> emit(List<Block> order) {
+        // only the labels that are jumped to are kept, a block that needs
+        // one but has none gets a new one
+        HashSet<Block> targets = new HashSet<>();
+        for (int i = 0; i < order.size(); i++) {
+            Block block = order.get(i);
+            Block following = i + 1 < order.size() ? order.get(i + 1) : null;
+            if (block.condition != null) {
+                targets.add(block.taken);
+            }
+            if (block.next != null && block.next != following) {
+                targets.add(block.next);
+            }
+        }
+
+        LinkedList<JVMInstr> instrs = new LinkedList<>();
+        for (int i = 0; i < order.size(); i++) {
+            Block block = order.get(i);
+            Block following = i + 1 < order.size() ? order.get(i + 1) : null;
+            if (targets.contains(block)) {
+                instrs.add(new JVMInstr.Label(label(block)));
+            }
+            instrs.addAll(block.instrs);
+            if (block.condition != null) {
+                instrs.add(retarget(block.condition, label(block.taken)));
+            }
+            if (block.next != null && block.next != following) {
+                instrs.add(new JVMInstr.Goto(label(block.next)));
+            }
+        }
+        return instrs;
+    }
+
+    private Integer label(Block block) {
+        if (block.labels.isEmpty()) {
+            block.labels.add(nextLabel++);
+        }
+        return block.labels.getFirst();
+    }
+
+    private JVMInstr retarget(JVMInstr jump, Integer label) {
+        return switch (jump) {
+            case JVMInstr.Ifeq _ -> new JVMInstr.Ifeq(label);
+            case JVMInstr.Ifne _ -> new JVMInstr.Ifne(label);
+            case JVMInstr.Cmp i -> new JVMInstr.Cmp(i.cmpType(), i.operator(),
+                    label);
+            default -> throw new IllegalArgumentException(
+                    "Instruction " + jump + " is not a conditional jump.");
+        };
+    }
+
+    // the jump taken exactly when the given one is not
+    private JVMInstr negate(JVMInstr jump) {
+        return switch (jump) {
+            case JVMInstr.Ifeq i -> new JVMInstr.Ifne(i.label());
+            case JVMInstr.Ifne i -> new JVMInstr.Ifeq(i.label());
+            case JVMInstr.Cmp i -> i.negate();
+            default -> throw new IllegalArgumentException(
+                    "Instruction " + jump + " is not a conditional jump.");
+        };
+    }
+}
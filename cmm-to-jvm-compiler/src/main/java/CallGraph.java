@@ -0,0 +1,249 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import typed_tree.*;
+
+// which functions of the program call which. calls to the built in io
+// functions are not part of the graph since they have no definition
+public class CallGraph {
+
+    private LinkedHashMap<String, LinkedHashSet<String>> callees =
+            new LinkedHashMap<>();
+
+    // functions that are part of a cycle, including calling themselves
+    private HashSet<String> recursive = new HashSet<>();
+
+    // functions that call one of the built in io functions themselves
+    private HashSet<String> io = new HashSet<>();
+
+    private static final Set<String> BUILTINS =
+            Set.of("readInt", "readDouble", "printInt", "printDouble");
+
+    // strongly connected components with callees before their callers
+    private LinkedList<List<String>> components = new LinkedList<>();
+
+    public CallGraph(TypedProgram program) {
+        for (TypedDef def : program.defintions()) {
+            callees.put(def.funcName(), new LinkedHashSet<>());
+        }
+        for (TypedDef def : program.defintions()) {
+            LinkedHashSet<String> called = callees.get(def.funcName());
+            for (TypedStm stm : def.stms()) {
+                collectCalls(stm, called);
+            }
+            for (String funcName : called) {
+                if (BUILTINS.contains(funcName)) {
+                    io.add(def.funcName());
+                }
+            }
+            called.retainAll(callees.keySet());
+        }
+        findComponents();
+    }
+
+    public Set<String> functions() {
+        return callees.keySet();
+    }
+
+    public Set<String> callees(String funcName) {
+        return callees.get(funcName);
+    }
+
+    public boolean isRecursive(String funcName) {
+        return recursive.contains(funcName);
+    }
+
+    // every function ordered so that, apart from recursion, a function comes
+    // after all the functions it calls
+    public List<String> bottomUpOrder() {
+        LinkedList<String> order = new LinkedList<>();
+        for (List<String> component : components) {
+            order.addAll(component);
+        }
+        return order;
+    }
+
+    // whether calling the function may read input or print output, directly
+    // or through the functions it calls
+    public boolean performsIo(String funcName) {
+        for (String reached : reachableFrom(funcName)) {
+            if (io.contains(reached)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Set<String> reachableFrom(String root) {
+        LinkedHashSet<String> reached = new LinkedHashSet<>();
+        ArrayDeque<String> worklist = new ArrayDeque<>();
+        worklist.push(root);
+        while (!worklist.isEmpty()) {
+            String funcName = worklist.pop();
+            if (reached.add(funcName)) {
+                worklist.addAll(callees.get(funcName));
+            }
+        }
+        return reached;
+    }
+
+    // tarjan's algorithm with an explicit stack so that long call chains can
+    // not overflow the java stack. components are found in reverse
+    // topological order, which is exactly callees first
+    private void findComponents() {
+        HashMap<String, Integer> index = new HashMap<>();
+        HashMap<String, Integer> lowLink = new HashMap<>();
+        ArrayDeque<String> componentStack = new ArrayDeque<>();
+        HashSet<String> onStack = new HashSet<>();
+
+        for (String start : callees.keySet()) {
+            if (index.containsKey(start)) {
+                continue;
+            }
+
+            ArrayDeque<String> callStack = new ArrayDeque<>();
+            ArrayDeque<Iterator<String>> iterators = new ArrayDeque<>();
+            index.put(start, index.size());
+            lowLink.put(start, index.get(start));
+            componentStack.push(start);
+            onStack.add(start);
+            callStack.push(start);
+            iterators.push(callees.get(start).iterator());
+
+            while (!callStack.isEmpty()) {
+                String node = callStack.peek();
+                Iterator<String> edges = iterators.peek();
+
+                if (edges.hasNext()) {
+                    String next = edges.next();
+                    if (!index.containsKey(next)) {
+                        index.put(next, index.size());
+                        lowLink.put(next, index.get(next));
+                        componentStack.push(next);
+                        onStack.add(next);
+                        callStack.push(next);
+                        iterators.push(callees.get(next).iterator());
+                    } else if (onStack.contains(next)) {
+                        lowLink.put(node, Math.min(lowLink.get(node),
+                                index.get(next)));
+                    }
+                    continue;
+                }
+
+                // all edges of the node are done
+                callStack.pop();
+                iterators.pop();
+                if (!callStack.isEmpty()) {
+                    String parent = callStack.peek();
+                    lowLink.put(parent, Math.min(lowLink.get(parent),
+                            lowLink.get(node)));
+                }
+
+                if (lowLink.get(node).equals(index.get(node))) {
+                    LinkedList<String> component = new LinkedList<>();
+                    String member;
+                    do {
+                        member = componentStack.pop();
+                        onStack.remove(member);
+                        component.addFirst(member);
+                    } while (!member.equals(node));
+
+                    if (component.size() > 1
+                            || callees.get(node).contains(node)) {
+                        recursive.addAll(component);
+                    }
+                    components.add(component);
+                }
+            }
+        }
+    }
+
+    private void collectCalls(TypedStm stm, Set<String> called) {
+        switch (stm) {
+            case TypedStm.Exp s -> collectCalls(s.exp(), called);
+
+            case TypedStm.Decls _ -> {
+                // declarations contain no calls
+            }
+
+            case TypedStm.Init s -> collectCalls(s.exp(), called);
+
+            case TypedStm.Return s -> collectCalls(s.exp(), called);
+
+            case TypedStm.While s -> {
+                collectCalls(s.exp(), called);
+                collectCalls(s.stm(), called);
+            }
+
+            case TypedStm.Block s -> {
+                for (var statement : s.stms()) {
+                    collectCalls(statement, called);
+                }
+            }
+
+            case TypedStm.IfElse s -> {
+                collectCalls(s.exp(), called);
+                collectCalls(s.stm1(), called);
+                collectCalls(s.stm2(), called);
+            }
+
+            default -> throw new RuntimeException(
+                    "Statement " + stm.getClass() + " not yet implemented.");
+        }
+    }
+
+    private void collectCalls(TypedExp exp, Set<String> called) {
+        switch (exp) {
+            case TypedExp.Paren e -> collectCalls(e.exp(), called);
+
+            case TypedExp.Func e -> {
+                called.add(e.id());
+                for (var argument : e.exps()) {
+                    collectCalls(argument, called);
+                }
+            }
+
+            case TypedExp.Mul _ -> {
+                for (TypedExp operand : TreeAnalysis.spineOperands(exp)) {
+                    collectCalls(operand, called);
+                }
+            }
+
+            case TypedExp.Add _ -> {
+                for (TypedExp operand : TreeAnalysis.spineOperands(exp)) {
+                    collectCalls(operand, called);
+                }
+            }
+
+            case TypedExp.Cmp e -> {
+                collectCalls(e.exp1(), called);
+                collectCalls(e.exp2(), called);
+            }
+
+            case TypedExp.And e -> {
+                collectCalls(e.exp1(), called);
+                collectCalls(e.exp2(), called);
+            }
+
+            case TypedExp.Or e -> {
+                collectCalls(e.exp1(), called);
+                collectCalls(e.exp2(), called);
+            }
+
+            case TypedExp.Assign e -> collectCalls(e.exp(), called);
+
+            case TypedExp.Int2Double e -> collectCalls(e.exp(), called);
+
+            default -> {
+                // literals, identifiers and increments contain no calls
+            }
+        }
+    }
+}
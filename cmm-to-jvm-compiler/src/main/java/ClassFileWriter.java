@@ -0,0 +1,620 @@
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import typed_tree.*;
+
+// assembles compiled methods straight into a class file, for classes that
+// are loaded in the same jvm instead of written out as jasmin. the methods
+// are the instructions of Compiler.compileFunc with frames turned on, header
+// and end included, since from version 51 on every class file is verified
+// with its stack map frames. calls to functions of the program go to the
+// class itself, or, given a linker class, through invokedynamic with the
+// static link method of the linker as bootstrap, which leaves it to the
+// linker what a call runs. the builtins are always called on Runtime
+public class ClassFileWriter {
+
+    private static final int VERSION = 51;
+
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_STATIC = 0x0008;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final String BOOTSTRAP_DESCRIPTOR =
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;"
+                    + "Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;";
+
+    // bytes in big endian order, as everything in a class file is
+    private static class Bytes extends ByteArrayOutputStream {
+
+        void u1(int value) {
+            write(value);
+        }
+
+        void u2(int value) {
+            write(value >>> 8);
+            write(value);
+        }
+
+        void u4(int value) {
+            u2(value >>> 16);
+            u2(value);
+        }
+
+        void u8(long value) {
+            u4((int) (value >>> 32));
+            u4((int) value);
+        }
+
+        void bytes(Bytes other) {
+            write(other.buf, 0, other.count);
+        }
+
+        // the modified utf-8 of the class file format, where the null
+        // character takes two bytes
+        void utf8(String text) {
+            Bytes encoded = new Bytes();
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c != 0 && c < 0x80) {
+                    encoded.u1(c);
+                } else if (c < 0x800) {
+                    encoded.u1(0xc0 | c >> 6);
+                    encoded.u1(0x80 | c & 0x3f);
+                } else {
+                    encoded.u1(0xe0 | c >> 12);
+                    encoded.u1(0x80 | c >> 6 & 0x3f);
+                    encoded.u1(0x80 | c & 0x3f);
+                }
+            }
+            u2(encoded.size());
+            bytes(encoded);
+        }
+    }
+
+    private final String className;
+    private final String linker;
+    private final String sourceFile;
+
+    // every constant is in the pool once, the keys tell the kinds apart
+    private final Bytes pool = new Bytes();
+    private final HashMap<String, Integer> poolIndices = new HashMap<>();
+    private int poolCount = 1;
+
+    private final ArrayList<Bytes> methods = new ArrayList<>();
+
+    // a linker class has a single bootstrap method, in the pool once used
+    private Integer bootstrapHandle = null;
+
+    // the stack map frame and line number entries of the method being
+    // assembled, by bytecode offset
+    private record Frame(int offset, JVMInstr.StackMapFrame frame) {
+    }
+
+    private record LineEntry(int offset, int line) {
+    }
+
+    public ClassFileWriter(String className) {
+        this(className, null, null);
+    }
+
+    // linker is the name of the class with the bootstrap method, or null to
+    // call the functions of the program on the class itself. sourceFile may
+    // be null to leave out the source file attribute
+    public ClassFileWriter(String className, String linker,
+            String sourceFile) {
+        this.className = className;
+        this.linker = linker;
+        this.sourceFile = sourceFile;
+    }
+
+    //// the constant pool
+
+    private int constant(String key, int slots, Bytes entry) {
+        Integer index = poolIndices.get(key);
+        if (index == null) {
+            index = poolCount;
+            poolCount += slots;
+            pool.bytes(entry);
+            poolIndices.put(key, index);
+        }
+        return index;
+    }
+
+    private int utf8(String text) {
+        Bytes entry = new Bytes();
+        entry.u1(1);
+        entry.utf8(text);
+        return constant("Utf8 " + text, 1, entry);
+    }
+
+    private int classRef(String name) {
+        Bytes entry = new Bytes();
+        entry.u1(7);
+        entry.u2(utf8(name));
+        return constant("Class " + name, 1, entry);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        Bytes entry = new Bytes();
+        entry.u1(12);
+        entry.u2(utf8(name));
+        entry.u2(utf8(descriptor));
+        return constant("NameAndType " + name + descriptor, 1, entry);
+    }
+
+    private int methodRef(String owner, String name, String descriptor) {
+        Bytes entry = new Bytes();
+        entry.u1(10);
+        entry.u2(classRef(owner));
+        entry.u2(nameAndType(name, descriptor));
+        return constant("Methodref " + owner + "." + name + descriptor, 1,
+                entry);
+    }
+
+    private int integer(int value) {
+        Bytes entry = new Bytes();
+        entry.u1(3);
+        entry.u4(value);
+        return constant("Integer " + value, 1, entry);
+    }
+
+    // a double takes two entries of the pool
+    private int dubbel(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        Bytes entry = new Bytes();
+        entry.u1(6);
+        entry.u8(bits);
+        return constant("Double " + bits, 2, entry);
+    }
+
+    private int invokeDynamic(String name, String descriptor) {
+        if (bootstrapHandle == null) {
+            Bytes handle = new Bytes();
+            handle.u1(15);
+            handle.u1(6); // REF_invokeStatic
+            handle.u2(methodRef(linker, "link", BOOTSTRAP_DESCRIPTOR));
+            bootstrapHandle = constant("MethodHandle link", 1, handle);
+        }
+        Bytes entry = new Bytes();
+        entry.u1(18);
+        entry.u2(0); // the only bootstrap method
+        entry.u2(nameAndType(name, descriptor));
+        return constant("InvokeDynamic " + name + descriptor, 1, entry);
+    }
+
+    //// methods
+
+    public static String descriptor(List<CType> parameters, CType returns) {
+        StringBuilder descriptor = new StringBuilder("(");
+        for (CType type : parameters) {
+            descriptor.append(JVMInstr.getJVMType(type));
+        }
+        return descriptor.append(")")
+                .append(JVMInstr.getJVMType(returns))
+                .toString();
+    }
+
+    // adds the method the instructions define, from its header up to its end
+    public void addMethod(List<JVMInstr> instrs) {
+        String name;
+        String descriptor;
+        int maxLocals;
+        int maxStack;
+        switch (instrs.get(0)) {
+            case JVMInstr.Dotmethod header -> {
+                name = header.name();
+                descriptor = descriptor(header.varTypes(), header.type());
+                maxLocals = header.limitlocals();
+                maxStack = header.limitstack();
+            }
+
+            case JVMInstr.DotmethodMain header -> {
+                name = "main";
+                descriptor = "([Ljava/lang/String;)V";
+                maxLocals = header.limitlocals();
+                maxStack = header.limitstack();
+            }
+
+            default -> throw new IllegalArgumentException(
+                    "A method starts with its header, not " + instrs.get(0));
+        }
+
+        // the offset of every label, then the code that jumps to them
+        HashMap<Integer, Integer> labelOffsets = new HashMap<>();
+        int offset = 0;
+        for (JVMInstr instr : instrs) {
+            if (instr instanceof JVMInstr.Label label) {
+                labelOffsets.put(label.label(), offset);
+            }
+            offset += size(instr);
+        }
+
+        Bytes code = new Bytes();
+        ArrayList<Frame> frames = new ArrayList<>();
+        ArrayList<LineEntry> lines = new ArrayList<>();
+        for (JVMInstr instr : instrs) {
+            switch (instr) {
+                case JVMInstr.StackMapFrame frame -> frames.add(new Frame(
+                        labelOffsets.get(frame.label()), frame));
+
+                case JVMInstr.Line line -> lines.add(
+                        new LineEntry(code.size(), line.line()));
+
+                default -> emit(instr, code, labelOffsets);
+            }
+        }
+
+        Bytes attributes = new Bytes();
+        int attributeCount = 0;
+        if (!frames.isEmpty()) {
+            attributes.bytes(stackMapTable(frames));
+            ++attributeCount;
+        }
+        if (!lines.isEmpty()) {
+            attributes.bytes(lineNumberTable(lines));
+            ++attributeCount;
+        }
+
+        Bytes codeAttribute = new Bytes();
+        codeAttribute.u2(maxStack);
+        codeAttribute.u2(maxLocals);
+        codeAttribute.u4(code.size());
+        codeAttribute.bytes(code);
+        codeAttribute.u2(0); // no exception handlers
+        codeAttribute.u2(attributeCount);
+        codeAttribute.bytes(attributes);
+
+        Bytes method = new Bytes();
+        method.u2(ACC_PUBLIC | ACC_STATIC);
+        method.u2(utf8(name));
+        method.u2(utf8(descriptor));
+        method.u2(1);
+        method.u2(utf8("Code"));
+        method.u4(codeAttribute.size());
+        method.bytes(codeAttribute);
+        methods.add(method);
+    }
+
+    // the number of bytes the instruction takes, which also puts its
+    // constants in the pool
+    private int size(JVMInstr instr) {
+        Bytes code = new Bytes();
+        emit(instr, code, null);
+        return code.size();
+    }
+
+    // without label offsets, jumps get a placeholder offset
+    private void emit(JVMInstr instr, Bytes code,
+            HashMap<Integer, Integer> labelOffsets) {
+        int start = code.size();
+        switch (instr) {
+            case JVMInstr.Dotmethod _ -> {
+                // the header goes into the method info
+            }
+
+            case JVMInstr.DotmethodMain _ -> {
+                // the header goes into the method info
+            }
+
+            case JVMInstr.DotEndMethod _ -> {
+                // nothing follows the last instruction
+            }
+
+            case JVMInstr.Label _ -> {
+                // a label is an offset, not an instruction
+            }
+
+            case JVMInstr.StackMapFrame _ -> {
+                // frames go into the stack map table
+            }
+
+            case JVMInstr.Line _ -> {
+                // lines go into the line number table
+            }
+
+            case JVMInstr.Return r -> code.u1(switch (r.type()) {
+                case CType.INT, CType.BOOL -> 0xac; // ireturn
+                case CType.DOUBLE -> 0xaf; // dreturn
+                case CType.VOID -> 0xb1; // return
+                default -> throw new IllegalArgumentException(
+                        "Unsupported return type: " + r.type());
+            });
+
+            case JVMInstr.Invokestatic i -> {
+                String descriptor = descriptor(i.varTypes(), i.type());
+                if (i.className().equals("Runtime") || linker == null) {
+                    code.u1(0xb8); // invokestatic
+                    code.u2(methodRef(i.className().equals("Runtime")
+                            ? "Runtime"
+                            : className, i.name(), descriptor));
+                } else {
+                    code.u1(0xba); // invokedynamic
+                    code.u2(invokeDynamic(i.name(), descriptor));
+                    code.u2(0);
+                }
+            }
+
+            case JVMInstr.Goto g -> {
+                code.u1(0xa7); // goto
+                code.u2(jump(g.label(), start, labelOffsets));
+            }
+
+            case JVMInstr.Store s -> local(code, s.address(),
+                    s.type() == CType.DOUBLE ? 0x39 : 0x36, // dstore, istore
+                    s.type() == CType.DOUBLE ? 0x47 : 0x3b); // dstore_0, istore_0
+
+            case JVMInstr.Load l -> local(code, l.address(),
+                    l.type() == CType.DOUBLE ? 0x18 : 0x15, // dload, iload
+                    l.type() == CType.DOUBLE ? 0x26 : 0x1a); // dload_0, iload_0
+
+            case JVMInstr.Push p -> push(code, p);
+
+            case JVMInstr.Cmp c -> {
+                if (c.cmpType() == CType.DOUBLE) {
+                    code.u1(0x98); // dcmpg
+                    start = code.size();
+                    code.u1(switch (c.operator()) {
+                        case Operator.EQU -> 0x99; // ifeq
+                        case Operator.NEQ -> 0x9a; // ifne
+                        case Operator.LTH -> 0x9b; // iflt
+                        case Operator.GTE -> 0x9c; // ifge
+                        case Operator.GTH -> 0x9d; // ifgt
+                        case Operator.LTE -> 0x9e; // ifle
+                        default -> throw new IllegalArgumentException(
+                                "Unsupported double operator " + c.operator());
+                    });
+                } else {
+                    code.u1(switch (c.operator()) {
+                        case Operator.EQU -> 0x9f; // if_icmpeq
+                        case Operator.NEQ -> 0xa0; // if_icmpne
+                        case Operator.LTH -> 0xa1; // if_icmplt
+                        case Operator.GTE -> 0xa2; // if_icmpge
+                        case Operator.GTH -> 0xa3; // if_icmpgt
+                        case Operator.LTE -> 0xa4; // if_icmple
+                        default -> throw new IllegalArgumentException(
+                                "Unsupported int operator " + c.operator());
+                    });
+                }
+                code.u2(jump(c.label(), start, labelOffsets));
+            }
+
+            case JVMInstr.Ifeq i -> {
+                code.u1(0x99); // ifeq
+                code.u2(jump(i.label(), start, labelOffsets));
+            }
+
+            case JVMInstr.Ifne i -> {
+                code.u1(0x9a); // ifne
+                code.u2(jump(i.label(), start, labelOffsets));
+            }
+
+            case JVMInstr.Add a -> code.u1(a.type() == CType.DOUBLE
+                    ? 0x63 // dadd
+                    : 0x60); // iadd
+
+            case JVMInstr.Sub s -> code.u1(s.type() == CType.DOUBLE
+                    ? 0x67 // dsub
+                    : 0x64); // isub
+
+            case JVMInstr.Mul m -> code.u1(m.type() == CType.DOUBLE
+                    ? 0x6b // dmul
+                    : 0x68); // imul
+
+            case JVMInstr.Div d -> code.u1(d.type() == CType.DOUBLE
+                    ? 0x6f // ddiv
+                    : 0x6c); // idiv
+
+            case JVMInstr.Shl _ -> code.u1(0x78); // ishl
+
+            case JVMInstr.Dup d -> code.u1(d.type() == CType.DOUBLE
+                    ? 0x5c // dup2
+                    : 0x59); // dup
+
+            case JVMInstr.Pop p -> code.u1(p.type() == CType.DOUBLE
+                    ? 0x58 // pop2
+                    : 0x57); // pop
+
+            case JVMInstr.Iinc i -> {
+                if (i.address() < 256 && i.increment() >= Byte.MIN_VALUE
+                        && i.increment() <= Byte.MAX_VALUE) {
+                    code.u1(0x84); // iinc
+                    code.u1(i.address());
+                    code.u1(i.increment());
+                } else {
+                    code.u1(0xc4); // wide
+                    code.u1(0x84);
+                    code.u2(i.address());
+                    code.u2(i.increment());
+                }
+            }
+
+            case JVMInstr.I2d _ -> code.u1(0x87); // i2d
+
+            default -> throw new IllegalArgumentException(
+                    "Instruction " + instr + " can not be assembled.");
+        }
+    }
+
+    private int jump(int label, int start, HashMap<Integer, Integer> offsets) {
+        if (offsets == null) {
+            return 0;
+        }
+        int distance = offsets.get(label) - start;
+        if (distance < Short.MIN_VALUE || distance > Short.MAX_VALUE) {
+            throw new IllegalStateException("Jump to LABEL" + label
+                    + " is too far for a method of " + className);
+        }
+        return distance;
+    }
+
+    private void local(Bytes code, int address, int opcode, int shortOpcode) {
+        if (address <= 3) {
+            code.u1(shortOpcode + address);
+        } else if (address < 256) {
+            code.u1(opcode);
+            code.u1(address);
+        } else {
+            code.u1(0xc4); // wide
+            code.u1(opcode);
+            code.u2(address);
+        }
+    }
+
+    private void push(Bytes code, JVMInstr.Push p) {
+        switch (p.type()) {
+            case CType.BOOL -> code.u1((Boolean) p.value()
+                    ? 0x04 // iconst_1
+                    : 0x03); // iconst_0
+
+            case CType.INT -> {
+                int value = (Integer) p.value();
+                if (value >= -1 && value <= 5) {
+                    code.u1(0x03 + value); // iconst_<n>
+                } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                    code.u1(0x10); // bipush
+                    code.u1(value);
+                } else if (value >= Short.MIN_VALUE
+                        && value <= Short.MAX_VALUE) {
+                    code.u1(0x11); // sipush
+                    code.u2(value);
+                } else {
+                    int index = integer(value);
+                    if (index < 256) {
+                        code.u1(0x12); // ldc
+                        code.u1(index);
+                    } else {
+                        code.u1(0x13); // ldc_w
+                        code.u2(index);
+                    }
+                }
+            }
+
+            case CType.DOUBLE -> {
+                double value = p.value() instanceof Integer integerValue
+                        ? integerValue.doubleValue()
+                        : (Double) p.value();
+                // negative zero is a constant of its own
+                if (Double.doubleToRawLongBits(value) == 0) {
+                    code.u1(0x0e); // dconst_0
+                } else if (value == 1.0) {
+                    code.u1(0x0f); // dconst_1
+                } else {
+                    code.u1(0x14); // ldc2_w
+                    code.u2(dubbel(value));
+                }
+            }
+
+            default -> throw new IllegalArgumentException(
+                    "Unsupported constant type: " + p.type());
+        }
+    }
+
+    //// attributes
+
+    // every frame is written in full. frames at the same offset, which
+    // label runs separated by a line directive get, describe the same state
+    private Bytes stackMapTable(List<Frame> frames) {
+        Bytes entries = new Bytes();
+        int count = 0;
+        int previous = -1;
+        for (Frame frame : frames) {
+            if (frame.offset() == previous) {
+                continue;
+            }
+            entries.u1(255); // full_frame
+            entries.u2(frame.offset() - previous - 1);
+            entries.u2(frame.frame().locals().size());
+            for (String type : frame.frame().locals()) {
+                verificationType(entries, type);
+            }
+            entries.u2(frame.frame().stack().size());
+            for (String type : frame.frame().stack()) {
+                verificationType(entries, type);
+            }
+            previous = frame.offset();
+            ++count;
+        }
+
+        Bytes attribute = new Bytes();
+        attribute.u2(utf8("StackMapTable"));
+        attribute.u4(2 + entries.size());
+        attribute.u2(count);
+        attribute.bytes(entries);
+        return attribute;
+    }
+
+    private void verificationType(Bytes entries, String type) {
+        switch (type) {
+            case FrameAnalysis.TOP -> entries.u1(0);
+            case FrameAnalysis.INTEGER -> entries.u1(1);
+            case FrameAnalysis.DOUBLE -> entries.u1(3);
+            default -> {
+                if (!type.startsWith("Object ")) {
+                    throw new IllegalArgumentException(
+                            "Unknown verification type " + type);
+                }
+                entries.u1(7);
+                entries.u2(classRef(type.substring("Object ".length())));
+            }
+        }
+    }
+
+    private Bytes lineNumberTable(List<LineEntry> lines) {
+        Bytes attribute = new Bytes();
+        attribute.u2(utf8("LineNumberTable"));
+        attribute.u4(2 + 4 * lines.size());
+        attribute.u2(lines.size());
+        for (LineEntry line : lines) {
+            attribute.u2(line.offset());
+            attribute.u2(line.line());
+        }
+        return attribute;
+    }
+
+    //// the class
+
+    public byte[] toByteArray() {
+        // the names of the attributes have to be in the pool before it is
+        // written out
+        int thisClass = classRef(className);
+        int superClass = classRef("java/lang/Object");
+        Bytes attributes = new Bytes();
+        int attributeCount = 0;
+        if (sourceFile != null) {
+            attributes.u2(utf8("SourceFile"));
+            attributes.u4(2);
+            attributes.u2(utf8(sourceFile));
+            ++attributeCount;
+        }
+        if (bootstrapHandle != null) {
+            attributes.u2(utf8("BootstrapMethods"));
+            attributes.u4(6);
+            attributes.u2(1);
+            attributes.u2(bootstrapHandle);
+            attributes.u2(0); // no static arguments
+            ++attributeCount;
+        }
+
+        Bytes out = new Bytes();
+        out.u4(0xCAFEBABE);
+        out.u2(0); // minor version
+        out.u2(VERSION);
+        out.u2(poolCount);
+        out.bytes(pool);
+        out.u2(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+        out.u2(thisClass);
+        out.u2(superClass);
+        out.u2(0); // no interfaces
+        out.u2(0); // no fields
+        out.u2(methods.size());
+        for (Bytes method : methods) {
+            out.bytes(method);
+        }
+        out.u2(attributeCount);
+        out.bytes(attributes);
+        return out.toByteArray();
+    }
+}
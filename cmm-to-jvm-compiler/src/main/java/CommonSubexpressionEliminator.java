@@ -0,0 +1,520 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import typed_tree.*;
+
+// computes pure expressions that occur more than once in a straight line of
+// statements only once. the first occurrence is evaluated into a fresh local
+// just before the statement it is in, and that and the later occurrences
+// read the local instead, as long as none of the variables the expression
+// reads is written in between. a run of statements ends at a loop, a block
+// or after the condition of an if. function calls are never pure, and c--
+// functions can not write the locals of their caller, so a call never makes
+// a computed value stale. the fresh locals are named '$cse' followed by a
+// number, which can never clash with a c-- identifier
+public class CommonSubexpressionEliminator {
+
+    // what the walk knows of an expression once its operands are done. the
+    // number is the same for equal expressions, nodes is how many positions
+    // the expression takes, and size, pure and vars are what TreeAnalysis
+    // would give for it. they are built from those of the operands, so every
+    // node is looked at once however deep the expression is
+    private record Summary(
+            int number,
+            int nodes,
+            int size,
+            boolean pure,
+            Set<String> vars) {
+    }
+
+    // the occurrences of an expression that can share one computation
+    private static class Group {
+        TypedExp exp;
+        Summary summary;
+        int statement;
+        String name;
+        LinkedList<Integer> positions = new LinkedList<>();
+
+        Group(TypedExp exp, Summary summary, int statement, int position) {
+            this.exp = exp;
+            this.summary = summary;
+            this.statement = statement;
+            this.positions.add(position);
+        }
+    }
+
+    private int nextTemp = 0;
+
+    // state of one walk over a run of statements. every expression node gets
+    // a position in the order the walk enters them
+    private int position;
+    private int statement;
+    private HashMap<Object, Integer> numbers;
+    private LinkedHashMap<Integer, Group> open;
+    private HashMap<String, List<Group>> openByVar;
+    private LinkedList<Group> groups;
+    private Set<String> assignedInStatement;
+    private HashMap<Integer, Group> replaced;
+
+    public LinkedList<TypedStm> eliminateStms(List<TypedStm> stms) {
+        LinkedList<TypedStm> result = new LinkedList<>();
+        LinkedList<TypedStm> run = new LinkedList<>();
+        for (TypedStm stm : stms) {
+            switch (stm) {
+                case TypedStm.While s -> {
+                    result.addAll(eliminateRun(run));
+                    run.clear();
+                    result.add(new TypedStm.While(s.exp(),
+                            eliminateStm(s.stm()), s.line()));
+                }
+
+                // the condition is evaluated once, right after the run
+                case TypedStm.IfElse s -> {
+                    run.add(new TypedStm.IfElse(s.exp(),
+                            eliminateStm(s.stm1()),
+                            eliminateStm(s.stm2()), s.line()));
+                    result.addAll(eliminateRun(run));
+                    run.clear();
+                }
+
+                case TypedStm.Block s -> {
+                    result.addAll(eliminateRun(run));
+                    run.clear();
+                    result.add(new TypedStm.Block(eliminateStms(s.stms())));
+                }
+
+                default -> run.add(stm);
+            }
+        }
+        result.addAll(eliminateRun(run));
+        return result;
+    }
+
+    // a statement that gets locals in front of it becomes a block, so they
+    // stay in its scope
+    private TypedStm eliminateStm(TypedStm stm) {
+        if (stm instanceof TypedStm.Block block) {
+            return new TypedStm.Block(eliminateStms(block.stms()));
+        }
+        LinkedList<TypedStm> stms = eliminateStms(List.of(stm));
+        return stms.size() == 1 ? stms.getFirst() : new TypedStm.Block(stms);
+    }
+
+    // shares the largest repeated expressions first, then looks again, since
+    // the new locals may repeat smaller expressions among themselves
+    private List<TypedStm> eliminateRun(List<TypedStm> run) {
+        List<TypedStm> stms = new ArrayList<>(run);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            findGroups(stms);
+
+            HashMap<Integer, List<TypedStm>> temps = new HashMap<>();
+            replaced = new HashMap<>();
+            // the shared occurrences do not overlap, so they are kept as
+            // ranges of positions by where they start
+            TreeMap<Integer, Integer> shared = new TreeMap<>();
+            groups.sort((a, b) -> b.summary.size() - a.summary.size());
+            for (Group group : groups) {
+                // occurrences inside a larger shared expression are gone
+                LinkedList<Integer> remaining = new LinkedList<>();
+                for (int occurrence : group.positions) {
+                    if (!inside(occurrence, shared)) {
+                        remaining.add(occurrence);
+                    }
+                }
+                if (remaining.size() < 2) {
+                    continue;
+                }
+
+                group.name = "$cse" + nextTemp++;
+                temps.computeIfAbsent(group.statement, _ -> new LinkedList<>())
+                        .add(new TypedStm.Init(group.exp.type(), group.name,
+                                group.exp));
+                for (int occurrence : remaining) {
+                    replaced.put(occurrence, group);
+                    shared.put(occurrence,
+                            occurrence + group.summary.nodes());
+                }
+                changed = true;
+            }
+
+            if (changed) {
+                List<TypedStm> rewritten = new ArrayList<>();
+                position = 0;
+                for (int i = 0; i < stms.size(); i++) {
+                    rewritten.addAll(temps.getOrDefault(i, List.of()));
+                    rewritten.add(rewriteStm(stms.get(i)));
+                }
+                stms = rewritten;
+            }
+        }
+        return stms;
+    }
+
+    private boolean inside(int occurrence, TreeMap<Integer, Integer> ranges) {
+        Map.Entry<Integer, Integer> range = ranges.floorEntry(occurrence);
+        return range != null && occurrence < range.getValue();
+    }
+
+    //// finding the repeated expressions
+
+    private void findGroups(List<TypedStm> stms) {
+        position = 0;
+        numbers = new HashMap<>();
+        open = new LinkedHashMap<>();
+        openByVar = new HashMap<>();
+        groups = new LinkedList<>();
+        assignedInStatement = new HashSet<>();
+        for (statement = 0; statement < stms.size(); statement++) {
+            assignedInStatement.clear();
+            switch (stms.get(statement)) {
+                case TypedStm.Exp s -> visit(s.exp());
+
+                case TypedStm.Decls s -> {
+                    for (String name : s.names()) {
+                        kill(name);
+                    }
+                }
+
+                case TypedStm.Init s -> {
+                    visit(s.exp());
+                    kill(s.name());
+                }
+
+                case TypedStm.Return s -> visit(s.exp());
+
+                case TypedStm.IfElse s -> visit(s.exp());
+
+                default -> throw new RuntimeException("Statement "
+                        + stms.get(statement).getClass()
+                        + " can not be part of a run.");
+            }
+        }
+    }
+
+    // walks the expression in the order it is evaluated, an expression is
+    // recorded once its operands are done
+    private Summary visit(TypedExp exp) {
+        int entered = position++;
+        Summary summary = switch (exp) {
+            case TypedExp.Paren e -> {
+                Summary inner = visit(e.exp());
+                yield unary(List.of(TypedExp.Paren.class, e.type(),
+                        inner.number()), inner.size(), inner);
+            }
+
+            case TypedExp.Func e -> {
+                int nodes = 1;
+                int size = 1;
+                for (var argument : e.exps()) {
+                    Summary inner = visit(argument);
+                    nodes += inner.nodes();
+                    size += inner.size();
+                }
+                // calls may print, read input or never return
+                yield impure(nodes, size);
+            }
+
+            case TypedExp.Post e -> {
+                kill(e.id());
+                yield impure(1, 1);
+            }
+
+            case TypedExp.Pre e -> {
+                kill(e.id());
+                yield impure(1, 1);
+            }
+
+            case TypedExp.Mul _ -> visitSpine(exp, entered);
+
+            case TypedExp.Add _ -> visitSpine(exp, entered);
+
+            case TypedExp.Cmp e -> {
+                Summary left = visit(e.exp1());
+                Summary right = visit(e.exp2());
+                yield binary(List.of(TypedExp.Cmp.class, e.operator(),
+                        left.number(), right.number()), true, left, right);
+            }
+
+            // the right operand may not run, so whatever it writes counts
+            // as written
+            case TypedExp.And e -> {
+                Summary left = visit(e.exp1());
+                Summary right = visit(e.exp2());
+                yield binary(List.of(TypedExp.And.class, left.number(),
+                        right.number()), true, left, right);
+            }
+
+            case TypedExp.Or e -> {
+                Summary left = visit(e.exp1());
+                Summary right = visit(e.exp2());
+                yield binary(List.of(TypedExp.Or.class, left.number(),
+                        right.number()), true, left, right);
+            }
+
+            case TypedExp.Assign e -> {
+                Summary inner = visit(e.exp());
+                kill(e.id());
+                yield impure(1 + inner.nodes(), 1 + inner.size());
+            }
+
+            case TypedExp.Int2Double e -> {
+                Summary inner = visit(e.exp());
+                yield unary(List.of(TypedExp.Int2Double.class,
+                        inner.number()), 1 + inner.size(), inner);
+            }
+
+            case TypedExp.Ident e -> new Summary(number(e), 1, 1, true,
+                    Set.of(e.id()));
+
+            // literals
+            default -> new Summary(number(exp), 1, 1, true, Set.of());
+        };
+
+        record(exp, summary, entered);
+        return summary;
+    }
+
+    // the nodes of a left spine are entered one after the other before its
+    // leftmost operand, and are recorded from the bottom up. the outermost
+    // one is left to visit
+    private Summary visitSpine(TypedExp exp, int entered) {
+        List<TypedExp> spine = TreeAnalysis.leftSpine(exp);
+        List<TypedExp> operands = TreeAnalysis.spineOperands(exp);
+        position += spine.size() - 1;
+        Summary summary = visit(operands.getFirst());
+        for (int i = spine.size() - 1; i >= 0; i--) {
+            Summary right = visit(operands.get(spine.size() - i));
+            summary = arithmetic(spine.get(i), summary, right);
+            if (i > 0) {
+                record(spine.get(i), summary, entered + i);
+            }
+        }
+        return summary;
+    }
+
+    private Summary arithmetic(TypedExp node, Summary left, Summary right) {
+        return switch (node) {
+            case TypedExp.Mul e -> binary(List.of(TypedExp.Mul.class,
+                    e.type(), e.operator(), left.number(), right.number()),
+                    TreeAnalysis.isPureNode(e), left, right);
+
+            case TypedExp.Add e -> binary(List.of(TypedExp.Add.class,
+                    e.type(), e.operator(), left.number(), right.number()),
+                    true, left, right);
+
+            default -> throw new IllegalArgumentException(
+                    "Only arithmetic is on the spine.");
+        };
+    }
+
+    // adds the occurrence to the group of equal expressions
+    private void record(TypedExp exp, Summary summary, int entered) {
+        if (isCandidate(exp, summary)) {
+            Group group = open.get(summary.number());
+            if (group != null) {
+                group.positions.add(entered);
+            } else if (Collections.disjoint(summary.vars(),
+                    assignedInStatement)) {
+                // the first occurrence is computed before its statement, so
+                // nothing it reads may have been written by then
+                group = new Group(exp, summary, statement, entered);
+                open.put(summary.number(), group);
+                for (String variableName : summary.vars()) {
+                    openByVar.computeIfAbsent(variableName,
+                            _ -> new ArrayList<>()).add(group);
+                }
+                groups.add(group);
+            }
+        }
+    }
+
+    // the number of a pure expression, given by its own parts and the
+    // numbers of its operands in place of the operands themselves
+    private int number(Object key) {
+        return numbers.computeIfAbsent(key, _ -> numbers.size());
+    }
+
+    // impure expressions are never shared, and neither is anything they are
+    // part of, so their number and variables are never looked at
+    private Summary impure(int nodes, int size) {
+        return new Summary(-1, nodes, size, false, Set.of());
+    }
+
+    private Summary unary(Object key, int size, Summary inner) {
+        return inner.pure()
+                ? new Summary(number(key), 1 + inner.nodes(), size, true,
+                        inner.vars())
+                : impure(1 + inner.nodes(), size);
+    }
+
+    private Summary binary(Object key, boolean pure, Summary left,
+            Summary right) {
+        pure = pure && left.pure() && right.pure();
+        return new Summary(pure ? number(key) : -1,
+                1 + left.nodes() + right.nodes(),
+                1 + left.size() + right.size(),
+                pure,
+                pure ? union(left.vars(), right.vars()) : Set.of());
+    }
+
+    // the sets are never changed once made, so an operand's set is reused
+    // whenever it already has every variable. along a long chain the right
+    // operands are small, which keeps the walk linear
+    private Set<String> union(Set<String> left, Set<String> right) {
+        if (left.containsAll(right)) {
+            return left;
+        }
+        if (right.containsAll(left)) {
+            return right;
+        }
+        Set<String> both = new HashSet<>(left);
+        both.addAll(right);
+        return both;
+    }
+
+    // a written variable makes every computed value that read it stale
+    private void kill(String variableName) {
+        assignedInStatement.add(variableName);
+        List<Group> stale = openByVar.remove(variableName);
+        if (stale != null) {
+            for (Group group : stale) {
+                open.remove(group.summary.number(), group);
+            }
+        }
+    }
+
+    // pure and more than one operation on literals and variables
+    private boolean isCandidate(TypedExp exp, Summary summary) {
+        return !(exp instanceof TypedExp.Paren)
+                && summary.size() >= 3
+                && summary.pure();
+    }
+
+    //// replacing the shared occurrences
+
+    private TypedStm rewriteStm(TypedStm stm) {
+        return switch (stm) {
+            case TypedStm.Exp s -> new TypedStm.Exp(s.type(),
+                    rewriteExp(s.exp()), s.line());
+
+            case TypedStm.Decls s -> s;
+
+            case TypedStm.Init s -> new TypedStm.Init(s.type(), s.name(),
+                    rewriteExp(s.exp()), s.line());
+
+            case TypedStm.Return s -> new TypedStm.Return(rewriteExp(s.exp()),
+                    s.line());
+
+            case TypedStm.IfElse s -> new TypedStm.IfElse(rewriteExp(s.exp()),
+                    s.stm1(), s.stm2(), s.line());
+
+            default -> throw new RuntimeException("Statement "
+                    + stm.getClass() + " can not be part of a run.");
+        };
+    }
+
+    // goes through the positions in the same order as visit
+    private TypedExp rewriteExp(TypedExp exp) {
+        Group group = replaced.get(position);
+        if (group != null) {
+            position += group.summary.nodes();
+            return new TypedExp.Ident(group.name, exp.type());
+        }
+        ++position;
+
+        return switch (exp) {
+            case TypedExp.Paren e -> new TypedExp.Paren(rewriteExp(e.exp()),
+                    e.type());
+
+            case TypedExp.Func e -> {
+                LinkedList<TypedExp> args = new LinkedList<>();
+                for (var argument : e.exps()) {
+                    args.add(rewriteExp(argument));
+                }
+                yield new TypedExp.Func(e.id(), args, e.type());
+            }
+
+            case TypedExp.Mul _ -> rewriteSpine(exp);
+
+            case TypedExp.Add _ -> rewriteSpine(exp);
+
+            case TypedExp.Cmp e -> {
+                TypedExp exp1 = rewriteExp(e.exp1());
+                yield new TypedExp.Cmp(exp1, rewriteExp(e.exp2()),
+                        e.operator());
+            }
+
+            case TypedExp.And e -> {
+                TypedExp exp1 = rewriteExp(e.exp1());
+                yield new TypedExp.And(exp1, rewriteExp(e.exp2()));
+            }
+
+            case TypedExp.Or e -> {
+                TypedExp exp1 = rewriteExp(e.exp1());
+                yield new TypedExp.Or(exp1, rewriteExp(e.exp2()));
+            }
+
+            case TypedExp.Assign e -> new TypedExp.Assign(e.id(),
+                    rewriteExp(e.exp()), e.type());
+
+            case TypedExp.Int2Double e -> new TypedExp.Int2Double(
+                    rewriteExp(e.exp()));
+
+            // literals, identifiers and increments
+            default -> exp;
+        };
+    }
+
+    // down the spine to the first node that is replaced, or to its leftmost
+    // operand, and rebuilt from there. the outermost node is entered already
+    private TypedExp rewriteSpine(TypedExp exp) {
+        List<TypedExp> spine = TreeAnalysis.leftSpine(exp);
+        List<TypedExp> operands = TreeAnalysis.spineOperands(exp);
+        TypedExp result = null;
+        int below = 1;
+        for (; below < spine.size(); below++) {
+            Group group = replaced.get(position);
+            if (group != null) {
+                position += group.summary.nodes();
+                result = new TypedExp.Ident(group.name,
+                        spine.get(below).type());
+                break;
+            }
+            ++position;
+        }
+        if (result == null) {
+            result = rewriteExp(operands.getFirst());
+        }
+        for (int i = below - 1; i >= 0; i--) {
+            result = TreeAnalysis.withOperands(spine.get(i), result,
+                    rewriteExp(operands.get(spine.size() - i)));
+        }
+        return result;
+    }
+
+    public TypedDef.Func eliminateFunc(TypedDef.Func function) {
+        return new TypedDef.Func(
+                function.returns(),
+                function.args(),
+                eliminateStms(function.stms()),
+                function.funcName());
+    }
+
+    public TypedProgram eliminate(TypedProgram program) {
+        LinkedList<TypedDef> definitions = new LinkedList<>();
+        for (TypedDef def : program.defintions()) {
+            definitions.add(eliminateFunc((TypedDef.Func) def));
+        }
+        return new TypedProgram(definitions);
+    }
+}
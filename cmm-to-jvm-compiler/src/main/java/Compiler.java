@@ -1,9 +1,15 @@
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.TreeSet;
-import java.util.UUID;
-import java.util.stream.Stream;
+import java.util.concurrent.ForkJoinPool;
 
+import ssa.*;
 import typed_tree.*;
 
 public class Compiler {
@@ -19,110 +25,53 @@ public class Compiler {
 
         private String className;
 
-        // keeping track of addresses for variables
-        private TreeSet<Integer> removedAddresses = new TreeSet<>();
-        private TreeSet<Integer> currentAddresses = new TreeSet<>();
+        // every variable gets an address of its own. the parameters get their
+        // real slots, the addresses of the other variables are only names
+        // until the SlotAllocator maps them onto slots by their liveness
+        private Integer nextAddress = 0;
 
         public Integer nextAddress(CType type) {
-            Integer candidate;
-            if (!removedAddresses.isEmpty()) {
-                candidate = removedAddresses.pollFirst();
-            } else {
-                if (currentAddresses.isEmpty()) {
-                    candidate = 0;
-                } else {
-                    candidate = currentAddresses.getLast() + 1;
-                }
-            }
-            currentAddresses.add(candidate);
-            if (type == CType.DOUBLE) {
-                currentAddresses.add(candidate + 1);
-            }
-            return candidate;
+            Integer address = nextAddress;
+            nextAddress += type == CType.DOUBLE ? 2 : 1;
+            return address;
         }
 
-        public void removeAddress(CType type, Integer address) {
-            if (currentAddresses.remove(address)) {
-                removedAddresses.add(address);
-                if (type == CType.DOUBLE) {
-                    removeAddress(CType.VOID, address + 1);
-                }
-            }
+        public Integer addressesInUse() {
+            return nextAddress;
         }
 
-        // current maximum amount of variables
-        private Integer maxVarAmount = 0;
-
-        // current amount of variables
-        private Integer currentVarAmount = 0;
+        // the parameters in order, which a tail call assigns to
+        private LinkedList<VarEntry> parameters = new LinkedList<>();
 
-        // current maximum stack size
-        private Integer maxStackSize = 0;
-
-        // current stack size
-        private Integer currentStackSize = 0;
+        // label at the start of the method, only created when jumped to
+        private Integer entryLabel = null;
 
         // next label name
         private Integer nextLabel = 0;
 
-        @Override
-        public void extendVar(String variableName, VarEntry var) {
-            super.extendVar(variableName, var);
-            if (var.type() == CType.DOUBLE) {
-                currentVarAmount = currentVarAmount + 2;
-            } else {
-                ++currentVarAmount;
-            }
-            if (currentVarAmount > maxVarAmount) {
-                maxVarAmount = currentVarAmount;
-            }
+        public void extendParameter(String variableName, CType type) {
+            this.extendVar(variableName, type);
+            parameters.add(this.lookupVar(variableName));
         }
 
-        public void extendVar(String variableName, CType type) {
-            VarEntry varEntry = new VarEntry(type, this.nextAddress(type));
-            this.extendVar(variableName, varEntry);
+        public List<VarEntry> parameters() {
+            return parameters;
         }
 
-        @Override
-        public void removeContext() {
-            for (VarEntry entry : contexts.peek().values()) {
-                if (entry.type() == CType.DOUBLE) {
-                    currentVarAmount = currentVarAmount + 2;
-                } else {
-                    --currentVarAmount;
-                }
-                removeAddress(entry.type(), entry.address());
-            }
-            super.removeContext();
-        }
-
-        public void deltaStackSize(int change) {
-            currentStackSize += change;
-            if (currentStackSize > maxStackSize) {
-                maxStackSize = currentStackSize;
-            }
-        }
-
-        public void deltaStackSize(CType type, int change) {
-            if (type == CType.INT || type == CType.BOOL) {
-                this.deltaStackSize(change);
-            } else if (type == CType.DOUBLE) {
-                this.deltaStackSize(2 * change);
-            } else { // (if CType.VOID)
-                // do nothing
+        public Integer entryLabel() {
+            if (entryLabel == null) {
+                entryLabel = nextLabelIncr();
             }
+            return entryLabel;
         }
 
-        public Integer maxVarAmount() {
-            return maxVarAmount;
-        }
-
-        public Integer maxStackSize() {
-            return maxStackSize;
+        public boolean hasEntryLabel() {
+            return entryLabel != null;
         }
 
-        public Integer currentStackSize() {
-            return currentStackSize;
+        public void extendVar(String variableName, CType type) {
+            VarEntry varEntry = new VarEntry(type, this.nextAddress(type));
+            this.extendVar(variableName, varEntry);
         }
 
         public String className() {
@@ -139,38 +88,60 @@ public class Compiler {
 
     }
 
+    // the instructions of one method, kept in an array so appending and
+    // looking at the end are constant time however long the method gets
     public class InstructionBuilder {
-        private LinkedList<JVMInstr> instructions;
-        private CompilerEnvironment env;
+        private ArrayList<JVMInstr> instructions;
+
+        // index of the last instruction that leaves a value, or -1
+        private int lastNonVoid = -1;
 
         // constructor
-        public InstructionBuilder(CompilerEnvironment environment) {
-            this.instructions = new LinkedList<>();
-            this.env = environment;
+        public InstructionBuilder() {
+            this.instructions = new ArrayList<>();
         }
 
         public void add(JVMInstr instr) {
+            if (!instr.type().equals(CType.VOID)) {
+                lastNonVoid = instructions.size();
+            }
             instructions.add(instr);
-            this.updateEnv(instr);
         }
 
+        // only used for the few instructions that go in front of a finished
+        // method body
         public void addFirst(JVMInstr instr) {
-            instructions.addFirst(instr);
+            instructions.add(0, instr);
+            if (lastNonVoid >= 0) {
+                ++lastNonVoid;
+            } else if (!instr.type().equals(CType.VOID)) {
+                lastNonVoid = 0;
+            }
         }
 
         public JVMInstr getLast() {
-            return instructions.getLast();
+            return instructions.get(instructions.size() - 1);
         }
 
         public JVMInstr getLastNonVoid() {
-            return instructions.reversed().stream()
-                    .filter(instr -> !instr.type().equals(CType.VOID))
-                    .findFirst()
-                    .orElse(null);
+            return lastNonVoid < 0 ? null : instructions.get(lastNonVoid);
         }
 
-        public Stream<JVMInstr> stream() {
-            return instructions.stream();
+        // the passes below replace the whole list, after which the last
+        // value is searched for again
+        private void replaceAll(List<JVMInstr> instrs) {
+            instructions = new ArrayList<>(instrs);
+            lastNonVoid = -1;
+            for (int i = instructions.size() - 1; i >= 0; i--) {
+                if (!instructions.get(i).type().equals(CType.VOID)) {
+                    lastNonVoid = i;
+                    break;
+                }
+            }
+        }
+
+        public List<JVMInstr> instructions() {
+            return instructions;
         }
 
         public String toBytecode() {
@@ -181,55 +152,158 @@ public class Compiler {
             return stringBuilder.toString();
         }
 
-        private void updateEnv(JVMInstr instr) {
-            switch (instr) {
+        // writes the instructions one at a time, so a method never has to
+        // exist as one string
+        public void writeTo(Writer out) throws IOException {
+            for (JVMInstr instr : instructions) {
+                out.write(instr.println());
+            }
+        }
 
-                case JVMInstr.Invokestatic i -> {
-                    for (CType varType : i.varTypes()) {
-                        env.deltaStackSize(varType, -1);
-                    }
-                    env.deltaStackSize(i.type(), 1);
+        // marks which instructions can be reached from the start of the
+        // method by following the jumps and fall-throughs. the extra last
+        // entry tells whether execution can run past the final instruction
+        private boolean[] reachable() {
+            ArrayList<JVMInstr> instrs = instructions;
+            HashMap<Integer, Integer> labelIndices = new HashMap<>();
+            for (int i = 0; i < instrs.size(); i++) {
+                if (instrs.get(i) instanceof JVMInstr.Label label) {
+                    labelIndices.put(label.label(), i);
                 }
+            }
 
-                case JVMInstr.Store i -> env.deltaStackSize(i.type(), -1);
-
-                case JVMInstr.Load i -> env.deltaStackSize(i.type(), 1);
-
-                case JVMInstr.Push i -> env.deltaStackSize(i.type(), 1);
-
-                case JVMInstr.Cmp i -> {
-                    env.deltaStackSize(i.type(), -2);
+            boolean[] reachable = new boolean[instrs.size() + 1];
+            ArrayDeque<Integer> worklist = new ArrayDeque<>();
+            worklist.push(0);
+            while (!worklist.isEmpty()) {
+                int index = worklist.pop();
+                if (reachable[index]) {
+                    continue;
+                }
+                reachable[index] = true;
+                if (index == instrs.size()) {
+                    continue;
                 }
 
-                case JVMInstr.Ifeq _ -> env.deltaStackSize(-1);
-
-                case JVMInstr.Ifne _ -> env.deltaStackSize(-1);
-
-                case JVMInstr.Add i -> env.deltaStackSize(i.type(), -1);
-
-                case JVMInstr.Sub i -> env.deltaStackSize(i.type(), -1);
-
-                case JVMInstr.Mul i -> env.deltaStackSize(i.type(), -1);
+                JVMInstr instr = instrs.get(index);
+                if (instr.jumpTarget() != null) {
+                    worklist.push(labelIndices.get(instr.jumpTarget()));
+                }
+                if (instr.fallsThrough()) {
+                    worklist.push(index + 1);
+                }
+            }
+            return reachable;
+        }
 
-                case JVMInstr.Div i -> env.deltaStackSize(i.type(), -1);
+        // whether execution can run past the last instruction, in which case
+        // the method needs a return at the end
+        public boolean fallsThrough() {
+            return reachable()[instructions.size()];
+        }
 
-                case JVMInstr.Dup i -> env.deltaStackSize(i.type(), 1);
+        // removes instructions that can never be executed, such as anything
+        // following a return or the jump over an else arm after a return
+        public InstructionBuilder removeUnreachable() {
+            boolean[] reachable = reachable();
+            ArrayList<JVMInstr> kept = new ArrayList<>();
+            for (int i = 0; i < instructions.size(); i++) {
+                if (reachable[i]) {
+                    kept.add(instructions.get(i));
+                }
+            }
+            replaceAll(kept);
+            return this;
+        }
 
-                case JVMInstr.Pop i -> env.deltaStackSize(i.type(), -1);
+        // puts the basic blocks in an order where most jumps fall through,
+        // with loop tests at the bottom of their loops. the method may not
+        // run past its last instruction
+        public InstructionBuilder layoutBlocks() {
+            replaceAll(new BlockLayout(instructions).layout());
+            return this;
+        }
 
-                case JVMInstr.I2d _ -> env.deltaStackSize(1);
+        // an int multiplication by a constant power of two becomes a shift,
+        // which gives the same result under wraparound. the simplifier puts
+        // constants on the right, so the constant is pushed right before.
+        // division is left alone, since a shift rounds negative numbers
+        // down instead of towards zero
+        public InstructionBuilder strengthReduce() {
+            ArrayList<JVMInstr> reduced = new ArrayList<>();
+            for (int i = 0; i < instructions.size(); i++) {
+                JVMInstr instr = instructions.get(i);
+                JVMInstr following = i + 1 < instructions.size()
+                        ? instructions.get(i + 1)
+                        : null;
+                if (instr instanceof JVMInstr.Push push
+                        && push.type() == CType.INT
+                        && following instanceof JVMInstr.Mul mul
+                        && mul.type() == CType.INT
+                        && (Integer) push.value() > 1
+                        && Integer.bitCount((Integer) push.value()) == 1) {
+                    reduced.add(new JVMInstr.Push(CType.INT,
+                            Integer.numberOfTrailingZeros(
+                                    (Integer) push.value())));
+                    reduced.add(new JVMInstr.Shl(CType.INT));
+                    ++i;
+                } else {
+                    reduced.add(instr);
+                }
+            }
+            replaceAll(reduced);
+            return this;
+        }
 
-                default -> {
-                    // assuming an instruction does not change stack size, it
-                    // is not implemented as a case
+        // keeps a line directive only where the line changes. a label
+        // starts over, since it can be jumped to from anywhere
+        public InstructionBuilder dropRepeatedLines() {
+            ArrayList<JVMInstr> kept = new ArrayList<>();
+            JVMInstr.Line current = null;
+            for (int i = 0; i < instructions.size(); i++) {
+                JVMInstr instr = instructions.get(i);
+                if (instr instanceof JVMInstr.Line line) {
+                    boolean next = i + 1 < instructions.size()
+                            && instructions.get(i + 1) instanceof JVMInstr.Line;
+                    if (next || line.equals(current)) {
+                        continue;
+                    }
+                    current = line;
+                } else if (instr instanceof JVMInstr.Label) {
+                    current = null;
                 }
+                kept.add(instr);
             }
+            replaceAll(kept);
+            return this;
         }
 
         public InstructionBuilder optimize() {
-            // TODO implement optimizer
+            return this.removeUnreachable()
+                    .strengthReduce()
+                    .layoutBlocks()
+                    .dropRepeatedLines();
+        }
+
+        // maps the variable addresses onto as few local slots as their live
+        // ranges allow, the first parameterSlots addresses are kept as they are
+        public InstructionBuilder allocateSlots(int parameterSlots) {
+            replaceAll(new SlotAllocator(instructions, parameterSlots)
+                    .allocate());
             return this;
         }
+
+        // exact stack and local usage of the instructions, given the
+        // verification types of the method parameters
+        public FrameAnalysis analyzeFrames(List<String> parameters) {
+            return new FrameAnalysis(instructions, parameters);
+        }
+
+        // adds the stack map frames found by the analysis in front of the
+        // labels that are jumped to
+        public void insertFrames(FrameAnalysis frames) {
+            replaceAll(frames.withFrames());
+        }
     }
 
     // compilation statement cases should leave the size of the stack unchanged
@@ -238,8 +312,23 @@ public class Compiler {
             InstructionBuilder instrs,
             TypedStm stm) {
 
+        // a loop gets its line in front of its test instead, which is where
+        // every iteration starts
+        int line = lineOf(stm);
+        if (line > 0 && !(stm instanceof TypedStm.While)) {
+            instrs.add(new JVMInstr.Line(line));
+        }
+
         switch (stm) {
             case TypedStm.Exp s -> {
+                // an increment whose value is not used needs nothing on the
+                // stack at all
+                JVMInstr.Iinc increment = asIinc(env, s.exp());
+                if (increment != null) {
+                    instrs.add(increment);
+                    return;
+                }
+
                 CType type = s.exp().type();
                 compileExp(env, instrs, s.exp());
                 // pop the value of the expression so that all statements leave
@@ -266,6 +355,25 @@ public class Compiler {
             }
 
             case TypedStm.Return s -> {
+                // a function returning a call of itself does not need a new
+                // frame: the arguments replace the parameters and the method
+                // starts over
+                if (s.exp() instanceof TypedExp.Func call
+                        && call.id().equals(env.currentFuncName())
+                        && !env.currentFuncName().equals("main")) {
+                    for (var argument : call.exps()) {
+                        compileExp(env, instrs, argument);
+                    }
+                    List<VarEntry> parameters = env.parameters();
+                    for (int i = parameters.size() - 1; i >= 0; i--) {
+                        instrs.add(new JVMInstr.Store(
+                                parameters.get(i).type(),
+                                parameters.get(i).address()));
+                    }
+                    instrs.add(new JVMInstr.Goto(env.entryLabel()));
+                    return;
+                }
+
                 compileExp(env, instrs, s.exp());
                 // handle return seperately
                 if (env.currentFuncName().equals("main")) {
@@ -280,11 +388,19 @@ public class Compiler {
                 Integer testLabel = env.nextLabelIncr();
                 Integer endLabel = env.nextLabelIncr();
                 instrs.add(new JVMInstr.Label(testLabel));
+                if (line > 0) {
+                    instrs.add(new JVMInstr.Line(line));
+                }
 
-                // evaluating the boolean expression will leave 1 or 0 on stack
-                compileExp(env, instrs, s.exp());
-
-                instrs.add(new JVMInstr.Ifeq(endLabel));
+                // a loop on a literal condition either never runs or can only
+                // be left through a return, so no test is needed
+                if (s.exp() instanceof TypedExp.BoolLit cond) {
+                    if (!cond.value()) {
+                        instrs.add(new JVMInstr.Goto(endLabel));
+                    }
+                } else {
+                    compileCond(env, instrs, s.exp(), endLabel, false);
+                }
                 env.newContext();
                 compileStm(env, instrs, s.stm());
                 env.removeContext();
@@ -293,12 +409,19 @@ public class Compiler {
             }
 
             case TypedStm.IfElse s -> {
+                // only the arm selected by a literal condition can run
+                if (s.exp() instanceof TypedExp.BoolLit cond) {
+                    env.newContext();
+                    compileStm(env, instrs, cond.value() ? s.stm1() : s.stm2());
+                    env.removeContext();
+                    return;
+                }
+
                 // get needed labels
                 Integer falseLabel = env.nextLabelIncr();
                 Integer trueLabel = env.nextLabelIncr();
 
-                compileExp(env, instrs, s.exp());
-                instrs.add(new JVMInstr.Ifeq(falseLabel));
+                compileCond(env, instrs, s.exp(), falseLabel, false);
                 env.newContext();
                 compileStm(env, instrs, s.stm1());
                 env.removeContext();
@@ -323,6 +446,67 @@ public class Compiler {
         }
     }
 
+    // the source line of the statement, 0 if it has none of its own
+    private int lineOf(TypedStm stm) {
+        return switch (stm) {
+            case TypedStm.Exp s -> s.line();
+            case TypedStm.Init s -> s.line();
+            case TypedStm.Return s -> s.line();
+            case TypedStm.While s -> s.line();
+            case TypedStm.IfElse s -> s.line();
+            default -> 0;
+        };
+    }
+
+    // arithmetic chains that are not regrouped, like the double ones, are as
+    // deep as they are long, so their left spine is compiled from a stack
+    // instead of by recursion
+    private void compileArithmetic(
+            CompilerEnvironment env,
+            InstructionBuilder instrs,
+            TypedExp exp) {
+
+        ArrayDeque<TypedExp> spine = new ArrayDeque<>();
+        TypedExp leftmost = exp;
+        while (true) {
+            if (leftmost instanceof TypedExp.Mul e) {
+                spine.push(e);
+                leftmost = e.exp1();
+            } else if (leftmost instanceof TypedExp.Add e) {
+                spine.push(e);
+                leftmost = e.exp1();
+            } else {
+                break;
+            }
+        }
+
+        compileExp(env, instrs, leftmost);
+        while (!spine.isEmpty()) {
+            switch (spine.pop()) {
+                case TypedExp.Mul e -> {
+                    compileExp(env, instrs, e.exp2());
+                    if (e.operator() == Operator.MUL) {
+                        instrs.add(new JVMInstr.Mul(e.type()));
+                    } else { // Operator.DIV
+                        instrs.add(new JVMInstr.Div(e.type()));
+                    }
+                }
+
+                case TypedExp.Add e -> {
+                    compileExp(env, instrs, e.exp2());
+                    if (e.operator() == Operator.ADD) {
+                        instrs.add(new JVMInstr.Add(e.type()));
+                    } else { // Operator.SUB
+                        instrs.add(new JVMInstr.Sub(e.type()));
+                    }
+                }
+
+                default -> throw new IllegalStateException(
+                        "Only arithmetic is on the spine.");
+            }
+        }
+    }
+
     // compilation of each expression should either increase stack size by
     // 0, 1, or 2 depending on exp types void, int/bool, or double respectivaley
     public void compileExp(
@@ -390,19 +574,15 @@ public class Compiler {
                 }
 
                 // for each expression, calculate it and and put it on top of
-                // the stack. also add them to a newly created context and pop
-                // that context after function call to keep track of limitlocals
-                env.newContext();
+                // the stack
                 LinkedList<CType> inputTypes = new LinkedList<>();
                 for (var inputExp : e.exps()) {
                     CType inputType = inputExp.type();
                     if (inputType != CType.VOID) {
                         inputTypes.add(inputType);
-                        env.extendVar(UUID.randomUUID().toString(), inputType);
                     }
                     compileExp(env, instrs, inputExp);
                 }
-                env.removeContext();
 
                 instrs.add(new JVMInstr.Invokestatic(
                         e.id(),
@@ -412,6 +592,13 @@ public class Compiler {
             }
 
             case TypedExp.Post e -> {
+                JVMInstr.Iinc increment = asIinc(env, e);
+                if (increment != null) {
+                    instrs.add(new JVMInstr.Load(CType.INT, increment.address()));
+                    instrs.add(increment);
+                    return;
+                }
+
                 var varEntry = env.lookupVar(e.id());
                 CType type = varEntry.type();
                 Integer address = varEntry.address();
@@ -427,6 +614,13 @@ public class Compiler {
             }
 
             case TypedExp.Pre e -> {
+                JVMInstr.Iinc increment = asIinc(env, e);
+                if (increment != null) {
+                    instrs.add(increment);
+                    instrs.add(new JVMInstr.Load(CType.INT, increment.address()));
+                    return;
+                }
+
                 var varEntry = env.lookupVar(e.id());
                 CType type = varEntry.type();
                 Integer address = varEntry.address();
@@ -441,25 +635,9 @@ public class Compiler {
                 instrs.add(new JVMInstr.Store(type, address));
             }
 
-            case TypedExp.Mul e -> {
-                compileExp(env, instrs, e.exp1());
-                compileExp(env, instrs, e.exp2());
-                if (e.operator() == Operator.MUL) {
-                    instrs.add(new JVMInstr.Mul(e.type()));
-                } else { // Operator.DIV
-                    instrs.add(new JVMInstr.Div(e.type()));
-                }
-            }
+            case TypedExp.Mul e -> compileArithmetic(env, instrs, e);
 
-            case TypedExp.Add e -> {
-                compileExp(env, instrs, e.exp1());
-                compileExp(env, instrs, e.exp2());
-                if (e.operator() == Operator.ADD) {
-                    instrs.add(new JVMInstr.Add(e.type()));
-                } else { // Operator.SUB
-                    instrs.add(new JVMInstr.Sub(e.type()));
-                }
-            }
+            case TypedExp.Add e -> compileArithmetic(env, instrs, e);
 
             case TypedExp.Cmp e -> {
                 Integer label = env.nextLabelIncr();
@@ -507,6 +685,13 @@ public class Compiler {
             }
 
             case TypedExp.Assign e -> {
+                JVMInstr.Iinc increment = asIinc(env, e);
+                if (increment != null) {
+                    instrs.add(increment);
+                    instrs.add(new JVMInstr.Load(CType.INT, increment.address()));
+                    return;
+                }
+
                 var varEntry = env.lookupVar(e.id());
                 compileExp(env, instrs, e.exp());
                 instrs.add(new JVMInstr.Dup(instrs.getLastNonVoid().type()));
@@ -523,13 +708,132 @@ public class Compiler {
         }
     }
 
-    public String compileFunc(TypedDef.Func function, String className) {
+    // jumps to label when the boolean expression has the value jumpIf and
+    // falls through otherwise. comparisons jump directly, and && and || only
+    // evaluate their right operand when needed, without a 1 or 0 being put
+    // on the stack
+    private void compileCond(
+            CompilerEnvironment env,
+            InstructionBuilder instrs,
+            TypedExp exp,
+            Integer label,
+            boolean jumpIf) {
+
+        switch (exp) {
+            case TypedExp.BoolLit e -> {
+                if (e.value() == jumpIf) {
+                    instrs.add(new JVMInstr.Goto(label));
+                }
+            }
+
+            case TypedExp.Paren e -> compileCond(env, instrs, e.exp(), label,
+                    jumpIf);
+
+            case TypedExp.Cmp e -> {
+                compileExp(env, instrs, e.exp1());
+                compileExp(env, instrs, e.exp2());
+                JVMInstr.Cmp cmp = new JVMInstr.Cmp(
+                        e.exp1().type(),
+                        e.operator(),
+                        label);
+                instrs.add(jumpIf ? cmp : cmp.negate());
+            }
+
+            case TypedExp.And e -> {
+                if (jumpIf) {
+                    Integer skipLabel = env.nextLabelIncr();
+                    compileCond(env, instrs, e.exp1(), skipLabel, false);
+                    compileCond(env, instrs, e.exp2(), label, true);
+                    instrs.add(new JVMInstr.Label(skipLabel));
+                } else {
+                    compileCond(env, instrs, e.exp1(), label, false);
+                    compileCond(env, instrs, e.exp2(), label, false);
+                }
+            }
+
+            case TypedExp.Or e -> {
+                if (jumpIf) {
+                    compileCond(env, instrs, e.exp1(), label, true);
+                    compileCond(env, instrs, e.exp2(), label, true);
+                } else {
+                    Integer skipLabel = env.nextLabelIncr();
+                    compileCond(env, instrs, e.exp1(), skipLabel, true);
+                    compileCond(env, instrs, e.exp2(), label, false);
+                    instrs.add(new JVMInstr.Label(skipLabel));
+                }
+            }
+
+            // evaluating the boolean expression will leave 1 or 0 on stack
+            default -> {
+                compileExp(env, instrs, exp);
+                instrs.add(jumpIf
+                        ? new JVMInstr.Ifne(label)
+                        : new JVMInstr.Ifeq(label));
+            }
+        }
+    }
+
+    // an iinc for expressions that add a constant to an int local: x++, x--,
+    // ++x, --x, x = x + c, x = c + x and x = x - c. null for anything else
+    private JVMInstr.Iinc asIinc(CompilerEnvironment env, TypedExp exp) {
+        String id;
+        long increment;
+        switch (exp) {
+            case TypedExp.Post e -> {
+                id = e.id();
+                increment = e.operator() == Operator.INC ? 1 : -1;
+            }
+
+            case TypedExp.Pre e -> {
+                id = e.id();
+                increment = e.operator() == Operator.INC ? 1 : -1;
+            }
+
+            case TypedExp.Assign e -> {
+                if (!(e.exp() instanceof TypedExp.Add add)) {
+                    return null;
+                }
+                id = e.id();
+                if (add.exp1() instanceof TypedExp.Ident x
+                        && x.id().equals(id)
+                        && add.exp2() instanceof TypedExp.IntLit c) {
+                    // every operator but ADD is a subtraction here
+                    increment = add.operator() == Operator.ADD
+                            ? (long) c.value()
+                            : -(long) c.value();
+                } else if (add.operator() == Operator.ADD
+                        && add.exp1() instanceof TypedExp.IntLit c
+                        && add.exp2() instanceof TypedExp.Ident x
+                        && x.id().equals(id)) {
+                    increment = c.value();
+                } else {
+                    return null;
+                }
+            }
+
+            default -> {
+                return null;
+            }
+        }
+
+        VarEntry varEntry = env.lookupVar(id);
+        if (varEntry.type() != CType.INT
+                || !JVMInstr.Iinc.fits(increment)) {
+            return null;
+        }
+        return new JVMInstr.Iinc(varEntry.address(), (int) increment);
+    }
+
+    //// compiles one function into the instructions of a whole method,
+    //// header and end included
+    public InstructionBuilder compileFunc(TypedDef.Func function,
+            String className) {
 
         CompilerEnvironment env = new CompilerEnvironment(className);
         env.setCurrentFunc(function.funcName());
         env.newContext();
 
-        InstructionBuilder instructions = new InstructionBuilder(env);
+        InstructionBuilder instructions = new InstructionBuilder();
 
         // add function input variables to the environment and assign their
         // bytecode addresses
@@ -542,22 +846,59 @@ public class Compiler {
                     env.nextAddress(CType.VOID)));
         } else {
             for (var arg : function.args()) {
-                env.extendVar(arg.id(), new VarEntry(
-                        arg.type(),
-                        env.nextAddress(arg.type())));
+                env.extendParameter(arg.id(), arg.type());
+            }
+        }
+
+        // only the slots of the parameters are fixed by the method descriptor
+        int parameterSlots = env.addressesInUse();
+
+        if (viaSsa) {
+            SsaFunction ssaFunction = new SsaBuilder().buildFunc(function);
+            new SsaVerifier(ssaFunction).verify();
+            for (JVMInstr instr : new SsaLowering(ssaFunction, className)
+                    .lower()) {
+                instructions.add(instr);
             }
+        } else {
+            // compile the statments in the function
+            for (var stm : function.stms()) {
+                compileStm(env, instructions, stm);
+            }
+            if (env.hasEntryLabel()) {
+                instructions.addFirst(new JVMInstr.Label(env.entryLabel()));
+            }
+        }
+
+        // if execution can reach the end of the function without returning,
+        // add a return at the last line for the function
+        if (instructions.fallsThrough()) {
+            instructions.add(new JVMInstr.Return(CType.VOID));
         }
 
-        // compile the statments in the function
-        for (var stm : function.stms()) {
-            compileStm(env, instructions, stm);
+        instructions.optimize();
+        instructions.allocateSlots(parameterSlots);
+
+        // the limits of the method come from following the final
+        // instructions, main gets the String[] of its arguments
+        LinkedList<String> parameterTypes = new LinkedList<>();
+        if (function.funcName().equals("main")) {
+            parameterTypes.add(FrameAnalysis.STRING_ARRAY);
+        } else {
+            for (var arg : function.args()) {
+                parameterTypes.add(FrameAnalysis.verificationType(arg.type()));
+            }
+        }
+        FrameAnalysis frames = instructions.analyzeFrames(parameterTypes);
+        if (emitFrames) {
+            instructions.insertFrames(frames);
         }
 
         // handle method definition of main and other functions separately
         if (function.funcName().equals("main")) {
             instructions.addFirst(new JVMInstr.DotmethodMain(
-                    env.maxVarAmount(),
-                    env.maxStackSize()));
+                    frames.maxLocals(),
+                    frames.maxStack()));
 
         } else { // functions not main
             // extract format of inputs
@@ -574,30 +915,79 @@ public class Compiler {
                     function.funcName(),
                     parameterCTypes,
                     function.returns(),
-                    env.maxVarAmount(),
-                    env.maxStackSize()));
-        }
-
-        // if no return is given yet, or last instructions is not a return,
-        // add a return at the last line for the function
-        boolean hasReturnInstruction = instructions.stream()
-                .anyMatch(instr -> instr instanceof JVMInstr.Return);
-        if (!hasReturnInstruction ||
-                !(instructions.getLast() instanceof JVMInstr.Return)) {
-            instructions.add(new JVMInstr.Return(CType.VOID));
+                    frames.maxLocals(),
+                    frames.maxStack()));
         }
 
         // end method instruction
         instructions.add(new JVMInstr.DotEndMethod());
 
-        return instructions.optimize().toBytecode();
+        return instructions;
+    }
+
+    //// how many functions are compiled in parallel before they are written
+    //// out and dropped. only that many methods are held in memory at once
+    private static final int BATCH_SIZE =
+            4 * Math.max(1, ForkJoinPool.getCommonPoolParallelism());
+
+    // whether to emit stack map frames for the type checking verifier, which
+    // needs a JasminXT assembler that understands .stack directives
+    private boolean emitFrames;
+
+    // whether to go through the ssa form instead of compiling the typed tree
+    // directly
+    private boolean viaSsa;
+
+    // whether to echo the generated jasmin to standard output as well
+    private boolean debug;
+
+    // name of the c-- file the program came from, for the source file
+    // attribute of the class. null leaves the attribute out
+    private String sourceFile;
+
+    public Compiler() {
+        this(false);
+    }
+
+    public Compiler(boolean emitFrames) {
+        this(emitFrames, false);
+    }
+
+    public Compiler(boolean emitFrames, boolean viaSsa) {
+        this(emitFrames, viaSsa, false);
     }
 
-    //// the output of the compiler.
-    StringBuilder output = new StringBuilder();
+    public Compiler(boolean emitFrames, boolean viaSsa, boolean debug) {
+        this(emitFrames, viaSsa, debug, null);
+    }
+
+    public Compiler(boolean emitFrames, boolean viaSsa, boolean debug,
+            String sourceFile) {
+        this.emitFrames = emitFrames;
+        this.viaSsa = viaSsa;
+        this.debug = debug;
+        this.sourceFile = sourceFile;
+    }
 
     //// name should be just the class name without file extension.
     public String compile(String name, TypedProgram program) {
+        StringWriter writer = new StringWriter();
+        try {
+            compile(name, program, writer);
+        } catch (IOException e) {
+            // a StringWriter never fails
+            throw new UncheckedIOException(e);
+        }
+        return writer.toString();
+    }
+
+    //// writes the class to out method by method as they are compiled, so
+    //// the whole program never has to be held as one string
+    public void compile(String name, TypedProgram program, Writer out)
+            throws IOException {
+
+        // functions too large for the jit are broken up first
+        program = new MethodSplitter().split(program);
 
         LinkedList<TypedDef> definitions = program.defintions();
         // find main function
@@ -617,41 +1007,66 @@ public class Compiler {
                 .map(function -> (TypedDef.Func) function)
                 .toList();
 
-        String mainBytecode = compileFunc(mainFunction, name);
-        List<String> notMainBytecodes = functionsNotMain
-                .stream()
-                .map(function -> compileFunc(function, name))
-                .toList();
+        ArrayList<TypedDef.Func> functions = new ArrayList<>();
+        functions.add(mainFunction);
+        functions.addAll(functionsNotMain);
 
         //// output boilerplate.
-        println(".class public " + name);
-        println(".super java/lang/Object");
-        println();
-        println(".method public <init>()V");
-        println(".limit locals 1");
-        println();
-        println("\taload_0");
-        println("\tinvokespecial java/lang/Object/<init>()V");
-        println("\treturn");
-        println();
-        println(".end method");
-        println();
-
-        output.append(mainBytecode);
-        for (String bytecode : notMainBytecodes) {
-            output.append(bytecode);
-        }
-        System.out.println(output); // turn on for debugging
-        return output.toString();
+        if (emitFrames) {
+            // class files from version 51 on are always verified with the
+            // stack map frames, without falling back to type inference
+            println(out, ".bytecode 51.0");
+        }
+        if (sourceFile != null) {
+            // together with the .line directives this lets stack traces and
+            // profilers point at lines of the c-- source
+            println(out, ".source " + sourceFile);
+        }
+        println(out, ".class public " + name);
+        println(out, ".super java/lang/Object");
+        println(out);
+        println(out, ".method public <init>()V");
+        println(out, ".limit locals 1");
+        println(out, ".limit stack 1");
+        println(out);
+        println(out, "\taload_0");
+        println(out, "\tinvokespecial java/lang/Object/<init>()V");
+        println(out, "\treturn");
+        println(out);
+        println(out, ".end method");
+        println(out);
+
+        // every function is compiled with its own environment and
+        // instruction builder, so a batch of them can be compiled in parallel
+        // on the common fork join pool. toList keeps the order of the
+        // functions, so the output is the same as when compiling one after
+        // the other. each method is written as soon as its batch is done
+        for (int from = 0; from < functions.size(); from += BATCH_SIZE) {
+            int to = Math.min(from + BATCH_SIZE, functions.size());
+            List<InstructionBuilder> methods = functions.subList(from, to)
+                    .parallelStream()
+                    .map(function -> compileFunc(function, name))
+                    .toList();
+            for (InstructionBuilder method : methods) {
+                method.writeTo(out);
+                if (debug) {
+                    System.out.print(method.toBytecode());
+                }
+            }
+        }
+        out.flush();
     }
 
     //// Auxiliary functions for producing output.
-    private void println() {
-        println("");
+    private void println(Writer out) throws IOException {
+        println(out, "");
     }
 
-    private void println(String s) {
-        output.append(s);
-        output.append('\n');
+    private void println(Writer out, String s) throws IOException {
+        out.write(s);
+        out.write('\n');
+        if (debug) {
+            System.out.println(s);
+        }
     }
 }
@@ -0,0 +1,405 @@
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Objects;
+import java.util.Set;
+
+import typed_tree.*;
+
+// folds constant subexpressions and propagates constants assigned to local
+// variables until they are reassigned. runs on the typed tree so that both the
+// interpreter and the compiler benefit from it
+public class ConstantFolder {
+
+    // maps each variable in scope to the literal it currently holds, or to
+    // null if its value is not known at compile time
+    public class FolderEnvironment extends Environment<TypedExp> {
+
+        public FolderEnvironment copy() {
+            FolderEnvironment copy = new FolderEnvironment();
+            for (var context : this.contexts) {
+                copy.contexts.add(new LinkedHashMap<>(context));
+            }
+            copy.currentFuncName = this.currentFuncName;
+            return copy;
+        }
+
+        public void forget(String variableName) {
+            if (this.existsVar(variableName)) {
+                this.assignVar(variableName, null);
+            }
+        }
+
+        public void forgetAll(Set<String> variableNames) {
+            for (String variableName : variableNames) {
+                this.forget(variableName);
+            }
+        }
+
+        // keep only the constants that both environments agree on, used where
+        // two control flow paths join again
+        public void merge(FolderEnvironment other) {
+            for (int i = 0; i < this.contexts.size(); i++) {
+                var context = this.contexts.get(i);
+                var otherContext = other.contexts.get(i);
+                for (var entry : context.entrySet()) {
+                    if (!Objects.equals(entry.getValue(),
+                            otherContext.get(entry.getKey()))) {
+                        entry.setValue(null);
+                    }
+                }
+            }
+        }
+    }
+
+    public TypedStm foldStm(FolderEnvironment env, TypedStm stm) {
+        return switch (stm) {
+
+            case TypedStm.Exp s -> {
+                TypedExp folded = foldExp(env, s.exp());
+                yield new TypedStm.Exp(folded.type(), folded, s.line());
+            }
+
+            case TypedStm.Decls s -> {
+                for (String name : s.names()) {
+                    env.extendVar(name, null);
+                }
+                yield s;
+            }
+
+            case TypedStm.Init s -> {
+                // the expression is evaluated before the variable exists, the
+                // same order as the interpreter uses
+                TypedExp folded = foldExp(env, s.exp());
+                env.extendVar(s.name(), asConstant(folded));
+                yield new TypedStm.Init(s.type(), s.name(), folded, s.line());
+            }
+
+            case TypedStm.Return s -> {
+                yield new TypedStm.Return(foldExp(env, s.exp()), s.line());
+            }
+
+            case TypedStm.While s -> {
+                // anything written in the loop can differ between iterations,
+                // so it is unknown both inside and after the loop
+                Set<String> assigned = TreeAnalysis.assignedVars(s);
+                env.forgetAll(assigned);
+
+                TypedExp foldedExp = foldExp(env, s.exp());
+                env.newContext();
+                TypedStm foldedStm = foldStm(env, s.stm());
+                env.removeContext();
+
+                // the body may have assigned constants, which only hold if it
+                // ran, and the loop may run zero times
+                env.forgetAll(assigned);
+                yield new TypedStm.While(foldedExp, foldedStm, s.line());
+            }
+
+            case TypedStm.IfElse s -> {
+                TypedExp foldedExp = foldExp(env, s.exp());
+
+                // fold each branch from the same starting point and keep what
+                // is known on both paths afterwards
+                FolderEnvironment elseEnv = env.copy();
+
+                env.newContext();
+                TypedStm foldedStm1 = foldStm(env, s.stm1());
+                env.removeContext();
+
+                elseEnv.newContext();
+                TypedStm foldedStm2 = foldStm(elseEnv, s.stm2());
+                elseEnv.removeContext();
+
+                env.merge(elseEnv);
+                yield new TypedStm.IfElse(foldedExp, foldedStm1, foldedStm2,
+                        s.line());
+            }
+
+            case TypedStm.Block s -> {
+                env.newContext();
+                LinkedList<TypedStm> foldedStms = new LinkedList<>();
+                for (var statement : s.stms()) {
+                    foldedStms.add(foldStm(env, statement));
+                }
+                env.removeContext();
+                yield new TypedStm.Block(foldedStms);
+            }
+
+            default -> throw new RuntimeException(
+                    "Statement " + stm.getClass() + " not yet implemented.");
+        };
+    }
+
+    public TypedExp foldExp(FolderEnvironment env, TypedExp exp) {
+        return switch (exp) {
+
+            // parentheses only matter for parsing, drop them
+            case TypedExp.Paren e -> foldExp(env, e.exp());
+
+            case TypedExp.BoolLit e -> e;
+
+            case TypedExp.IntLit e -> e;
+
+            case TypedExp.DoubleLit e -> e;
+
+            case TypedExp.Ident e -> {
+                TypedExp constant = env.lookupVar(e.id());
+                yield constant != null ? constant : e;
+            }
+
+            case TypedExp.Func e -> {
+                // functions can not see the locals of the caller, so a call
+                // never invalidates any known constants
+                LinkedList<TypedExp> foldedExps = new LinkedList<>();
+                for (var argument : e.exps()) {
+                    foldedExps.add(foldExp(env, argument));
+                }
+                yield new TypedExp.Func(e.id(), foldedExps, e.type());
+            }
+
+            case TypedExp.Post e -> {
+                env.assignVar(e.id(), stepConstant(env.lookupVar(e.id()),
+                        e.operator()));
+                yield e;
+            }
+
+            case TypedExp.Pre e -> {
+                env.assignVar(e.id(), stepConstant(env.lookupVar(e.id()),
+                        e.operator()));
+                yield e;
+            }
+
+            case TypedExp.Mul _ -> TreeAnalysis.foldSpine(
+                    exp, operand -> foldExp(env, operand),
+                    this::foldArithmetic);
+
+            case TypedExp.Add _ -> TreeAnalysis.foldSpine(
+                    exp, operand -> foldExp(env, operand),
+                    this::foldArithmetic);
+
+            case TypedExp.Cmp e -> {
+                TypedExp exp1 = foldExp(env, e.exp1());
+                TypedExp exp2 = foldExp(env, e.exp2());
+
+                if (exp1 instanceof TypedExp.BoolLit lhs
+                        && exp2 instanceof TypedExp.BoolLit rhs) {
+                    boolean equal = lhs.value().booleanValue()
+                            == rhs.value().booleanValue();
+                    yield new TypedExp.BoolLit(e.operator() == Operator.EQU
+                            ? equal
+                            : !equal); // Operator.NEQ
+                } else if (exp1 instanceof TypedExp.IntLit lhs
+                        && exp2 instanceof TypedExp.IntLit rhs) {
+                    yield new TypedExp.BoolLit(compare(e.operator(),
+                            lhs.value(), rhs.value()));
+                } else if (exp1 instanceof TypedExp.DoubleLit lhs
+                        && exp2 instanceof TypedExp.DoubleLit rhs) {
+                    yield new TypedExp.BoolLit(compare(e.operator(),
+                            lhs.value(), rhs.value()));
+                }
+                yield new TypedExp.Cmp(exp1, exp2, e.operator());
+            }
+
+            case TypedExp.And e -> {
+                TypedExp exp1 = foldExp(env, e.exp1());
+                if (exp1 instanceof TypedExp.BoolLit lhs) {
+                    if (!lhs.value()) {
+                        yield lhs; // short circuit, rhs is never evaluated
+                    }
+                    yield foldExp(env, e.exp2());
+                }
+
+                // the rhs is only evaluated sometimes
+                TypedExp exp2 = foldExp(env, e.exp2());
+                env.forgetAll(TreeAnalysis.assignedVars(exp2));
+
+                if (exp2 instanceof TypedExp.BoolLit rhs) {
+                    if (rhs.value()) {
+                        yield exp1;
+                    } else if (TreeAnalysis.isPure(exp1)) {
+                        yield rhs;
+                    }
+                }
+                yield new TypedExp.And(exp1, exp2);
+            }
+
+            case TypedExp.Or e -> {
+                TypedExp exp1 = foldExp(env, e.exp1());
+                if (exp1 instanceof TypedExp.BoolLit lhs) {
+                    if (lhs.value()) {
+                        yield lhs; // short circuit, rhs is never evaluated
+                    }
+                    yield foldExp(env, e.exp2());
+                }
+
+                // the rhs is only evaluated sometimes
+                TypedExp exp2 = foldExp(env, e.exp2());
+                env.forgetAll(TreeAnalysis.assignedVars(exp2));
+
+                if (exp2 instanceof TypedExp.BoolLit rhs) {
+                    if (!rhs.value()) {
+                        yield exp1;
+                    } else if (TreeAnalysis.isPure(exp1)) {
+                        yield rhs;
+                    }
+                }
+                yield new TypedExp.Or(exp1, exp2);
+            }
+
+            case TypedExp.Assign e -> {
+                TypedExp folded = foldExp(env, e.exp());
+                env.assignVar(e.id(), asConstant(folded));
+                yield new TypedExp.Assign(e.id(), folded, e.type());
+            }
+
+            case TypedExp.Int2Double e -> {
+                TypedExp folded = foldExp(env, e.exp());
+                if (folded instanceof TypedExp.IntLit intLit) {
+                    yield new TypedExp.DoubleLit(intLit.value().doubleValue());
+                }
+                yield new TypedExp.Int2Double(folded);
+            }
+
+            default -> throw new RuntimeException(
+                    "Expression " + exp.getClass() + " not yet implemented.");
+        };
+    }
+
+    // one node of an arithmetic chain, once its operands are folded
+    private TypedExp foldArithmetic(TypedExp node, TypedExp exp1,
+            TypedExp exp2) {
+        return switch (node) {
+            case TypedExp.Mul e -> {
+                if (exp1 instanceof TypedExp.IntLit lhs
+                        && exp2 instanceof TypedExp.IntLit rhs) {
+                    if (e.operator() == Operator.MUL) {
+                        yield new TypedExp.IntLit(lhs.value() * rhs.value());
+                    }
+                    // division by zero has to throw at runtime
+                    if (rhs.value() != 0) {
+                        yield new TypedExp.IntLit(lhs.value() / rhs.value());
+                    }
+                } else if (exp1 instanceof TypedExp.DoubleLit lhs
+                        && exp2 instanceof TypedExp.DoubleLit rhs) {
+                    double result = e.operator() == Operator.MUL
+                            ? lhs.value() * rhs.value()
+                            : lhs.value() / rhs.value(); // Operator.DIV
+                    if (isRepresentable(result)) {
+                        yield new TypedExp.DoubleLit(result);
+                    }
+                }
+                yield new TypedExp.Mul(exp1, exp2, e.type(), e.operator());
+            }
+
+            case TypedExp.Add e -> {
+                // the backends treat every operator other than ADD as a
+                // subtraction
+                if (exp1 instanceof TypedExp.IntLit lhs
+                        && exp2 instanceof TypedExp.IntLit rhs) {
+                    yield new TypedExp.IntLit(e.operator() == Operator.ADD
+                            ? lhs.value() + rhs.value()
+                            : lhs.value() - rhs.value());
+                } else if (exp1 instanceof TypedExp.DoubleLit lhs
+                        && exp2 instanceof TypedExp.DoubleLit rhs) {
+                    double result = e.operator() == Operator.ADD
+                            ? lhs.value() + rhs.value()
+                            : lhs.value() - rhs.value();
+                    if (isRepresentable(result)) {
+                        yield new TypedExp.DoubleLit(result);
+                    }
+                }
+                yield new TypedExp.Add(exp1, exp2, e.type(), e.operator());
+            }
+
+            default -> throw new IllegalArgumentException(
+                    "Only arithmetic is on the spine.");
+        };
+    }
+
+    public TypedDef.Func foldFunc(TypedDef.Func function) {
+        FolderEnvironment env = new FolderEnvironment();
+        env.setCurrentFunc(function.funcName());
+        env.newContext();
+
+        // parameters are never known at compile time
+        for (var arg : function.args()) {
+            env.extendVar(arg.id(), null);
+        }
+
+        LinkedList<TypedStm> foldedStms = new LinkedList<>();
+        for (var stm : function.stms()) {
+            foldedStms.add(foldStm(env, stm));
+        }
+
+        return new TypedDef.Func(
+                function.returns(),
+                function.args(),
+                foldedStms,
+                function.funcName());
+    }
+
+    public TypedProgram fold(TypedProgram program) {
+        LinkedList<TypedDef> foldedDefs = new LinkedList<>();
+        for (TypedDef def : program.defintions()) {
+            foldedDefs.add(foldFunc((TypedDef.Func) def));
+        }
+        return new TypedProgram(foldedDefs);
+    }
+
+    // the value a variable holds after being assigned the expression
+    private TypedExp asConstant(TypedExp exp) {
+        return TreeAnalysis.isLiteral(exp) ? exp : null;
+    }
+
+    private TypedExp stepConstant(TypedExp constant, Operator operator) {
+        int step = operator == Operator.INC ? 1 : -1;
+        return switch (constant) {
+            case TypedExp.IntLit intLit -> new TypedExp.IntLit(
+                    intLit.value() + step);
+            case TypedExp.DoubleLit doubleLit -> {
+                double result = doubleLit.value() + step;
+                yield isRepresentable(result)
+                        ? new TypedExp.DoubleLit(result)
+                        : null;
+            }
+            case null, default -> null;
+        };
+    }
+
+    private boolean compare(Operator operator, int lhs, int rhs) {
+        return switch (operator) {
+            case Operator.LTH -> lhs < rhs;
+            case Operator.GTH -> lhs > rhs;
+            case Operator.LTE -> lhs <= rhs;
+            case Operator.GTE -> lhs >= rhs;
+            case Operator.EQU -> lhs == rhs;
+            case Operator.NEQ -> lhs != rhs;
+            default -> throw new IllegalArgumentException(
+                    "Unsupported int operator " + operator);
+        };
+    }
+
+    // uses the primitive IEEE comparisons, the same as dcmpg in the compiled
+    // code, so NaN is unordered and 0.0 == -0.0
+    private boolean compare(Operator operator, double lhs, double rhs) {
+        return switch (operator) {
+            case Operator.LTH -> lhs < rhs;
+            case Operator.GTH -> lhs > rhs;
+            case Operator.LTE -> lhs <= rhs;
+            case Operator.GTE -> lhs >= rhs;
+            case Operator.EQU -> lhs == rhs;
+            case Operator.NEQ -> lhs != rhs;
+            default -> throw new IllegalArgumentException(
+                    "Unsupported double operator " + operator);
+        };
+    }
+
+    // results that can not be written as a double literal in jasmin (NaN,
+    // infinities) or that JVMInstr.Push would lose the sign of (-0.0) are left
+    // to be computed at runtime
+    public static boolean isRepresentable(double value) {
+        return Double.isFinite(value)
+                && Double.doubleToRawLongBits(value)
+                        != Double.doubleToRawLongBits(-0.0);
+    }
+}
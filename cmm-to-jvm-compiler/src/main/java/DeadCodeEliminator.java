@@ -0,0 +1,125 @@
+import java.util.LinkedList;
+import java.util.List;
+
+import typed_tree.*;
+
+// removes statements that can never run or that have no effect: anything
+// after a return, the untaken arm of an if with a constant condition,
+// 'while (false)' loops and expression statements without side effects. best
+// run after constant folding so that more conditions are literals
+public class DeadCodeEliminator {
+
+    // returns the simplified statement, or null if it can be removed entirely
+    public TypedStm eliminateStm(TypedStm stm) {
+        return switch (stm) {
+
+            case TypedStm.Exp s -> {
+                yield TreeAnalysis.isPure(s.exp()) ? null : s;
+            }
+
+            case TypedStm.Decls s -> s;
+
+            case TypedStm.Init s -> s;
+
+            case TypedStm.Return s -> s;
+
+            case TypedStm.While s -> {
+                if (s.exp() instanceof TypedExp.BoolLit cond && !cond.value()) {
+                    yield null;
+                }
+                yield new TypedStm.While(s.exp(),
+                        asBranch(eliminateStm(s.stm())), s.line());
+            }
+
+            case TypedStm.IfElse s -> {
+                // a constant condition selects one arm, which keeps its own
+                // scope by being wrapped in a block
+                if (s.exp() instanceof TypedExp.BoolLit cond) {
+                    TypedStm taken = eliminateStm(cond.value()
+                            ? s.stm1()
+                            : s.stm2());
+                    if (taken == null) {
+                        yield null;
+                    }
+                    yield new TypedStm.Block(
+                            new LinkedList<>(List.of(taken)));
+                }
+
+                TypedStm stm1 = eliminateStm(s.stm1());
+                TypedStm stm2 = eliminateStm(s.stm2());
+                if (stm1 == null && stm2 == null
+                        && TreeAnalysis.isPure(s.exp())) {
+                    yield null;
+                }
+                yield new TypedStm.IfElse(s.exp(), asBranch(stm1),
+                        asBranch(stm2), s.line());
+            }
+
+            case TypedStm.Block s -> {
+                LinkedList<TypedStm> stms = eliminateStms(s.stms());
+                yield stms.isEmpty() ? null : new TypedStm.Block(stms);
+            }
+
+            default -> throw new RuntimeException(
+                    "Statement " + stm.getClass() + " not yet implemented.");
+        };
+    }
+
+    // simplifies a statement list and cuts it after the first statement that
+    // can not complete normally
+    public LinkedList<TypedStm> eliminateStms(LinkedList<TypedStm> stms) {
+        LinkedList<TypedStm> result = new LinkedList<>();
+        for (TypedStm stm : stms) {
+            TypedStm eliminated = eliminateStm(stm);
+            if (eliminated == null) {
+                continue;
+            }
+            result.add(eliminated);
+            if (!canCompleteNormally(eliminated)) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    // whether execution can continue with the next statement after this one.
+    // c-- has no break, so a 'while (true)' loop can only be left by returning
+    public boolean canCompleteNormally(TypedStm stm) {
+        return switch (stm) {
+            case TypedStm.Return _ -> false;
+
+            case TypedStm.While s -> !(s.exp() instanceof TypedExp.BoolLit cond
+                    && cond.value());
+
+            case TypedStm.IfElse s -> canCompleteNormally(s.stm1())
+                    || canCompleteNormally(s.stm2());
+
+            case TypedStm.Block s -> s.stms().stream()
+                    .allMatch(this::canCompleteNormally);
+
+            default -> true;
+        };
+    }
+
+    public TypedDef.Func eliminateFunc(TypedDef.Func function) {
+        return new TypedDef.Func(
+                function.returns(),
+                function.args(),
+                eliminateStms(function.stms()),
+                function.funcName());
+    }
+
+    public TypedProgram eliminate(TypedProgram program) {
+        LinkedList<TypedDef> definitions = new LinkedList<>();
+        for (TypedDef def : program.defintions()) {
+            definitions.add(eliminateFunc((TypedDef.Func) def));
+        }
+        return new TypedProgram(definitions);
+    }
+
+    // loop bodies and if arms must be a statement, use an empty block for
+    // ones that were removed
+    private TypedStm asBranch(TypedStm stm) {
+        return stm != null ? stm : new TypedStm.Block(new LinkedList<>());
+    }
+}
@@ -0,0 +1,316 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import typed_tree.*;
+
+// removes what the program as a whole never needs. functions main can not
+// reach through the call graph are dropped. a parameter that every call
+// passes the same literal becomes a local holding that literal, and a
+// parameter the function never reads is removed together with the argument
+// of every call, as long as the arguments can be dropped without losing an
+// effect. main keeps its signature. repeats until nothing changes, since
+// dropping arguments can leave parameters of the callers unread
+public class DeadFunctionEliminator {
+
+    private LinkedList<TypedDef.Func> functions;
+
+    // the parameter positions removed from each function in this round
+    private HashMap<String, Set<Integer>> removed;
+
+    public TypedProgram eliminate(TypedProgram program) {
+        functions = new LinkedList<>();
+        for (TypedDef def : program.defintions()) {
+            functions.add((TypedDef.Func) def);
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = removeUnreachable();
+            changed |= removeParameters();
+        }
+
+        return new TypedProgram(new LinkedList<>(functions));
+    }
+
+    private boolean removeUnreachable() {
+        Set<String> reachable = new CallGraph(new TypedProgram(
+                new LinkedList<>(functions))).reachableFrom("main");
+        return functions.removeIf(
+                function -> !reachable.contains(function.funcName()));
+    }
+
+    private boolean removeParameters() {
+        HashMap<String, List<TypedExp.Func>> calls = new HashMap<>();
+        for (TypedDef.Func function : functions) {
+            for (TypedStm stm : function.stms()) {
+                collectCalls(stm, calls);
+            }
+        }
+
+        removed = new HashMap<>();
+        LinkedList<TypedDef.Func> rewritten = new LinkedList<>();
+        for (TypedDef.Func function : functions) {
+            rewritten.add(function.funcName().equals("main")
+                    ? function
+                    : pruneParameters(function,
+                            calls.getOrDefault(function.funcName(),
+                                    List.of())));
+        }
+        if (removed.isEmpty()) {
+            return false;
+        }
+
+        functions = new LinkedList<>();
+        for (TypedDef.Func function : rewritten) {
+            LinkedList<TypedStm> stms = new LinkedList<>();
+            for (TypedStm stm : function.stms()) {
+                stms.add(rewriteStm(stm));
+            }
+            functions.add(new TypedDef.Func(function.returns(),
+                    function.args(), stms, function.funcName()));
+        }
+        return true;
+    }
+
+    // the function without the parameters that can go, the constant ones
+    // declared as locals at the start of its body instead
+    private TypedDef.Func pruneParameters(TypedDef.Func function,
+            List<TypedExp.Func> calls) {
+        // reads and writes both count, a written parameter is still declared
+        Set<String> used = new HashSet<>();
+        for (TypedStm stm : function.stms()) {
+            used.addAll(TreeAnalysis.usedVars(stm));
+        }
+
+        TreeSet<Integer> positions = new TreeSet<>();
+        LinkedList<TypedArg> args = new LinkedList<>();
+        LinkedList<TypedStm> constants = new LinkedList<>();
+        int position = 0;
+        for (TypedArg arg : function.args()) {
+            TypedExp constant = commonLiteral(calls, position, arg.type());
+            if (constant != null) {
+                if (used.contains(arg.id())) {
+                    constants.add(new TypedStm.Init(arg.type(), arg.id(),
+                            constant));
+                }
+                positions.add(position);
+            } else if (!used.contains(arg.id())
+                    && allPure(calls, position)) {
+                positions.add(position);
+            } else {
+                args.add(arg);
+            }
+            ++position;
+        }
+
+        if (positions.isEmpty()) {
+            return function;
+        }
+        removed.put(function.funcName(), positions);
+        LinkedList<TypedStm> stms = new LinkedList<>(constants);
+        stms.addAll(function.stms());
+        return new TypedDef.Func(function.returns(), args, stms,
+                function.funcName());
+    }
+
+    // the literal every call passes at the position, or null if they differ
+    private TypedExp commonLiteral(List<TypedExp.Func> calls, int position,
+            CType type) {
+        TypedExp common = null;
+        for (TypedExp.Func call : calls) {
+            TypedExp argument = call.exps().get(position);
+            if (!TreeAnalysis.isLiteral(argument)
+                    || argument.type() != type
+                    || common != null && !common.equals(argument)) {
+                return null;
+            }
+            common = argument;
+        }
+        return common;
+    }
+
+    private boolean allPure(List<TypedExp.Func> calls, int position) {
+        for (TypedExp.Func call : calls) {
+            if (!TreeAnalysis.isPure(call.exps().get(position))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //// finding the calls
+
+    private void collectCalls(TypedStm stm,
+            HashMap<String, List<TypedExp.Func>> calls) {
+        switch (stm) {
+            case TypedStm.Exp s -> collectCalls(s.exp(), calls);
+
+            case TypedStm.Decls _ -> {
+                // declarations contain no calls
+            }
+
+            case TypedStm.Init s -> collectCalls(s.exp(), calls);
+
+            case TypedStm.Return s -> collectCalls(s.exp(), calls);
+
+            case TypedStm.While s -> {
+                collectCalls(s.exp(), calls);
+                collectCalls(s.stm(), calls);
+            }
+
+            case TypedStm.Block s -> {
+                for (var statement : s.stms()) {
+                    collectCalls(statement, calls);
+                }
+            }
+
+            case TypedStm.IfElse s -> {
+                collectCalls(s.exp(), calls);
+                collectCalls(s.stm1(), calls);
+                collectCalls(s.stm2(), calls);
+            }
+
+            default -> throw new RuntimeException(
+                    "Statement " + stm.getClass() + " not yet implemented.");
+        }
+    }
+
+    private void collectCalls(TypedExp exp,
+            HashMap<String, List<TypedExp.Func>> calls) {
+        switch (exp) {
+            case TypedExp.Paren e -> collectCalls(e.exp(), calls);
+
+            case TypedExp.Func e -> {
+                calls.computeIfAbsent(e.id(), _ -> new ArrayList<>()).add(e);
+                for (var argument : e.exps()) {
+                    collectCalls(argument, calls);
+                }
+            }
+
+            case TypedExp.Mul _ -> {
+                for (TypedExp operand : TreeAnalysis.spineOperands(exp)) {
+                    collectCalls(operand, calls);
+                }
+            }
+
+            case TypedExp.Add _ -> {
+                for (TypedExp operand : TreeAnalysis.spineOperands(exp)) {
+                    collectCalls(operand, calls);
+                }
+            }
+
+            case TypedExp.Cmp e -> {
+                collectCalls(e.exp1(), calls);
+                collectCalls(e.exp2(), calls);
+            }
+
+            case TypedExp.And e -> {
+                collectCalls(e.exp1(), calls);
+                collectCalls(e.exp2(), calls);
+            }
+
+            case TypedExp.Or e -> {
+                collectCalls(e.exp1(), calls);
+                collectCalls(e.exp2(), calls);
+            }
+
+            case TypedExp.Assign e -> collectCalls(e.exp(), calls);
+
+            case TypedExp.Int2Double e -> collectCalls(e.exp(), calls);
+
+            default -> {
+                // literals, identifiers and increments contain no calls
+            }
+        }
+    }
+
+    //// dropping the arguments of removed parameters
+
+    private TypedStm rewriteStm(TypedStm stm) {
+        return switch (stm) {
+            case TypedStm.Exp s -> new TypedStm.Exp(s.type(),
+                    rewriteExp(s.exp()), s.line());
+
+            case TypedStm.Decls s -> s;
+
+            case TypedStm.Init s -> new TypedStm.Init(s.type(), s.name(),
+                    rewriteExp(s.exp()), s.line());
+
+            case TypedStm.Return s -> new TypedStm.Return(
+                    rewriteExp(s.exp()), s.line());
+
+            case TypedStm.While s -> new TypedStm.While(
+                    rewriteExp(s.exp()),
+                    rewriteStm(s.stm()), s.line());
+
+            case TypedStm.IfElse s -> new TypedStm.IfElse(
+                    rewriteExp(s.exp()),
+                    rewriteStm(s.stm1()),
+                    rewriteStm(s.stm2()), s.line());
+
+            case TypedStm.Block s -> {
+                LinkedList<TypedStm> stms = new LinkedList<>();
+                for (var statement : s.stms()) {
+                    stms.add(rewriteStm(statement));
+                }
+                yield new TypedStm.Block(stms);
+            }
+
+            default -> throw new RuntimeException(
+                    "Statement " + stm.getClass() + " not yet implemented.");
+        };
+    }
+
+    private TypedExp rewriteExp(TypedExp exp) {
+        return switch (exp) {
+            case TypedExp.Paren e -> new TypedExp.Paren(
+                    rewriteExp(e.exp()), e.type());
+
+            case TypedExp.Func e -> {
+                Set<Integer> positions = removed.getOrDefault(e.id(),
+                        Set.of());
+                LinkedList<TypedExp> args = new LinkedList<>();
+                int position = 0;
+                for (var argument : e.exps()) {
+                    if (!positions.contains(position++)) {
+                        args.add(rewriteExp(argument));
+                    }
+                }
+                yield new TypedExp.Func(e.id(), args, e.type());
+            }
+
+            case TypedExp.Mul _ -> TreeAnalysis.foldSpine(
+                    exp, this::rewriteExp, TreeAnalysis::withOperands);
+
+            case TypedExp.Add _ -> TreeAnalysis.foldSpine(
+                    exp, this::rewriteExp, TreeAnalysis::withOperands);
+
+            case TypedExp.Cmp e -> new TypedExp.Cmp(
+                    rewriteExp(e.exp1()),
+                    rewriteExp(e.exp2()),
+                    e.operator());
+
+            case TypedExp.And e -> new TypedExp.And(
+                    rewriteExp(e.exp1()),
+                    rewriteExp(e.exp2()));
+
+            case TypedExp.Or e -> new TypedExp.Or(
+                    rewriteExp(e.exp1()),
+                    rewriteExp(e.exp2()));
+
+            case TypedExp.Assign e -> new TypedExp.Assign(e.id(),
+                    rewriteExp(e.exp()), e.type());
+
+            case TypedExp.Int2Double e -> new TypedExp.Int2Double(
+                    rewriteExp(e.exp()));
+
+            // literals, identifiers and increments
+            default -> exp;
+        };
+    }
+}
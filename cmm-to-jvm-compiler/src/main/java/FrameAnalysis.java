@@ -0,0 +1,331 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+import typed_tree.*;
+
+// dataflow analysis over the instructions of a method body. it follows every
+// path through the control flow graph and records the types on the stack and
+// in the locals before each instruction. from that it derives the exact
+// .limit stack and .limit locals of the method and the stack map frames that
+// the type checking verifier needs at every jump target
+public class FrameAnalysis {
+
+    // verification types
+    public static final String TOP = "Top";
+    public static final String INTEGER = "Integer";
+    public static final String DOUBLE = "Double";
+    public static final String STRING_ARRAY = "Object [Ljava/lang/String;";
+
+    // marks the second slot of a double in the locals. it is never printed
+    // since a Double entry in a frame covers two slots
+    private static final String DOUBLE_HIGH = "Double_high";
+
+    // types in the locals, one entry per slot, and on the stack, one entry
+    // per value
+    private record State(ArrayList<String> locals, ArrayList<String> stack) {
+
+        State copy() {
+            return new State(new ArrayList<>(locals), new ArrayList<>(stack));
+        }
+
+        int stackSize() {
+            int size = 0;
+            for (String value : stack) {
+                size += value.equals(DOUBLE) ? 2 : 1;
+            }
+            return size;
+        }
+    }
+
+    private ArrayList<JVMInstr> instrs;
+    private HashMap<Integer, Integer> labelIndices = new HashMap<>();
+    private State[] states;
+    private int maxStack = 0;
+    private int maxLocals;
+
+    // parameters are the verification types of the arguments of the method,
+    // one entry per argument
+    public FrameAnalysis(List<JVMInstr> body, List<String> parameters) {
+        this.instrs = new ArrayList<>(body);
+        for (int i = 0; i < instrs.size(); i++) {
+            if (instrs.get(i) instanceof JVMInstr.Label label) {
+                labelIndices.put(label.label(), i);
+            }
+        }
+
+        ArrayList<String> locals = new ArrayList<>();
+        for (String parameter : parameters) {
+            locals.add(parameter);
+            if (parameter.equals(DOUBLE)) {
+                locals.add(DOUBLE_HIGH);
+            }
+        }
+        this.maxLocals = locals.size();
+        this.states = new State[instrs.size() + 1];
+        analyze(new State(locals, new ArrayList<>()));
+    }
+
+    public static String verificationType(CType type) {
+        return switch (type) {
+            case CType.INT, CType.BOOL -> INTEGER;
+            case CType.DOUBLE -> DOUBLE;
+            default -> throw new IllegalArgumentException(
+                    "No verification type for " + type);
+        };
+    }
+
+    public int maxStack() {
+        return maxStack;
+    }
+
+    public int maxLocals() {
+        return maxLocals;
+    }
+
+    // the body with a frame in front of every label that is jumped to.
+    // labels and line numbers directly following each other take no space,
+    // so the run of them is one bytecode offset and gets one frame. it is
+    // the state after the run, which is merged over every way into it
+    public LinkedList<JVMInstr> withFrames() {
+        HashSet<Integer> targets = new HashSet<>();
+        for (int i = 0; i < instrs.size(); i++) {
+            Integer target = instrs.get(i).jumpTarget();
+            if (states[i] != null && target != null) {
+                targets.add(target);
+            }
+        }
+
+        LinkedList<JVMInstr> framed = new LinkedList<>();
+        for (int i = 0; i < instrs.size(); i++) {
+            JVMInstr instr = instrs.get(i);
+            if (isZeroWidth(instr)
+                    && (i == 0 || !isZeroWidth(instrs.get(i - 1)))) {
+                Integer first = null;
+                boolean isTarget = false;
+                int end = i;
+                while (end < instrs.size() && isZeroWidth(instrs.get(end))) {
+                    if (instrs.get(end) instanceof JVMInstr.Label label) {
+                        first = first == null ? label.label() : first;
+                        isTarget |= targets.contains(label.label());
+                    }
+                    ++end;
+                }
+                if (isTarget && states[end] != null) {
+                    framed.add(frame(first, states[end]));
+                }
+            }
+            framed.add(instr);
+        }
+        return framed;
+    }
+
+    // labels and line numbers are not instructions of the bytecode
+    private static boolean isZeroWidth(JVMInstr instr) {
+        return instr instanceof JVMInstr.Label
+                || instr instanceof JVMInstr.Line;
+    }
+
+    private JVMInstr.StackMapFrame frame(Integer label, State state) {
+        // trailing unused slots can be left out of the frame
+        int last = state.locals().size() - 1;
+        while (last >= 0 && state.locals().get(last).equals(TOP)) {
+            --last;
+        }
+        LinkedList<String> locals = new LinkedList<>();
+        for (int slot = 0; slot <= last; slot++) {
+            String local = state.locals().get(slot);
+            if (!local.equals(DOUBLE_HIGH)) {
+                locals.add(local);
+            }
+        }
+        return new JVMInstr.StackMapFrame(label, locals,
+                new LinkedList<>(state.stack()));
+    }
+
+    private void analyze(State entry) {
+        ArrayDeque<Integer> worklist = new ArrayDeque<>();
+        states[0] = entry;
+        worklist.push(0);
+
+        while (!worklist.isEmpty()) {
+            int index = worklist.pop();
+            if (index == instrs.size()) {
+                continue;
+            }
+            JVMInstr instr = instrs.get(index);
+            State out = transfer(instr, states[index].copy());
+
+            if (instr.fallsThrough()) {
+                flowInto(index + 1, out, worklist);
+            }
+            if (instr.jumpTarget() != null) {
+                flowInto(labelIndices.get(instr.jumpTarget()), out, worklist);
+            }
+        }
+    }
+
+    private void flowInto(int index, State incoming,
+            ArrayDeque<Integer> worklist) {
+        if (states[index] == null) {
+            states[index] = incoming.copy();
+            worklist.push(index);
+            return;
+        }
+
+        State current = states[index];
+        if (!current.stack().equals(incoming.stack())) {
+            throw new IllegalStateException("Inconsistent stack at "
+                    + instrs.get(index) + ": " + current.stack() + " and "
+                    + incoming.stack());
+        }
+
+        // a local is only known at a join if it has the same type on all
+        // incoming paths
+        boolean changed = false;
+        for (int slot = 0; slot < current.locals().size(); slot++) {
+            String local = current.locals().get(slot);
+            String other = slot < incoming.locals().size()
+                    ? incoming.locals().get(slot)
+                    : TOP;
+            if (!local.equals(TOP) && !local.equals(other)) {
+                current.locals().set(slot, TOP);
+                changed = true;
+            }
+        }
+        changed |= dropBrokenDoubles(current.locals());
+        if (changed) {
+            worklist.push(index);
+        }
+    }
+
+    // a double is only usable if both of its halves survived the join
+    private boolean dropBrokenDoubles(ArrayList<String> locals) {
+        boolean changed = false;
+        for (int slot = 0; slot < locals.size(); slot++) {
+            boolean brokenLow = locals.get(slot).equals(DOUBLE)
+                    && (slot + 1 >= locals.size()
+                            || !locals.get(slot + 1).equals(DOUBLE_HIGH));
+            boolean brokenHigh = locals.get(slot).equals(DOUBLE_HIGH)
+                    && (slot == 0 || !locals.get(slot - 1).equals(DOUBLE));
+            if (brokenLow || brokenHigh) {
+                locals.set(slot, TOP);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private State transfer(JVMInstr instr, State state) {
+        switch (instr) {
+
+            case JVMInstr.Invokestatic i -> {
+                pop(state, i.varTypes().size());
+                if (i.type() != CType.VOID) {
+                    push(state, verificationType(i.type()));
+                }
+            }
+
+            case JVMInstr.Store i -> {
+                pop(state, 1);
+                setLocal(state, i.address(), i.type());
+            }
+
+            case JVMInstr.Load i -> {
+                push(state, verificationType(i.type()));
+                useLocal(i.address(), i.type());
+            }
+
+            case JVMInstr.Push i -> push(state, verificationType(i.type()));
+
+            case JVMInstr.Iinc i -> useLocal(i.address(), CType.INT);
+
+            case JVMInstr.Cmp _ -> pop(state, 2);
+
+            case JVMInstr.Ifeq _ -> pop(state, 1);
+
+            case JVMInstr.Ifne _ -> pop(state, 1);
+
+            case JVMInstr.Add i -> binary(state, i.type());
+
+            case JVMInstr.Sub i -> binary(state, i.type());
+
+            case JVMInstr.Mul i -> binary(state, i.type());
+
+            case JVMInstr.Div i -> binary(state, i.type());
+
+            case JVMInstr.Shl i -> binary(state, i.type());
+
+            case JVMInstr.Dup _ -> push(state,
+                    state.stack().get(state.stack().size() - 1));
+
+            case JVMInstr.Pop _ -> pop(state, 1);
+
+            case JVMInstr.I2d _ -> {
+                pop(state, 1);
+                push(state, DOUBLE);
+            }
+
+            case JVMInstr.Return i -> {
+                if (i.type() != CType.VOID) {
+                    pop(state, 1);
+                }
+            }
+
+            case JVMInstr.Label _ -> {
+            }
+
+            case JVMInstr.Goto _ -> {
+            }
+
+            case JVMInstr.StackMapFrame _ -> {
+            }
+
+            case JVMInstr.Line _ -> {
+            }
+
+            default -> throw new IllegalArgumentException(
+                    "Instruction " + instr + " not supported by the frame "
+                            + "analysis.");
+        }
+        return state;
+    }
+
+    private void binary(State state, CType type) {
+        pop(state, 2);
+        push(state, verificationType(type));
+    }
+
+    private void push(State state, String value) {
+        state.stack().add(value);
+        maxStack = Math.max(maxStack, state.stackSize());
+    }
+
+    private void pop(State state, int values) {
+        for (int i = 0; i < values; i++) {
+            state.stack().remove(state.stack().size() - 1);
+        }
+    }
+
+    private void setLocal(State state, int address, CType type) {
+        ArrayList<String> locals = state.locals();
+        int size = type == CType.DOUBLE ? 2 : 1;
+        while (locals.size() < address + size) {
+            locals.add(TOP);
+        }
+        locals.set(address, verificationType(type));
+        if (type == CType.DOUBLE) {
+            locals.set(address + 1, DOUBLE_HIGH);
+        }
+        dropBrokenDoubles(locals);
+        useLocal(address, type);
+    }
+
+    private void useLocal(int address, CType type) {
+        maxLocals = Math.max(maxLocals,
+                address + (type == CType.DOUBLE ? 2 : 1));
+    }
+}
@@ -0,0 +1,546 @@
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.function.Function;
+
+import typed_tree.*;
+
+// replaces calls to small non-recursive functions with the body of the
+// called function. functions are processed callees first, so a body is
+// already inlined itself by the time it is copied into its callers.
+//
+// a function whose body is a single return of an expression is substituted
+// directly into the calling expression when the arguments are pure. other
+// bodies are expanded as a block in place of the statement making the call,
+// with the parameters bound to fresh locals. locals of the inlined function
+// get names containing '$', which can never clash with a c-- identifier
+public class Inliner {
+
+    // functions larger than this many tree nodes are never inlined
+    private int maxCalleeSize;
+
+    // how many tree nodes may be added to a single function by inlining
+    private int growthBudget;
+
+    private HashMap<String, TypedDef.Func> functions = new HashMap<>();
+    private CallGraph callGraph;
+    private int budgetLeft;
+    private int nextRename = 0;
+
+    public Inliner() {
+        this(40, 400);
+    }
+
+    public Inliner(int maxCalleeSize, int growthBudget) {
+        this.maxCalleeSize = maxCalleeSize;
+        this.growthBudget = growthBudget;
+    }
+
+    public LinkedList<TypedStm> inlineStm(TypedStm stm) {
+        return switch (stm) {
+
+            case TypedStm.Exp s -> {
+                TypedExp exp = inlineExp(s.exp());
+
+                TypedExp.Func call = callOf(exp);
+                if (call != null) {
+                    TypedStm expanded = expandCall(call,
+                            result -> new TypedStm.Exp(result.type(), result,
+                                    s.line()));
+                    if (expanded != null) {
+                        yield new LinkedList<>(List.of(expanded));
+                    }
+                }
+
+                // a call as the whole right hand side of an assignment
+                if (exp instanceof TypedExp.Assign assign
+                        && callOf(assign.exp()) != null) {
+                    TypedStm expanded = expandCall(callOf(assign.exp()),
+                            result -> new TypedStm.Exp(assign.type(),
+                                    new TypedExp.Assign(
+                                            assign.id(),
+                                            rewrap(assign.exp(), result),
+                                            assign.type()), s.line()));
+                    if (expanded != null) {
+                        yield new LinkedList<>(List.of(expanded));
+                    }
+                }
+                yield new LinkedList<>(List.of(new TypedStm.Exp(exp.type(),
+                        exp, s.line())));
+            }
+
+            case TypedStm.Decls s -> new LinkedList<>(List.of(s));
+
+            case TypedStm.Init s -> {
+                TypedExp exp = inlineExp(s.exp());
+
+                // the variable is declared first and assigned the result at
+                // the end of the inlined body. this is only possible when the
+                // arguments do not refer to a variable of the same name
+                TypedExp.Func call = callOf(exp);
+                if (call != null && call.exps().stream().noneMatch(arg ->
+                        TreeAnalysis.usedVars(arg).contains(s.name()))) {
+                    TypedStm expanded = expandCall(call,
+                            result -> new TypedStm.Exp(s.type(),
+                                    new TypedExp.Assign(
+                                            s.name(),
+                                            rewrap(exp, result),
+                                            s.type()), s.line()));
+                    if (expanded != null) {
+                        yield new LinkedList<>(List.of(
+                                new TypedStm.Decls(s.type(),
+                                        new LinkedList<>(List.of(s.name()))),
+                                expanded));
+                    }
+                }
+                yield new LinkedList<>(List.of(
+                        new TypedStm.Init(s.type(), s.name(), exp, s.line())));
+            }
+
+            case TypedStm.Return s -> {
+                TypedExp exp = inlineExp(s.exp());
+
+                TypedExp.Func call = callOf(exp);
+                if (call != null) {
+                    TypedStm expanded = expandCall(call,
+                            result -> new TypedStm.Return(
+                                    rewrap(exp, result), s.line()));
+                    if (expanded != null) {
+                        yield new LinkedList<>(List.of(expanded));
+                    }
+                }
+                yield new LinkedList<>(List.of(
+                        new TypedStm.Return(exp, s.line())));
+            }
+
+            case TypedStm.While s -> new LinkedList<>(List.of(
+                    new TypedStm.While(
+                            inlineExp(s.exp()),
+                            asStm(inlineStm(s.stm())), s.line())));
+
+            case TypedStm.Block s -> {
+                LinkedList<TypedStm> stms = new LinkedList<>();
+                for (var statement : s.stms()) {
+                    stms.addAll(inlineStm(statement));
+                }
+                yield new LinkedList<>(List.of(new TypedStm.Block(stms)));
+            }
+
+            case TypedStm.IfElse s -> new LinkedList<>(List.of(
+                    new TypedStm.IfElse(
+                            inlineExp(s.exp()),
+                            asStm(inlineStm(s.stm1())),
+                            asStm(inlineStm(s.stm2())), s.line())));
+
+            default -> throw new RuntimeException(
+                    "Statement " + stm.getClass() + " not yet implemented.");
+        };
+    }
+
+    // inlines calls to functions that only return an expression
+    public TypedExp inlineExp(TypedExp exp) {
+        return switch (exp) {
+
+            case TypedExp.Paren e -> new TypedExp.Paren(
+                    inlineExp(e.exp()), e.type());
+
+            case TypedExp.Func e -> {
+                LinkedList<TypedExp> args = new LinkedList<>();
+                for (var argument : e.exps()) {
+                    args.add(inlineExp(argument));
+                }
+                TypedExp.Func call = new TypedExp.Func(e.id(), args, e.type());
+                TypedExp substituted = substituteCall(call);
+                yield substituted != null ? substituted : call;
+            }
+
+            case TypedExp.Mul _ -> TreeAnalysis.foldSpine(
+                    exp, this::inlineExp, TreeAnalysis::withOperands);
+
+            case TypedExp.Add _ -> TreeAnalysis.foldSpine(
+                    exp, this::inlineExp, TreeAnalysis::withOperands);
+
+            case TypedExp.Cmp e -> new TypedExp.Cmp(
+                    inlineExp(e.exp1()),
+                    inlineExp(e.exp2()),
+                    e.operator());
+
+            case TypedExp.And e -> new TypedExp.And(
+                    inlineExp(e.exp1()),
+                    inlineExp(e.exp2()));
+
+            case TypedExp.Or e -> new TypedExp.Or(
+                    inlineExp(e.exp1()),
+                    inlineExp(e.exp2()));
+
+            case TypedExp.Assign e -> new TypedExp.Assign(
+                    e.id(),
+                    inlineExp(e.exp()),
+                    e.type());
+
+            case TypedExp.Int2Double e -> new TypedExp.Int2Double(
+                    inlineExp(e.exp()));
+
+            // literals, identifiers and increments
+            default -> exp;
+        };
+    }
+
+    // the returned expression of the callee with the arguments put in place
+    // of the parameters, or null if the call can not be substituted
+    private TypedExp substituteCall(TypedExp.Func call) {
+        TypedDef.Func callee = functions.get(call.id());
+        if (!isInlinable(callee)
+                || callee.stms().size() != 1
+                || !(callee.stms().getFirst() instanceof TypedStm.Return ret)) {
+            return null;
+        }
+
+        // the arguments are evaluated inside the returned expression instead
+        // of before it, which is only the same if they have no side effects
+        // and nothing writes to the parameters
+        HashMap<String, TypedExp> args = new HashMap<>();
+        Iterator<TypedExp> argIterator = call.exps().iterator();
+        for (TypedArg param : callee.args()) {
+            TypedExp arg = argIterator.next();
+            if (!TreeAnalysis.isPure(arg)
+                    || TreeAnalysis.assignedVars(ret.exp())
+                            .contains(param.id())) {
+                return null;
+            }
+            // only copy cheap arguments into more than one place
+            if (countReads(ret.exp(), param.id()) > 1
+                    && !TreeAnalysis.isLiteral(arg)
+                    && !(arg instanceof TypedExp.Ident)) {
+                return null;
+            }
+            args.put(param.id(), arg);
+        }
+
+        budgetLeft -= TreeAnalysis.size(callee);
+        return substitute(ret.exp(), args);
+    }
+
+    // the body of the callee as a block that binds the arguments to fresh
+    // locals, or null if the call can not be expanded. the final return of
+    // the callee is turned into a statement by onReturn
+    private TypedStm expandCall(TypedExp.Func call,
+            Function<TypedExp, TypedStm> onReturn) {
+
+        TypedDef.Func callee = functions.get(call.id());
+        if (!isInlinable(callee) || !returnsOnlyAtEnd(callee)) {
+            return null;
+        }
+        budgetLeft -= TreeAnalysis.size(callee);
+
+        Environment<String> names = new Environment<>();
+        names.newContext();
+        LinkedList<TypedStm> stms = new LinkedList<>();
+
+        // the arguments are evaluated in order before the body, just like for
+        // a real call
+        Iterator<TypedExp> args = call.exps().iterator();
+        for (TypedArg param : callee.args()) {
+            String renamed = rename(param.id());
+            stms.add(new TypedStm.Init(param.type(), renamed, args.next()));
+            names.extendVar(param.id(), renamed);
+        }
+
+        for (TypedStm stm : callee.stms()) {
+            if (stm instanceof TypedStm.Return ret) {
+                stms.add(onReturn.apply(renameExp(names, ret.exp())));
+            } else {
+                stms.add(renameStm(names, stm));
+            }
+        }
+        return new TypedStm.Block(stms);
+    }
+
+    private boolean isInlinable(TypedDef.Func callee) {
+        // the io functions have no definition
+        return callee != null
+                && !callee.funcName().equals("main")
+                && !callGraph.isRecursive(callee.funcName())
+                && TreeAnalysis.size(callee) <= maxCalleeSize
+                && TreeAnalysis.size(callee) <= budgetLeft;
+    }
+
+    // a body can only be expanded in place if it can not return early, since
+    // there is no way to jump to the end of it
+    private boolean returnsOnlyAtEnd(TypedDef.Func callee) {
+        LinkedList<TypedStm> stms = callee.stms();
+        for (int i = 0; i < stms.size() - 1; i++) {
+            if (TreeAnalysis.containsReturn(stms.get(i))) {
+                return false;
+            }
+        }
+        if (stms.isEmpty()) {
+            return callee.returns() == CType.VOID;
+        }
+        if (stms.getLast() instanceof TypedStm.Return) {
+            return true;
+        }
+        return callee.returns() == CType.VOID
+                && !TreeAnalysis.containsReturn(stms.getLast());
+    }
+
+    private TypedStm renameStm(Environment<String> names, TypedStm stm) {
+        return switch (stm) {
+
+            case TypedStm.Exp s -> {
+                TypedExp exp = renameExp(names, s.exp());
+                yield new TypedStm.Exp(exp.type(), exp, s.line());
+            }
+
+            case TypedStm.Decls s -> {
+                LinkedList<String> renamed = new LinkedList<>();
+                for (String name : s.names()) {
+                    renamed.add(rename(name));
+                    names.extendVar(name, renamed.getLast());
+                }
+                yield new TypedStm.Decls(s.type(), renamed);
+            }
+
+            case TypedStm.Init s -> {
+                TypedExp exp = renameExp(names, s.exp());
+                String renamed = rename(s.name());
+                names.extendVar(s.name(), renamed);
+                yield new TypedStm.Init(s.type(), renamed, exp, s.line());
+            }
+
+            case TypedStm.Return s -> new TypedStm.Return(
+                    renameExp(names, s.exp()), s.line());
+
+            case TypedStm.While s -> {
+                TypedExp exp = renameExp(names, s.exp());
+                names.newContext();
+                TypedStm body = renameStm(names, s.stm());
+                names.removeContext();
+                yield new TypedStm.While(exp, body, s.line());
+            }
+
+            case TypedStm.Block s -> {
+                names.newContext();
+                LinkedList<TypedStm> stms = new LinkedList<>();
+                for (var statement : s.stms()) {
+                    stms.add(renameStm(names, statement));
+                }
+                names.removeContext();
+                yield new TypedStm.Block(stms);
+            }
+
+            case TypedStm.IfElse s -> {
+                TypedExp exp = renameExp(names, s.exp());
+                names.newContext();
+                TypedStm stm1 = renameStm(names, s.stm1());
+                names.removeContext();
+                names.newContext();
+                TypedStm stm2 = renameStm(names, s.stm2());
+                names.removeContext();
+                yield new TypedStm.IfElse(exp, stm1, stm2, s.line());
+            }
+
+            default -> throw new RuntimeException(
+                    "Statement " + stm.getClass() + " not yet implemented.");
+        };
+    }
+
+    private TypedExp renameExp(Environment<String> names, TypedExp exp) {
+        return switch (exp) {
+
+            case TypedExp.Paren e -> new TypedExp.Paren(
+                    renameExp(names, e.exp()), e.type());
+
+            case TypedExp.Ident e -> new TypedExp.Ident(
+                    names.lookupVar(e.id()), e.type());
+
+            case TypedExp.Func e -> {
+                LinkedList<TypedExp> args = new LinkedList<>();
+                for (var argument : e.exps()) {
+                    args.add(renameExp(names, argument));
+                }
+                yield new TypedExp.Func(e.id(), args, e.type());
+            }
+
+            case TypedExp.Post e -> new TypedExp.Post(
+                    names.lookupVar(e.id()), e.type(), e.operator());
+
+            case TypedExp.Pre e -> new TypedExp.Pre(
+                    names.lookupVar(e.id()), e.type(), e.operator());
+
+            case TypedExp.Mul _ -> TreeAnalysis.foldSpine(
+                    exp, operand -> renameExp(names, operand),
+                    TreeAnalysis::withOperands);
+
+            case TypedExp.Add _ -> TreeAnalysis.foldSpine(
+                    exp, operand -> renameExp(names, operand),
+                    TreeAnalysis::withOperands);
+
+            case TypedExp.Cmp e -> new TypedExp.Cmp(
+                    renameExp(names, e.exp1()),
+                    renameExp(names, e.exp2()),
+                    e.operator());
+
+            case TypedExp.And e -> new TypedExp.And(
+                    renameExp(names, e.exp1()),
+                    renameExp(names, e.exp2()));
+
+            case TypedExp.Or e -> new TypedExp.Or(
+                    renameExp(names, e.exp1()),
+                    renameExp(names, e.exp2()));
+
+            case TypedExp.Assign e -> new TypedExp.Assign(
+                    names.lookupVar(e.id()),
+                    renameExp(names, e.exp()),
+                    e.type());
+
+            case TypedExp.Int2Double e -> new TypedExp.Int2Double(
+                    renameExp(names, e.exp()));
+
+            // literals
+            default -> exp;
+        };
+    }
+
+    // replaces reads of the parameters with the argument expressions. the
+    // expression is known to never write to a parameter
+    private TypedExp substitute(TypedExp exp, HashMap<String, TypedExp> args) {
+        return switch (exp) {
+
+            case TypedExp.Paren e -> new TypedExp.Paren(
+                    substitute(e.exp(), args), e.type());
+
+            case TypedExp.Ident e -> args.get(e.id());
+
+            case TypedExp.Func e -> {
+                LinkedList<TypedExp> callArgs = new LinkedList<>();
+                for (var argument : e.exps()) {
+                    callArgs.add(substitute(argument, args));
+                }
+                yield new TypedExp.Func(e.id(), callArgs, e.type());
+            }
+
+            case TypedExp.Mul _ -> TreeAnalysis.foldSpine(
+                    exp, operand -> substitute(operand, args),
+                    TreeAnalysis::withOperands);
+
+            case TypedExp.Add _ -> TreeAnalysis.foldSpine(
+                    exp, operand -> substitute(operand, args),
+                    TreeAnalysis::withOperands);
+
+            case TypedExp.Cmp e -> new TypedExp.Cmp(
+                    substitute(e.exp1(), args),
+                    substitute(e.exp2(), args),
+                    e.operator());
+
+            case TypedExp.And e -> new TypedExp.And(
+                    substitute(e.exp1(), args),
+                    substitute(e.exp2(), args));
+
+            case TypedExp.Or e -> new TypedExp.Or(
+                    substitute(e.exp1(), args),
+                    substitute(e.exp2(), args));
+
+            case TypedExp.Int2Double e -> new TypedExp.Int2Double(
+                    substitute(e.exp(), args));
+
+            // literals
+            default -> exp;
+        };
+    }
+
+    private int countReads(TypedExp exp, String variableName) {
+        return switch (exp) {
+            case TypedExp.Paren e -> countReads(e.exp(), variableName);
+
+            case TypedExp.Ident e -> e.id().equals(variableName) ? 1 : 0;
+
+            case TypedExp.Func e -> e.exps().stream()
+                    .mapToInt(argument -> countReads(argument, variableName))
+                    .sum();
+
+            case TypedExp.Mul _ -> TreeAnalysis
+                    .spineOperands(exp).stream()
+                    .mapToInt(operand -> countReads(operand, variableName))
+                    .sum();
+
+            case TypedExp.Add _ -> TreeAnalysis
+                    .spineOperands(exp).stream()
+                    .mapToInt(operand -> countReads(operand, variableName))
+                    .sum();
+
+            case TypedExp.Cmp e -> countReads(e.exp1(), variableName)
+                    + countReads(e.exp2(), variableName);
+
+            case TypedExp.And e -> countReads(e.exp1(), variableName)
+                    + countReads(e.exp2(), variableName);
+
+            case TypedExp.Or e -> countReads(e.exp1(), variableName)
+                    + countReads(e.exp2(), variableName);
+
+            case TypedExp.Assign e -> countReads(e.exp(), variableName);
+
+            case TypedExp.Int2Double e -> countReads(e.exp(), variableName);
+
+            default -> 0;
+        };
+    }
+
+    // the call an expression consists of, possibly promoted to double
+    private TypedExp.Func callOf(TypedExp exp) {
+        if (exp instanceof TypedExp.Int2Double promoted) {
+            exp = promoted.exp();
+        }
+        return exp instanceof TypedExp.Func call ? call : null;
+    }
+
+    // puts the result of an inlined call back into the promotion of the
+    // original call
+    private TypedExp rewrap(TypedExp original, TypedExp result) {
+        if (original instanceof TypedExp.Int2Double) {
+            return new TypedExp.Int2Double(result);
+        }
+        return result;
+    }
+
+    private String rename(String variableName) {
+        return variableName + "$" + nextRename++;
+    }
+
+    private TypedStm asStm(LinkedList<TypedStm> stms) {
+        return stms.size() == 1 ? stms.getFirst() : new TypedStm.Block(stms);
+    }
+
+    public TypedDef.Func inlineFunc(TypedDef.Func function) {
+        budgetLeft = growthBudget;
+        LinkedList<TypedStm> stms = new LinkedList<>();
+        for (var stm : function.stms()) {
+            stms.addAll(inlineStm(stm));
+        }
+        return new TypedDef.Func(
+                function.returns(),
+                function.args(),
+                stms,
+                function.funcName());
+    }
+
+    public TypedProgram inline(TypedProgram program) {
+        callGraph = new CallGraph(program);
+        for (TypedDef def : program.defintions()) {
+            functions.put(def.funcName(), (TypedDef.Func) def);
+        }
+
+        // inline into callees before their callers so that the copied bodies
+        // are already inlined
+        for (String funcName : callGraph.bottomUpOrder()) {
+            functions.put(funcName, inlineFunc(functions.get(funcName)));
+        }
+
+        LinkedList<TypedDef> definitions = new LinkedList<>();
+        for (TypedDef def : program.defintions()) {
+            definitions.add(functions.get(def.funcName()));
+        }
+        return new TypedProgram(definitions);
+    }
+}
@@ -1,5 +1,6 @@
 import typed_tree.*;
 
+import java.util.ArrayDeque;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -10,9 +11,41 @@ public class Interpreter {
 
     static final Scanner scanner = new Scanner(System.in);
 
+    // thrown when the interpreter has taken as many steps as it was allowed
+    public static class OutOfFuelException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public OutOfFuelException() {
+            super("Interpreter ran out of fuel.");
+        }
+    }
+
+    // the number of statements and expressions left to run. running the
+    // program itself has no limit, evaluating at compile time does
+    private long fuel;
+
+    public Interpreter() {
+        this(Long.MAX_VALUE);
+    }
+
+    public Interpreter(long fuel) {
+        this.fuel = fuel;
+    }
+
+    public long fuel() {
+        return fuel;
+    }
+
+    private void spendFuel() {
+        if (--fuel < 0) {
+            throw new OutOfFuelException();
+        }
+    }
+
     public Optional<Value> runStm(Environment<Value> env,
             List<TypedDef.Func> availableFuncs, TypedStm stm) {
 
+        spendFuel();
         return switch (stm) {
 
             case TypedStm.Exp s -> {
@@ -110,9 +143,57 @@ public class Interpreter {
         };
     }
 
+    // arithmetic chains that are not regrouped, like the double ones, are as
+    // deep as they are long, so their left spine is run from a stack instead
+    // of by recursion. each link spends fuel like any other expression does
+    private Value runArithmetic(Environment<Value> env,
+            List<TypedDef.Func> availableFuncs, TypedExp exp) {
+
+        ArrayDeque<TypedExp> spine = new ArrayDeque<>();
+        TypedExp leftmost = exp;
+        while (true) {
+            if (leftmost instanceof TypedExp.Mul e) {
+                spine.push(e);
+                leftmost = e.exp1();
+            } else if (leftmost instanceof TypedExp.Add e) {
+                spine.push(e);
+                leftmost = e.exp1();
+            } else {
+                break;
+            }
+            if (spine.size() > 1) {
+                spendFuel();
+            }
+        }
+
+        Value value = runExp(env, availableFuncs, leftmost);
+        while (!spine.isEmpty()) {
+            value = switch (spine.pop()) {
+                case TypedExp.Mul e -> {
+                    Value valueRhs = runExp(env, availableFuncs, e.exp2());
+                    yield e.operator() == Operator.MUL
+                            ? value.multiply(valueRhs)
+                            : value.divide(valueRhs); // Operator.DIV
+                }
+
+                case TypedExp.Add e -> {
+                    Value valueRhs = runExp(env, availableFuncs, e.exp2());
+                    yield e.operator() == Operator.ADD
+                            ? value.add(valueRhs)
+                            : value.subtract(valueRhs); // Operator.SUB
+                }
+
+                default -> throw new IllegalStateException(
+                        "Only arithmetic is on the spine.");
+            };
+        }
+        return value;
+    }
+
     public Value runExp(Environment<Value> env,
             List<TypedDef.Func> availableFuncs, TypedExp exp) {
 
+        spendFuel();
         return switch (exp) {
 
             case TypedExp.Paren e -> {
@@ -235,21 +316,9 @@ public class Interpreter {
                 yield newValue;
             }
 
-            case TypedExp.Mul e -> {
-                Value valueLhs = runExp(env, availableFuncs, e.exp1());
-                Value valueRhs = runExp(env, availableFuncs, e.exp2());
-                yield e.operator() == Operator.MUL
-                        ? valueLhs.multiply(valueRhs)
-                        : valueLhs.divide(valueRhs); // Operator.DIV
-            }
+            case TypedExp.Mul e -> runArithmetic(env, availableFuncs, e);
 
-            case TypedExp.Add e -> {
-                Value valueLhs = runExp(env, availableFuncs, e.exp1());
-                Value valueRhs = runExp(env, availableFuncs, e.exp2());
-                yield e.operator() == Operator.ADD
-                        ? valueLhs.add(valueRhs)
-                        : valueLhs.subtract(valueRhs); // Operator.SUB
-            }
+            case TypedExp.Add e -> runArithmetic(env, availableFuncs, e);
 
             case TypedExp.Cmp e -> {
                 Value valueLhs = runExp(env, availableFuncs,
@@ -1,4 +1,5 @@
 import java.util.LinkedList;
+import java.util.List;
 import typed_tree.*;
 
 public interface JVMInstr {
@@ -6,6 +7,16 @@ public interface JVMInstr {
 
     CType type();
 
+    // label this instruction may jump to, or null if it never jumps
+    default Integer jumpTarget() {
+        return null;
+    }
+
+    // whether execution can continue with the next instruction
+    default boolean fallsThrough() {
+        return true;
+    }
+
     public static String getJVMType(CType type) {
         return switch (type) {
             case CType.INT -> "I";
@@ -77,6 +88,11 @@ public interface JVMInstr {
 
     record Return(CType type) implements JVMInstr {
 
+        @Override
+        public boolean fallsThrough() {
+            return false;
+        }
+
         @Override
         public String println() {
 
@@ -137,6 +153,16 @@ public interface JVMInstr {
             return "\tgoto " + "LABEL" + label + "\n";
         }
 
+        @Override
+        public Integer jumpTarget() {
+            return label;
+        }
+
+        @Override
+        public boolean fallsThrough() {
+            return false;
+        }
+
         @Override
         public CType type() {
             return CType.VOID;
@@ -255,6 +281,28 @@ public interface JVMInstr {
             return CType.BOOL;
         }
 
+        @Override
+        public Integer jumpTarget() {
+            return label;
+        }
+
+        // the comparison that jumps exactly when this one does not. doubles
+        // jump on the sign of a single dcmpg result, so this holds for them
+        // as well
+        public Cmp negate() {
+            Operator negated = switch (operator) {
+                case Operator.LTH -> Operator.GTE;
+                case Operator.GTE -> Operator.LTH;
+                case Operator.GTH -> Operator.LTE;
+                case Operator.LTE -> Operator.GTH;
+                case Operator.EQU -> Operator.NEQ;
+                case Operator.NEQ -> Operator.EQU;
+                default -> throw new IllegalArgumentException(
+                        "Unsupported comparison " + operator);
+            };
+            return new Cmp(cmpType, negated, label);
+        }
+
         public String println() {
             return switch (cmpType) {
                 case CType.INT -> switch (operator) {
@@ -300,6 +348,11 @@ public interface JVMInstr {
             return "\tifeq " + "LABEL" + label + "\n";
         }
 
+        @Override
+        public Integer jumpTarget() {
+            return label;
+        }
+
         @Override
         public CType type() {
             return CType.BOOL;
@@ -313,6 +366,11 @@ public interface JVMInstr {
             return "\tifne " + "LABEL" + label + "\n";
         }
 
+        @Override
+        public Integer jumpTarget() {
+            return label;
+        }
+
         @Override
         public CType type() {
             return CType.BOOL;
@@ -403,6 +461,18 @@ public interface JVMInstr {
         }
     }
 
+    // shift an int left by the number of bits on top of the stack
+    record Shl(CType type) implements JVMInstr {
+
+        public String println() {
+            if (type != CType.INT) {
+                throw new IllegalArgumentException(
+                        "Unsupported shift type: " + type);
+            }
+            return "\tishl\n";
+        }
+    }
+
     // duplicate newest stack element
     record Dup(CType type) implements JVMInstr {
 
@@ -425,6 +495,68 @@ public interface JVMInstr {
         }
     }
 
+    // add a constant to an int local in place, without touching the stack
+    record Iinc(Integer address, Integer increment) implements JVMInstr {
+
+        // the plain form has a byte for the slot and the constant. jasmin
+        // emits the wide form, with two bytes for each, when they do not fit
+        public static boolean fits(long increment) {
+            return increment >= Short.MIN_VALUE && increment <= Short.MAX_VALUE;
+        }
+
+        @Override
+        public CType type() {
+            return CType.VOID;
+        }
+
+        public String println() {
+            return "\tiinc " + address + " " + increment + "\n";
+        }
+    }
+
+    // stack map frame at a label, in the .stack directive format of JasminXT.
+    // locals and stack hold verification types such as Integer or Double
+    record StackMapFrame(
+            Integer label,
+            List<String> locals,
+            List<String> stack)
+            implements JVMInstr {
+
+        @Override
+        public CType type() {
+            return CType.VOID;
+        }
+
+        @Override
+        public String println() {
+            StringBuilder frame = new StringBuilder();
+            frame.append(".stack\n");
+            frame.append("\toffset LABEL" + label + "\n");
+            for (String local : locals) {
+                frame.append("\tlocals " + local + "\n");
+            }
+            for (String value : stack) {
+                frame.append("\tstack " + value + "\n");
+            }
+            frame.append(".end stack\n");
+            return frame.toString();
+        }
+    }
+
+    // the source line the following instructions were compiled from, which
+    // jasmin puts in the line number table of the method
+    record Line(Integer line) implements JVMInstr {
+
+        @Override
+        public CType type() {
+            return CType.VOID;
+        }
+
+        public String println() {
+            return ".line " + line + "\n";
+        }
+    }
+
     // integer to double
     record I2d() implements JVMInstr {
 
@@ -0,0 +1,345 @@
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import typed_tree.*;
+
+// moves computations that give the same result on every iteration of a while
+// loop out of it. pure expressions, in the condition or the body, that only
+// read variables which the loop never writes are evaluated once into a fresh
+// local before the loop. inner loops are handled first, so an invariant can
+// move out through several loops. the fresh locals are named '$inv' followed
+// by a number, which can never clash with a c-- identifier
+public class LoopInvariantMover {
+
+    // maps each variable in scope to whether it is definitely assigned at
+    // this point. only those can be read before the loop, since reading an
+    // unassigned variable is an error even when the loop would never run
+    public class InitEnvironment extends Environment<Boolean> {
+
+        public InitEnvironment copy() {
+            InitEnvironment copy = new InitEnvironment();
+            for (var context : this.contexts) {
+                copy.contexts.add(new LinkedHashMap<>(context));
+            }
+            copy.currentFuncName = this.currentFuncName;
+            return copy;
+        }
+
+        public void assigned(Set<String> variableNames) {
+            for (String variableName : variableNames) {
+                if (this.existsVar(variableName)) {
+                    this.assignVar(variableName, true);
+                }
+            }
+        }
+
+        // a variable is only definitely assigned where two control flow paths
+        // join if it is so on both of them
+        public void merge(InitEnvironment other) {
+            for (int i = 0; i < this.contexts.size(); i++) {
+                var context = this.contexts.get(i);
+                var otherContext = other.contexts.get(i);
+                for (var entry : context.entrySet()) {
+                    if (!otherContext.get(entry.getKey())) {
+                        entry.setValue(false);
+                    }
+                }
+            }
+        }
+    }
+
+    private int nextInvariant = 0;
+
+    public TypedStm moveStm(InitEnvironment env, TypedStm stm) {
+        return switch (stm) {
+
+            case TypedStm.Exp s -> {
+                env.assigned(TreeAnalysis.definitelyAssigned(s.exp()));
+                yield s;
+            }
+
+            case TypedStm.Decls s -> {
+                for (String name : s.names()) {
+                    env.extendVar(name, false);
+                }
+                yield s;
+            }
+
+            case TypedStm.Init s -> {
+                env.assigned(TreeAnalysis.definitelyAssigned(s.exp()));
+                env.extendVar(s.name(), true);
+                yield s;
+            }
+
+            case TypedStm.Return s -> s;
+
+            case TypedStm.While s -> {
+                // the body starts after the first test of the condition, but
+                // nothing it assigns is known to happen before or after it
+                InitEnvironment bodyEnv = env.copy();
+                bodyEnv.assigned(TreeAnalysis.definitelyAssigned(s.exp()));
+                bodyEnv.newContext();
+                TypedStm body = moveStm(bodyEnv, s.stm());
+                bodyEnv.removeContext();
+
+                // anything written or declared in the loop may differ between
+                // iterations
+                Set<String> variant = TreeAnalysis.assignedVars(s);
+                variant.addAll(TreeAnalysis.declaredVars(s.stm()));
+
+                LinkedHashMap<TreeAnalysis.ExpKey, String> hoisted =
+                        new LinkedHashMap<>();
+                TypedExp exp = hoistExp(env, variant, hoisted, s.exp());
+                body = hoistStm(env, variant, hoisted, body);
+                env.assigned(TreeAnalysis.definitelyAssigned(s.exp()));
+
+                TypedStm loop = new TypedStm.While(exp, body, s.line());
+                if (hoisted.isEmpty()) {
+                    yield loop;
+                }
+
+                // the block keeps the fresh locals out of the enclosing scope
+                LinkedList<TypedStm> stms = new LinkedList<>();
+                for (var entry : hoisted.entrySet()) {
+                    TypedExp invariant = entry.getKey().exp();
+                    stms.add(new TypedStm.Init(invariant.type(),
+                            entry.getValue(), invariant));
+                }
+                stms.add(loop);
+                yield new TypedStm.Block(stms);
+            }
+
+            case TypedStm.IfElse s -> {
+                env.assigned(TreeAnalysis.definitelyAssigned(s.exp()));
+                InitEnvironment elseEnv = env.copy();
+
+                env.newContext();
+                TypedStm stm1 = moveStm(env, s.stm1());
+                env.removeContext();
+
+                elseEnv.newContext();
+                TypedStm stm2 = moveStm(elseEnv, s.stm2());
+                elseEnv.removeContext();
+
+                env.merge(elseEnv);
+                yield new TypedStm.IfElse(s.exp(), stm1, stm2, s.line());
+            }
+
+            case TypedStm.Block s -> {
+                env.newContext();
+                LinkedList<TypedStm> stms = new LinkedList<>();
+                for (var statement : s.stms()) {
+                    stms.add(moveStm(env, statement));
+                }
+                env.removeContext();
+                yield new TypedStm.Block(stms);
+            }
+
+            default -> throw new RuntimeException(
+                    "Statement " + stm.getClass() + " not yet implemented.");
+        };
+    }
+
+    // replaces the invariant expressions in a loop body by the locals that
+    // will hold them
+    private TypedStm hoistStm(
+            InitEnvironment env,
+            Set<String> variant,
+            LinkedHashMap<TreeAnalysis.ExpKey, String> hoisted,
+            TypedStm stm) {
+
+        return switch (stm) {
+            case TypedStm.Exp s -> new TypedStm.Exp(s.type(),
+                    hoistExp(env, variant, hoisted, s.exp()), s.line());
+
+            case TypedStm.Decls s -> s;
+
+            case TypedStm.Init s -> new TypedStm.Init(s.type(), s.name(),
+                    hoistExp(env, variant, hoisted, s.exp()), s.line());
+
+            case TypedStm.Return s -> new TypedStm.Return(
+                    hoistExp(env, variant, hoisted, s.exp()), s.line());
+
+            case TypedStm.While s -> new TypedStm.While(
+                    hoistExp(env, variant, hoisted, s.exp()),
+                    hoistStm(env, variant, hoisted, s.stm()), s.line());
+
+            case TypedStm.IfElse s -> new TypedStm.IfElse(
+                    hoistExp(env, variant, hoisted, s.exp()),
+                    hoistStm(env, variant, hoisted, s.stm1()),
+                    hoistStm(env, variant, hoisted, s.stm2()), s.line());
+
+            case TypedStm.Block s -> {
+                LinkedList<TypedStm> stms = new LinkedList<>();
+                for (var statement : s.stms()) {
+                    stms.add(hoistStm(env, variant, hoisted, statement));
+                }
+                yield new TypedStm.Block(stms);
+            }
+
+            default -> throw new RuntimeException(
+                    "Statement " + stm.getClass() + " not yet implemented.");
+        };
+    }
+
+    // the largest invariant subexpressions are hoisted, an expression that
+    // occurs several times shares one local
+    private TypedExp hoistExp(
+            InitEnvironment env,
+            Set<String> variant,
+            LinkedHashMap<TreeAnalysis.ExpKey, String> hoisted,
+            TypedExp exp) {
+
+        if (isInvariant(env, variant, exp)) {
+            return hoist(hoisted, exp);
+        }
+
+        return switch (exp) {
+            case TypedExp.Paren e -> new TypedExp.Paren(
+                    hoistExp(env, variant, hoisted, e.exp()), e.type());
+
+            case TypedExp.Func e -> {
+                LinkedList<TypedExp> args = new LinkedList<>();
+                for (var argument : e.exps()) {
+                    args.add(hoistExp(env, variant, hoisted, argument));
+                }
+                yield new TypedExp.Func(e.id(), args, e.type());
+            }
+
+            case TypedExp.Mul _ -> hoistSpine(env, variant,
+                    hoisted, exp);
+
+            case TypedExp.Add _ -> hoistSpine(env, variant,
+                    hoisted, exp);
+
+            case TypedExp.Cmp e -> new TypedExp.Cmp(
+                    hoistExp(env, variant, hoisted, e.exp1()),
+                    hoistExp(env, variant, hoisted, e.exp2()),
+                    e.operator());
+
+            case TypedExp.And e -> new TypedExp.And(
+                    hoistExp(env, variant, hoisted, e.exp1()),
+                    hoistExp(env, variant, hoisted, e.exp2()));
+
+            case TypedExp.Or e -> new TypedExp.Or(
+                    hoistExp(env, variant, hoisted, e.exp1()),
+                    hoistExp(env, variant, hoisted, e.exp2()));
+
+            case TypedExp.Assign e -> new TypedExp.Assign(e.id(),
+                    hoistExp(env, variant, hoisted, e.exp()), e.type());
+
+            case TypedExp.Int2Double e -> new TypedExp.Int2Double(
+                    hoistExp(env, variant, hoisted, e.exp()));
+
+            // literals, identifiers and increments
+            default -> exp;
+        };
+    }
+
+    private TypedExp hoist(LinkedHashMap<TreeAnalysis.ExpKey, String> hoisted,
+            TypedExp exp) {
+        String name = hoisted.computeIfAbsent(new TreeAnalysis.ExpKey(exp),
+                _ -> "$inv" + nextInvariant++);
+        return new TypedExp.Ident(name, exp.type());
+    }
+
+    // a node of the left spine can only be invariant if the nodes below it
+    // are, so the invariant part of a chain is found in one pass up the
+    // spine instead of by asking every node about everything below it
+    private TypedExp hoistSpine(
+            InitEnvironment env,
+            Set<String> variant,
+            LinkedHashMap<TreeAnalysis.ExpKey, String> hoisted,
+            TypedExp exp) {
+
+        List<TypedExp> spine = TreeAnalysis.leftSpine(exp);
+        List<TypedExp> operands = TreeAnalysis.spineOperands(exp);
+
+        // the index in the spine of the outermost node that is invariant
+        int outermost = spine.size();
+        boolean invariant = readsOnlyInvariants(env, variant,
+                operands.getFirst());
+        for (int i = spine.size() - 1; i >= 0 && invariant; i--) {
+            invariant = TreeAnalysis.isPureNode(spine.get(i))
+                    && readsOnlyInvariants(env, variant,
+                            operands.get(spine.size() - i));
+            if (invariant) {
+                outermost = i;
+            }
+        }
+
+        TypedExp result = outermost < spine.size()
+                ? hoist(hoisted, spine.get(outermost))
+                : hoistExp(env, variant, hoisted, operands.getFirst());
+        for (int i = outermost - 1; i >= 0; i--) {
+            result = TreeAnalysis.withOperands(spine.get(i), result,
+                    hoistExp(env, variant, hoisted,
+                            operands.get(spine.size() - i)));
+        }
+        return result;
+    }
+
+    // worth a local of its own: reading only invariants, and more than a
+    // literal or a variable
+    private boolean isInvariant(
+            InitEnvironment env,
+            Set<String> variant,
+            TypedExp exp) {
+
+        return TreeAnalysis.size(exp) >= 2
+                && !(exp instanceof TypedExp.Int2Double conversion
+                        && TreeAnalysis.isLiteral(conversion.exp()))
+                && readsOnlyInvariants(env, variant, exp);
+    }
+
+    // pure, and reading only variables that are assigned before the loop and
+    // never written in it
+    private boolean readsOnlyInvariants(
+            InitEnvironment env,
+            Set<String> variant,
+            TypedExp exp) {
+
+        if (!TreeAnalysis.isPure(exp)) {
+            return false;
+        }
+        for (String variableName : TreeAnalysis.usedVars(exp)) {
+            if (variant.contains(variableName)
+                    || !env.existsVar(variableName)
+                    || !env.lookupVar(variableName)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public TypedDef.Func moveFunc(TypedDef.Func function) {
+        InitEnvironment env = new InitEnvironment();
+        env.setCurrentFunc(function.funcName());
+        env.newContext();
+
+        for (var arg : function.args()) {
+            env.extendVar(arg.id(), true);
+        }
+
+        LinkedList<TypedStm> stms = new LinkedList<>();
+        for (var stm : function.stms()) {
+            stms.add(moveStm(env, stm));
+        }
+
+        return new TypedDef.Func(
+                function.returns(),
+                function.args(),
+                stms,
+                function.funcName());
+    }
+
+    public TypedProgram move(TypedProgram program) {
+        LinkedList<TypedDef> definitions = new LinkedList<>();
+        for (TypedDef def : program.defintions()) {
+            definitions.add(moveFunc((TypedDef.Func) def));
+        }
+        return new TypedProgram(definitions);
+    }
+}
@@ -0,0 +1,333 @@
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import typed_tree.*;
+
+// unrolls counted while loops. a loop is counted when its condition compares
+// an int variable against a pure bound the body never writes, and the body
+// ends by stepping that variable by a constant, which is the only place it
+// is written. a loop whose variable starts at a literal right before it and
+// whose bound is a literal runs a known number of times, and is replaced by
+// that many copies of its body when they fit in the size budget. any other
+// counted loop runs its body several times per test, followed by the
+// original loop for the iterations that are left. only innermost loops are
+// unrolled. the fresh locals are named '$unroll' followed by a number, which
+// can never clash with a c-- identifier
+public class LoopUnroller {
+
+    // the number of tree nodes the unrolled copies of one loop body may
+    // take together, and how many copies a partly unrolled loop gets
+    public static final int DEFAULT_SIZE_BUDGET = 256;
+    public static final int DEFAULT_FACTOR = 4;
+
+    // a counted loop: the variable, how it is compared to the bound and
+    // what is added to it at the end of every iteration
+    private record Induction(
+            String var,
+            Operator operator,
+            TypedExp bound,
+            int step) {
+    }
+
+    private final int sizeBudget;
+    private final int factor;
+    private int nextBound = 0;
+
+    public LoopUnroller() {
+        this(DEFAULT_SIZE_BUDGET, DEFAULT_FACTOR);
+    }
+
+    public LoopUnroller(int sizeBudget, int factor) {
+        this.sizeBudget = sizeBudget;
+        this.factor = factor;
+    }
+
+    public LinkedList<TypedStm> unrollStms(List<TypedStm> stms) {
+        LinkedList<TypedStm> result = new LinkedList<>();
+        for (int i = 0; i < stms.size(); i++) {
+            TypedStm stm = stms.get(i);
+            if (stm instanceof TypedStm.While s) {
+                TypedStm.While loop = new TypedStm.While(s.exp(),
+                        unrollStm(s.stm()), s.line());
+                result.addAll(unrollLoop(loop, stms.subList(0, i)));
+            } else {
+                result.add(unrollStm(stm));
+            }
+        }
+        return result;
+    }
+
+    private TypedStm unrollStm(TypedStm stm) {
+        return switch (stm) {
+            case TypedStm.While s -> {
+                LinkedList<TypedStm> stms = unrollStms(List.of(s));
+                yield stms.size() == 1 ? stms.get(0) : new TypedStm.Block(stms);
+            }
+
+            case TypedStm.IfElse s -> new TypedStm.IfElse(s.exp(),
+                    unrollStm(s.stm1()),
+                    unrollStm(s.stm2()), s.line());
+
+            case TypedStm.Block s -> new TypedStm.Block(unrollStms(s.stms()));
+
+            // statements without loops inside
+            default -> stm;
+        };
+    }
+
+    // the statements that replace the loop, or the loop itself when it is
+    // not unrolled. the statements before the loop may give the start value
+    private List<TypedStm> unrollLoop(TypedStm.While loop,
+            List<TypedStm> before) {
+        Induction induction = recognize(loop);
+        if (induction == null) {
+            return List.of(loop);
+        }
+        List<TypedStm> body = bodyOf(loop);
+        int bodySize = Math.max(1, TreeAnalysis.size(loop.stm()));
+
+        Integer start = startValue(before, induction.var());
+        if (start != null && induction.bound() instanceof TypedExp.IntLit bound) {
+            int trips = tripCount(start, induction, bound.value(),
+                    sizeBudget / bodySize);
+            if (trips >= 0) {
+                LinkedList<TypedStm> copies = new LinkedList<>();
+                for (int i = 0; i < trips; i++) {
+                    copies.add(new TypedStm.Block(new LinkedList<>(body)));
+                }
+                return copies;
+            }
+        }
+
+        if (factor < 2 || factor * bodySize > sizeBudget) {
+            return List.of(loop);
+        }
+        return unrollPartly(loop, induction, body);
+    }
+
+    // while (i < n) { body } becomes
+    //
+    //   int $unroll = n - (factor - 1) * step;
+    //   if ($unroll < n) { while (i < $unroll) { body ... body } } else {}
+    //   while (i < n) { body }
+    //
+    // every copy in the unrolled loop would also have run in the original,
+    // since the variable stays below the bound until the last one. the
+    // unrolled loop is skipped when the shifted bound wraps around
+    private List<TypedStm> unrollPartly(TypedStm.While loop,
+            Induction induction, List<TypedStm> body) {
+        boolean upwards = induction.step() > 0;
+        long distance = (long) (factor - 1) * Math.abs(induction.step());
+        if (distance > Integer.MAX_VALUE) {
+            return List.of(loop);
+        }
+
+        String name = "$unroll" + nextBound++;
+        TypedExp.Ident shifted = new TypedExp.Ident(name, CType.INT);
+        TypedStm init = new TypedStm.Init(CType.INT, name,
+                new TypedExp.Add(induction.bound(),
+                        new TypedExp.IntLit((int) distance), CType.INT,
+                        upwards ? Operator.SUB : Operator.ADD),
+                loop.line());
+        TypedExp noWrap = new TypedExp.Cmp(shifted, induction.bound(),
+                upwards ? Operator.LTH : Operator.GTH);
+
+        LinkedList<TypedStm> copies = new LinkedList<>();
+        for (int i = 0; i < factor; i++) {
+            copies.add(new TypedStm.Block(new LinkedList<>(body)));
+        }
+        TypedStm.While unrolled = new TypedStm.While(
+                new TypedExp.Cmp(
+                        new TypedExp.Ident(induction.var(), CType.INT),
+                        shifted,
+                        induction.operator()),
+                new TypedStm.Block(copies),
+                loop.line());
+
+        return List.of(init,
+                new TypedStm.IfElse(noWrap, unrolled,
+                        new TypedStm.Block(new LinkedList<>()), loop.line()),
+                loop);
+    }
+
+    //// recognizing counted loops
+
+    private Induction recognize(TypedStm.While loop) {
+        if (!(strip(loop.exp()) instanceof TypedExp.Cmp condition)
+                || !(strip(condition.exp1()) instanceof TypedExp.Ident var)
+                || var.type() != CType.INT) {
+            return null;
+        }
+        TypedExp bound = condition.exp2();
+        if (!TreeAnalysis.isPure(bound)
+                || TreeAnalysis.usedVars(bound).contains(var.id())) {
+            return null;
+        }
+
+        List<TypedStm> body = bodyOf(loop);
+        if (body.isEmpty() || containsLoop(loop.stm())) {
+            return null;
+        }
+        Integer step = step(body.get(body.size() - 1), var.id());
+        if (step == null || step == 0) {
+            return null;
+        }
+        for (TypedStm stm : body.subList(0, body.size() - 1)) {
+            if (TreeAnalysis.assignedVars(stm).contains(var.id())) {
+                return null;
+            }
+        }
+        Set<String> boundVars = TreeAnalysis.usedVars(bound);
+        if (!Collections.disjoint(TreeAnalysis.assignedVars(loop.stm()),
+                boundVars)
+                || TreeAnalysis.declaredVars(loop.stm()).contains(var.id())) {
+            return null;
+        }
+
+        // the variable has to move towards the bound
+        Operator operator = condition.operator();
+        boolean upwards = operator == Operator.LTH
+                || operator == Operator.LTE;
+        boolean downwards = operator == Operator.GTH
+                || operator == Operator.GTE;
+        if (!(upwards && step > 0 || downwards && step < 0)) {
+            return null;
+        }
+        return new Induction(var.id(), condition.operator(), bound, step);
+    }
+
+    // the constant the statement adds to the variable, or null if it does
+    // something else
+    private Integer step(TypedStm stm, String variableName) {
+        if (!(stm instanceof TypedStm.Exp s)) {
+            return null;
+        }
+        return switch (strip(s.exp())) {
+            case TypedExp.Post e -> e.id().equals(variableName)
+                    ? (e.operator() == Operator.INC ? 1 : -1)
+                    : null;
+
+            case TypedExp.Pre e -> e.id().equals(variableName)
+                    ? (e.operator() == Operator.INC ? 1 : -1)
+                    : null;
+
+            case TypedExp.Assign e -> {
+                if (e.id().equals(variableName)
+                        && strip(e.exp()) instanceof TypedExp.Add add
+                        && strip(add.exp1()) instanceof TypedExp.Ident var
+                        && var.id().equals(variableName)
+                        && strip(add.exp2()) instanceof TypedExp.IntLit c
+                        && c.value() != Integer.MIN_VALUE) {
+                    yield add.operator() == Operator.ADD
+                            ? c.value()
+                            : -c.value();
+                }
+                yield null;
+            }
+
+            default -> null;
+        };
+    }
+
+    // the literal the variable was last given before the loop, as long as
+    // nothing in between may have changed it
+    private Integer startValue(List<TypedStm> before, String variableName) {
+        for (int i = before.size() - 1; i >= 0; i--) {
+            TypedStm stm = before.get(i);
+            TypedExp value = null;
+            if (stm instanceof TypedStm.Init s
+                    && s.name().equals(variableName)) {
+                value = s.exp();
+            } else if (stm instanceof TypedStm.Exp s
+                    && strip(s.exp()) instanceof TypedExp.Assign e
+                    && e.id().equals(variableName)) {
+                value = e.exp();
+            }
+            if (value != null) {
+                return strip(value) instanceof TypedExp.IntLit literal
+                        ? literal.value()
+                        : null;
+            }
+            if (TreeAnalysis.assignedVars(stm).contains(variableName)
+                    || TreeAnalysis.declaredVars(stm).contains(variableName)) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    // how often the loop runs, or -1 if that is more than the given number
+    // of times or the variable would wrap around on the way
+    private int tripCount(int start, Induction induction, int bound,
+            int maxTrips) {
+        long value = start;
+        int trips = 0;
+        while (compare(induction.operator(), value, bound)) {
+            if (++trips > maxTrips) {
+                return -1;
+            }
+            value += induction.step();
+            if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return trips;
+    }
+
+    private boolean compare(Operator operator, long lhs, long rhs) {
+        return switch (operator) {
+            case Operator.LTH -> lhs < rhs;
+            case Operator.LTE -> lhs <= rhs;
+            case Operator.GTH -> lhs > rhs;
+            case Operator.GTE -> lhs >= rhs;
+            default -> throw new IllegalArgumentException(
+                    "Unsupported comparison " + operator);
+        };
+    }
+
+    private List<TypedStm> bodyOf(TypedStm.While loop) {
+        if (loop.stm() instanceof TypedStm.Block block) {
+            return block.stms();
+        }
+        return List.of(loop.stm());
+    }
+
+    private boolean containsLoop(TypedStm stm) {
+        return switch (stm) {
+            case TypedStm.While _ -> true;
+
+            case TypedStm.Block s -> s.stms().stream()
+                    .anyMatch(this::containsLoop);
+
+            case TypedStm.IfElse s -> containsLoop(s.stm1())
+                    || containsLoop(s.stm2());
+
+            default -> false;
+        };
+    }
+
+    private TypedExp strip(TypedExp exp) {
+        while (exp instanceof TypedExp.Paren paren) {
+            exp = paren.exp();
+        }
+        return exp;
+    }
+
+    public TypedDef.Func unrollFunc(TypedDef.Func function) {
+        return new TypedDef.Func(
+                function.returns(),
+                function.args(),
+                unrollStms(function.stms()),
+                function.funcName());
+    }
+
+    public TypedProgram unroll(TypedProgram program) {
+        LinkedList<TypedDef> definitions = new LinkedList<>();
+        for (TypedDef def : program.defintions()) {
+            definitions.add(unrollFunc((TypedDef.Func) def));
+        }
+        return new TypedProgram(definitions);
+    }
+}
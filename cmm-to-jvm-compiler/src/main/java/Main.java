@@ -1,18 +1,35 @@
+import org.antlr.v4.runtime.BailErrorStrategy;
 import org.antlr.v4.runtime.CharStream;
-import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ConsoleErrorListener;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.atn.DecisionInfo;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import cmm_grammar.*;
+import ssa.*;
 import typed_tree.*;
 
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
 
 public class Main {
+
     public static void main(String[] args) {
         String mode = "--compile"; // default mode
         String srcFile = null;
         String outputFile = null;
+        boolean emitFrames = false;
+        boolean viaSsa = false;
+        boolean dumpSsa = false;
+        boolean debug = false;
+        boolean fastMath = false;
+        boolean parseProfile = false;
+        int unrollBudget = LoopUnroller.DEFAULT_SIZE_BUDGET;
+        int unrollFactor = LoopUnroller.DEFAULT_FACTOR;
 
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
@@ -24,6 +41,37 @@ public class Main {
                 case "--compile":
                     mode = "--compile";
                     break;
+                case "-r":
+                case "--repl":
+                    mode = "--repl";
+                    break;
+                case "-f":
+                case "--frames":
+                    emitFrames = true;
+                    break;
+                case "-s":
+                case "--ssa":
+                    viaSsa = true;
+                    break;
+                case "--dump-ssa":
+                    dumpSsa = true;
+                    break;
+                case "-d":
+                case "--debug":
+                    debug = true;
+                    break;
+                case "--fast-math":
+                    fastMath = true;
+                    break;
+                case "--parse-profile":
+                    parseProfile = true;
+                    break;
+                case "--unroll-budget":
+                    unrollBudget = intArgument(args, ++i, "--unroll-budget");
+                    break;
+                case "--unroll-factor":
+                    unrollFactor = intArgument(args, ++i, "--unroll-factor");
+                    break;
                 case "-o":
                 case "--output":
                     if (i + 1 < args.length) {
@@ -44,6 +92,12 @@ public class Main {
             }
         }
 
+        if (mode.equals("--repl")) {
+            new Repl(new Optimizer(fastMath, unrollBudget, unrollFactor))
+                    .run();
+            return;
+        }
+
         if (srcFile == null) {
             System.err.println("Error: No source file provided");
             printUsageAndExit();
@@ -65,18 +119,28 @@ public class Main {
         }
 
         try {
-            CharStream input = CharStreams.fromFileName(srcFile);
-            cmmLexer lexer = new cmmLexer(input);
-            CommonTokenStream tokens = new CommonTokenStream(lexer);
-            cmmParser parser = new cmmParser(tokens);
-            cmmParser.ProgramContext cProgram = parser.program();
+            // mapped rather than read, large generated sources are lexed as
+            // they are decoded
+            CharStream input = new MappedCharStream(Paths.get(srcFile));
+            cmmParser.ProgramContext cProgram = parse(input, parseProfile);
 
             TypedProgram tProgram = new TypeChecker().typecheck(cProgram);
 
+            // optimizations on the typed tree are shared by both backends
+            tProgram = new Optimizer(fastMath, unrollBudget, unrollFactor)
+                    .optimize(tProgram);
+
+            if (dumpSsa) {
+                for (SsaFunction function : new SsaBuilder().build(tProgram)) {
+                    System.out.println(new SsaPrinter().print(function));
+                }
+            }
+
             if (mode.equals("--interpret")) {
                 new Interpreter().interpret(tProgram);
             } else if (mode.equals("--compile")) {
-                compileAndWriteToFile(tProgram, outputFile);
+                compileAndWriteToFile(tProgram, srcFile, outputFile,
+                        emitFrames, viaSsa, debug);
             } else {
                 printUsageAndExit();
             }
@@ -99,12 +163,81 @@ public class Main {
         }
     }
 
-    private static void compileAndWriteToFile(TypedProgram tProgram, String outputFile) {
+    // parses with SLL prediction first, which looks at less context than
+    // full LL and gives the same tree for every input it parses without an
+    // error. only when it fails is the input parsed again with full LL,
+    // which also reports the syntax errors as before
+    private static cmmParser.ProgramContext parse(CharStream input,
+            boolean profile) {
+        long start = System.nanoTime();
+        CommonTokenStream tokens = new CommonTokenStream(new cmmLexer(input));
+        cmmParser parser = new cmmParser(tokens);
+        parser.setProfile(profile);
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.removeErrorListeners();
+        parser.setErrorHandler(new BailErrorStrategy());
+
+        cmmParser.ProgramContext program;
+        boolean fellBack = false;
         try {
-            String jtext = new Compiler().compile(outputFile, tProgram);
-            PrintWriter writer = new PrintWriter(outputFile);
-            writer.print(jtext);
-            writer.close();
+            program = parser.program();
+        } catch (ParseCancellationException e) {
+            fellBack = true;
+            tokens.seek(0);
+            parser.reset();
+            parser.addErrorListener(ConsoleErrorListener.INSTANCE);
+            parser.setErrorHandler(new DefaultErrorStrategy());
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            program = parser.program();
+        }
+
+        if (profile) {
+            printParseProfile(parser, tokens.size(),
+                    System.nanoTime() - start, fellBack);
+        }
+        return program;
+    }
+
+    // the statistics of every decision the parser made, the slowest first.
+    // lookahead is in tokens, a decision that needed full LL after SLL
+    // found a conflict counts as an LL fallback
+    private static void printParseProfile(cmmParser parser, int tokens,
+            long nanos, boolean fellBack) {
+        System.err.printf("parse profile: %d tokens in %.3f ms, %s%n",
+                tokens, nanos / 1e6,
+                fellBack ? "SLL failed, parsed again with LL" : "SLL only");
+        System.err.printf("%8s %-8s %11s %9s %10s %10s %9s %10s %6s%n",
+                "decision", "rule", "invocations", "time ms",
+                "SLL look", "LL look", "fallbacks", "ambiguous", "errors");
+
+        DecisionInfo[] decisions = parser.getParseInfo().getDecisionInfo();
+        Arrays.sort(decisions, Comparator.comparingLong(
+                (DecisionInfo decision) -> decision.timeInPrediction)
+                .reversed());
+        for (DecisionInfo decision : decisions) {
+            if (decision.invocations == 0) {
+                continue;
+            }
+            String rule = parser.getRuleNames()[parser.getATN()
+                    .getDecisionState(decision.decision).ruleIndex];
+            System.err.printf("%8d %-8s %11d %9.3f %10s %10s %9d %10d %6d%n",
+                    decision.decision, rule, decision.invocations,
+                    decision.timeInPrediction / 1e6,
+                    decision.SLL_TotalLook + "/" + decision.SLL_MaxLook,
+                    decision.LL_TotalLook + "/" + decision.LL_MaxLook,
+                    decision.LL_Fallback, decision.ambiguities.size(),
+                    decision.errors.size());
+        }
+    }
+
+    private static void compileAndWriteToFile(TypedProgram tProgram,
+            String srcFile, String outputFile, boolean emitFrames,
+            boolean viaSsa, boolean debug) {
+        // the compiler writes each method as soon as it is done
+        try (Writer writer = Files.newBufferedWriter(Paths.get(outputFile))) {
+            String sourceName = Paths.get(srcFile).getFileName().toString();
+            new Compiler(emitFrames, viaSsa, debug, sourceName)
+                    .compile(outputFile, tProgram, writer);
             System.out.println("Compiled successfully to " + outputFile);
         } catch (IOException e) {
             System.err.println("Error writing to file: " + e.getMessage());
@@ -113,11 +246,32 @@ public class Main {
         }
     }
 
+    private static int intArgument(String[] args, int index, String flag) {
+        if (index >= args.length) {
+            System.err.println("Error: Missing argument for " + flag);
+            printUsageAndExit();
+        }
+        try {
+            return Integer.parseInt(args[index]);
+        } catch (NumberFormatException e) {
+            System.err.println("Error: " + flag + " needs a number, got "
+                    + args[index]);
+            printUsageAndExit();
+            return 0;
+        }
+    }
+
     private static void printUsageAndExit() {
         System.err.println("Usage:");
         System.err.println("  java Main [-i/--interpret | -c/--compile] " +
+                "[-f/--frames] [-s/--ssa] [--dump-ssa] [-d/--debug] " +
+                "[--fast-math] [--parse-profile] " +
+                "[--unroll-budget <nodes>] " +
+                "[--unroll-factor <copies>] " +
                 "[-o/--output <output_file>] <source_file>");
         System.err.println("  java Main <SourceFile>    # Default is compile mode");
+        System.err.println("  java Main -r/--repl [--fast-math] "
+                + "[--unroll-budget <nodes>] [--unroll-factor <copies>]");
         System.exit(1);
     }
 }
@@ -0,0 +1,259 @@
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.misc.Interval;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// a utf-8 source file read straight from a memory mapping of it, instead of
+// decoded into an int for every character up front like CharStreams does.
+// the lexer works on code point indices, which are found lazily: up to the
+// first non-ascii byte an index is its byte offset, past it the byte offset
+// of every CHECKPOINT_INTERVAL-th code point is recorded as the lexer gets
+// there, and the rest is decoded from the nearest one. malformed input
+// reads as U+FFFD the way CharStreams reads it
+public class MappedCharStream implements CharStream {
+
+    private static final int CHECKPOINT_INTERVAL = 256;
+    private static final int REPLACEMENT = 0xfffd;
+
+    private final String sourceName;
+    private final MappedByteBuffer bytes;
+    private final int length;
+
+    // how far the file is decoded, in code points and in bytes, and how many
+    // code points at its start are ascii
+    private int decodedChars = 0;
+    private int decodedBytes = 0;
+    private int asciiPrefix = 0;
+    private int[] checkpoints = new int[16];
+
+    // the position of the lexer, in code points and in bytes
+    private int index = 0;
+    private int offset = 0;
+
+    public MappedCharStream(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File too large to map: " + path);
+            }
+            this.length = (int) channel.size();
+            // the mapping stays valid after the channel is closed
+            this.bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+        this.sourceName = path.toString();
+    }
+
+    @Override
+    public void consume() {
+        if (offset >= length) {
+            throw new IllegalStateException("cannot consume EOF");
+        }
+        if (index == decodedChars) {
+            decodeTo(index + 1);
+        }
+        offset += index < asciiPrefix ? 1 : sequenceLength(offset);
+        ++index;
+    }
+
+    @Override
+    public int LA(int i) {
+        if (i == 1) {
+            return offset < length ? codePointAt(offset) : IntStream.EOF;
+        }
+        if (i == 0) {
+            // undefined
+            return 0;
+        }
+        int position = i > 0 ? index + i - 1 : index + i;
+        if (position < 0) {
+            return IntStream.EOF;
+        }
+        int at = offsetOf(position);
+        return at < length ? codePointAt(at) : IntStream.EOF;
+    }
+
+    // the whole file stays mapped, so marks need nothing kept
+    @Override
+    public int mark() {
+        return -1;
+    }
+
+    @Override
+    public void release(int marker) {
+    }
+
+    @Override
+    public int index() {
+        return index;
+    }
+
+    @Override
+    public void seek(int index) {
+        if (index == this.index) {
+            return;
+        }
+        this.offset = offsetOf(index);
+        this.index = Math.min(index, decodedChars);
+    }
+
+    // decodes the rest of the file, the lexer itself never asks
+    @Override
+    public int size() {
+        decodeTo(Integer.MAX_VALUE);
+        return decodedChars;
+    }
+
+    @Override
+    public String getSourceName() {
+        return sourceName;
+    }
+
+    @Override
+    public String getText(Interval interval) {
+        if (interval.a < 0 || interval.b < interval.a) {
+            return "";
+        }
+        int from = offsetOf(interval.a);
+        int to = offsetOf(interval.b + 1);
+        byte[] text = new byte[to - from];
+        bytes.get(from, text);
+        if (interval.b < asciiPrefix) {
+            return new String(text, StandardCharsets.ISO_8859_1);
+        }
+
+        // decoded like the lexer sees it, malformed bytes included
+        StringBuilder builder = new StringBuilder(text.length);
+        for (int at = from; at < to; at += sequenceLength(at)) {
+            builder.appendCodePoint(codePointAt(at));
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return getText(Interval.of(0, size() - 1));
+    }
+
+    //// finding code points
+
+    // the byte offset of the code point at the index, or the length of the
+    // file for an index past its end
+    private int offsetOf(int index) {
+        if (index <= asciiPrefix) {
+            return index;
+        }
+        if (index > decodedChars) {
+            decodeTo(index);
+            if (index > decodedChars) {
+                return length;
+            }
+        }
+        if (index == decodedChars) {
+            return decodedBytes;
+        }
+        int at = checkpoints[index / CHECKPOINT_INTERVAL];
+        for (int i = index % CHECKPOINT_INTERVAL; i > 0; i--) {
+            at += sequenceLength(at);
+        }
+        return at;
+    }
+
+    // moves the decoded part of the file up to the next checkpoint at or
+    // after the index, or to its end
+    private void decodeTo(int index) {
+        long end = ((long) index + CHECKPOINT_INTERVAL - 1)
+                / CHECKPOINT_INTERVAL * CHECKPOINT_INTERVAL;
+        while (decodedChars < end && decodedBytes < length) {
+            if (decodedChars % CHECKPOINT_INTERVAL == 0) {
+                int checkpoint = decodedChars / CHECKPOINT_INTERVAL;
+                if (checkpoint == checkpoints.length) {
+                    checkpoints = Arrays.copyOf(checkpoints,
+                            2 * checkpoints.length);
+                }
+                checkpoints[checkpoint] = decodedBytes;
+            }
+            if (bytes.get(decodedBytes) >= 0) {
+                if (asciiPrefix == decodedChars) {
+                    ++asciiPrefix;
+                }
+                ++decodedBytes;
+            } else {
+                decodedBytes += sequenceLength(decodedBytes);
+            }
+            ++decodedChars;
+        }
+    }
+
+    // the number of bytes of the utf-8 sequence at the offset. a malformed
+    // one is as long as the longest start of it that could still have been
+    // well formed, which is the part CharStreams replaces with one U+FFFD
+    private int sequenceLength(int at) {
+        return Math.abs(scan(at));
+    }
+
+    // the length of the well-formed sequence at the offset, or the negated
+    // length of a malformed one. the allowed second bytes rule out overlong
+    // forms and anything past the last code point
+    private int scan(int at) {
+        int first = bytes.get(at) & 0xff;
+        int width;
+        int low = 0x80;
+        int high = 0xbf;
+        if (first < 0x80) {
+            return 1;
+        } else if (first >= 0xc2 && first <= 0xdf) {
+            width = 2;
+        } else if (first >= 0xe0 && first <= 0xef) {
+            width = 3;
+            if (first == 0xe0) {
+                low = 0xa0;
+            }
+        } else if (first >= 0xf0 && first <= 0xf4) {
+            width = 4;
+            if (first == 0xf0) {
+                low = 0x90;
+            } else if (first == 0xf4) {
+                high = 0x8f;
+            }
+        } else {
+            return -1;
+        }
+
+        for (int i = 1; i < width; i++) {
+            int next = at + i < length ? bytes.get(at + i) & 0xff : -1;
+            if (next < low || next > high) {
+                return -i;
+            }
+            low = 0x80;
+            high = 0xbf;
+        }
+        // a whole encoded surrogate is replaced at once
+        if (first == 0xed && (bytes.get(at + 1) & 0xff) >= 0xa0) {
+            return -width;
+        }
+        return width;
+    }
+
+    private int codePointAt(int at) {
+        int first = bytes.get(at) & 0xff;
+        if (first < 0x80) {
+            return first;
+        }
+        int width = scan(at);
+        if (width < 0) {
+            return REPLACEMENT;
+        }
+        int codePoint = first & (0x7f >> width);
+        for (int i = 1; i < width; i++) {
+            codePoint = codePoint << 6 | bytes.get(at + i) & 0x3f;
+        }
+        return codePoint;
+    }
+}
@@ -0,0 +1,466 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import typed_tree.*;
+
+// moves parts of functions that are too large for the jvm into functions of
+// their own. the jvm rejects methods with more than 64KB of code and hotspot
+// never jit compiles a method of more than 8000 bytes, so a function whose
+// estimated code size is above that keeps only its first statements and
+// calls a new function for the rest. statements too large by themselves, such
+// as long loops, get runs of their nested statements moved out instead. such
+// a run can be moved when it contains no return, the variables it declares
+// are not used after it, and at most one outside variable it assigns is
+// needed afterwards, which the new function returns. the outside variables a
+// part uses are passed as arguments. the new functions are named after the
+// function they come from with '$split' and a number, which can never clash
+// with a c-- identifier
+public class MethodSplitter {
+
+    // rough number of bytes of bytecode per node of the typed tree
+    private static final int BYTES_PER_NODE = 4;
+
+    // methods larger than this are never jit compiled by hotspot
+    private static final int HUGE_METHOD = 8000;
+
+    // the most code that is moved into one new function, and the least that
+    // is worth the call
+    private static final int MAX_PART = 2000;
+    private static final int MIN_PART = 200;
+
+    private LinkedList<TypedDef> parts = new LinkedList<>();
+    private String functionName;
+    private int nextPart = 0;
+
+    public static int estimatedSize(TypedDef.Func function) {
+        return BYTES_PER_NODE * TreeAnalysis.size(function);
+    }
+
+    private static int estimatedSize(TypedStm stm) {
+        return BYTES_PER_NODE * TreeAnalysis.size(stm);
+    }
+
+    public TypedDef.Func splitFunc(TypedDef.Func function) {
+        functionName = function.funcName();
+        return splitBody(function);
+    }
+
+    // keeps the statements at the start of the function that fit in one
+    // part and moves the rest into a new function, which it then returns
+    // the result of. nothing the rest assigns is needed afterwards, so this
+    // always works, and the new function is split the same way in turn
+    private TypedDef.Func splitBody(TypedDef.Func function) {
+        if (estimatedSize(function) <= HUGE_METHOD) {
+            return function;
+        }
+
+        Environment<CType> env = new Environment<>();
+        env.setCurrentFunc(function.funcName());
+        env.newContext();
+        Set<String> assigned = new HashSet<>();
+        for (var arg : function.args()) {
+            env.extendVar(arg.id(), arg.type());
+            assigned.add(arg.id());
+        }
+
+        List<TypedStm> stms = function.stms();
+        LinkedList<TypedStm> head = new LinkedList<>();
+        int size = 0;
+        int i = 0;
+        while (i < stms.size()) {
+            TypedStm stm = stms.get(i);
+            if (!head.isEmpty() && size + estimatedSize(stm) > MAX_PART) {
+                break;
+            }
+
+            // a single statement too large for a part is split inside
+            if (estimatedSize(stm) > MAX_PART) {
+                Set<String> usedAfter = new HashSet<>();
+                for (TypedStm later : stms.subList(i + 1, stms.size())) {
+                    usedAfter.addAll(TreeAnalysis.usedVars(later));
+                }
+                head.add(splitStm(env, new HashSet<>(assigned), stm,
+                        usedAfter));
+            } else {
+                head.add(stm);
+            }
+            track(env, assigned, stm);
+            size += estimatedSize(stm);
+            ++i;
+        }
+
+        if (i < stms.size()) {
+            TypedExp call = outlineRest(env, assigned, function,
+                    stms.subList(i, stms.size()));
+            head.add(function.returns() == CType.VOID
+                    ? new TypedStm.Exp(CType.VOID, call)
+                    : new TypedStm.Return(call));
+        }
+
+        return new TypedDef.Func(
+                function.returns(),
+                function.args(),
+                head,
+                function.funcName());
+    }
+
+    // the new function for the rest of a function, and the call to it
+    private TypedExp outlineRest(
+            Environment<CType> env,
+            Set<String> assigned,
+            TypedDef.Func function,
+            List<TypedStm> rest) {
+
+        Set<String> used = new TreeSet<>();
+        for (TypedStm stm : rest) {
+            used.addAll(TreeAnalysis.usedVars(stm));
+        }
+
+        LinkedList<TypedArg> args = new LinkedList<>();
+        LinkedList<TypedExp> arguments = new LinkedList<>();
+        LinkedList<TypedStm> body = new LinkedList<>();
+        passVariables(env, assigned, used, Set.of(), args, arguments, body);
+        body.addAll(rest);
+
+        // main may end without a return, which the jvm allows only because
+        // main is void there. the new function returns a value, so it gets
+        // a return of its own, which is dropped as unreachable when the rest
+        // already ends in one
+        if (function.returns() != CType.VOID
+                && !(rest.getLast() instanceof TypedStm.Return)) {
+            body.add(new TypedStm.Return(zero(function.returns())));
+        }
+
+        String name = functionName + "$split" + nextPart++;
+        parts.add(splitBody(new TypedDef.Func(function.returns(), args, body,
+                name)));
+        return new TypedExp.Func(name, arguments, function.returns());
+    }
+
+    private static TypedExp zero(CType type) {
+        return switch (type) {
+            case CType.INT -> new TypedExp.IntLit(0);
+            case CType.DOUBLE -> new TypedExp.DoubleLit(0.0);
+            case CType.BOOL -> new TypedExp.BoolLit(false);
+            default -> throw new IllegalArgumentException(
+                    "No value of type " + type);
+        };
+    }
+
+    // outside variables used by a part are passed as arguments if they have
+    // a value, and declared in the new function otherwise
+    private void passVariables(
+            Environment<CType> env,
+            Set<String> assigned,
+            Set<String> used,
+            Set<String> declared,
+            LinkedList<TypedArg> args,
+            LinkedList<TypedExp> arguments,
+            LinkedList<TypedStm> body) {
+
+        for (String variableName : used) {
+            if (declared.contains(variableName)
+                    || !env.existsVar(variableName)) {
+                continue;
+            }
+            CType type = env.lookupVar(variableName);
+            if (assigned.contains(variableName)) {
+                args.add(new TypedArg.Decl(type, variableName));
+                arguments.add(new TypedExp.Ident(variableName, type));
+            } else {
+                body.add(new TypedStm.Decls(type,
+                        new LinkedList<>(List.of(variableName))));
+            }
+        }
+    }
+
+    // the split program has the new functions after all the others
+    public TypedProgram split(TypedProgram program) {
+        LinkedList<TypedDef> definitions = new LinkedList<>();
+        for (TypedDef def : program.defintions()) {
+            definitions.add(splitFunc((TypedDef.Func) def));
+        }
+        definitions.addAll(parts);
+        return new TypedProgram(definitions);
+    }
+
+    // splits a list of statements in the current scope of env. assigned holds
+    // the variables that are definitely assigned before the list, and
+    // usedLater the ones that may be used once the list is done, after it or
+    // in the next iteration of a surrounding loop
+    private LinkedList<TypedStm> splitStms(
+            Environment<CType> env,
+            Set<String> assigned,
+            List<TypedStm> stms,
+            Set<String> usedLater) {
+
+        // the last statement of the list each variable is used in
+        HashMap<String, Integer> lastUse = new HashMap<>();
+        for (int i = 0; i < stms.size(); i++) {
+            for (String variableName : TreeAnalysis.usedVars(stms.get(i))) {
+                lastUse.put(variableName, i);
+            }
+        }
+
+        LinkedList<TypedStm> result = new LinkedList<>();
+        int i = 0;
+        while (i < stms.size()) {
+            TypedStm stm = stms.get(i);
+
+            // a single statement too large to move is split inside
+            if (estimatedSize(stm) > MAX_PART) {
+                Set<String> usedAfter = new HashSet<>(usedLater);
+                for (var entry : lastUse.entrySet()) {
+                    if (entry.getValue() > i) {
+                        usedAfter.add(entry.getKey());
+                    }
+                }
+                result.add(splitStm(env, new HashSet<>(assigned), stm,
+                        usedAfter));
+                track(env, assigned, stm);
+                ++i;
+                continue;
+            }
+
+            int end = i;
+            int size = 0;
+            while (end < stms.size()
+                    && size + estimatedSize(stms.get(end)) <= MAX_PART) {
+                size += estimatedSize(stms.get(end));
+                ++end;
+            }
+
+            // a part that can not be moved may still have a shorter start
+            // that can
+            TypedStm call = null;
+            while (call == null && size >= MIN_PART) {
+                call = outline(env, assigned, stms.subList(i, end), lastUse,
+                        end, usedLater);
+                if (call == null) {
+                    end = i + (end - i) / 2;
+                    size = 0;
+                    for (TypedStm moved : stms.subList(i, end)) {
+                        size += estimatedSize(moved);
+                    }
+                }
+            }
+            if (call != null) {
+                result.add(call);
+                track(env, assigned, call);
+                i = end;
+            } else {
+                result.add(stm);
+                track(env, assigned, stm);
+                ++i;
+            }
+        }
+        return result;
+    }
+
+    // splits the statement lists nested in a statement
+    private TypedStm splitStm(
+            Environment<CType> env,
+            Set<String> assigned,
+            TypedStm stm,
+            Set<String> usedLater) {
+
+        return switch (stm) {
+            case TypedStm.Block s -> {
+                env.newContext();
+                LinkedList<TypedStm> stms = splitStms(env, assigned, s.stms(),
+                        usedLater);
+                env.removeContext();
+                yield new TypedStm.Block(stms);
+            }
+
+            case TypedStm.While s -> {
+                // the body runs again after itself, and so does the test
+                Set<String> usedAfter = new HashSet<>(usedLater);
+                usedAfter.addAll(TreeAnalysis.usedVars(s));
+                assigned.addAll(TreeAnalysis.definitelyAssigned(s.exp()));
+                yield new TypedStm.While(s.exp(),
+                        splitStm(env, assigned, s.stm(), usedAfter), s.line());
+            }
+
+            case TypedStm.IfElse s -> {
+                assigned.addAll(TreeAnalysis.definitelyAssigned(s.exp()));
+                yield new TypedStm.IfElse(s.exp(),
+                        splitStm(env, new HashSet<>(assigned), s.stm1(),
+                                usedLater),
+                        splitStm(env, new HashSet<>(assigned), s.stm2(),
+                                usedLater), s.line());
+            }
+
+            default -> stm;
+        };
+    }
+
+    // moves a run of statements nested in the function into a new function
+    // and gives the statement calling it, or null if the run can not be
+    // moved
+    private TypedStm outline(
+            Environment<CType> env,
+            Set<String> assigned,
+            List<TypedStm> part,
+            HashMap<String, Integer> lastUse,
+            int end,
+            Set<String> usedLater) {
+
+        Set<String> used = new TreeSet<>();
+        Set<String> written = new HashSet<>();
+        for (TypedStm stm : part) {
+            // control may only leave the part at its end
+            if (TreeAnalysis.containsReturn(stm)) {
+                return null;
+            }
+            used.addAll(TreeAnalysis.usedVars(stm));
+            written.addAll(TreeAnalysis.assignedVars(stm));
+        }
+
+        // the variables declared by the part are gone after the call
+        Set<String> declared = declaredVars(part);
+        for (String variableName : declared) {
+            if (env.existsVar(variableName)
+                    || lastUse.getOrDefault(variableName, -1) >= end
+                    || usedLater.contains(variableName)) {
+                return null;
+            }
+        }
+
+        // only one variable can come back as the result
+        String result = null;
+        for (String variableName : used) {
+            if (env.existsVar(variableName)
+                    && written.contains(variableName)
+                    && (lastUse.getOrDefault(variableName, -1) >= end
+                            || usedLater.contains(variableName))) {
+                if (result != null) {
+                    return null;
+                }
+                result = variableName;
+            }
+        }
+
+        // and it has to have a value to return
+        if (result != null && !assigned.contains(result)) {
+            Set<String> assignedAfter = new HashSet<>(assigned);
+            env.newContext();
+            for (TypedStm stm : part) {
+                track(env, assignedAfter, stm);
+            }
+            env.removeContext();
+            if (!assignedAfter.contains(result)) {
+                return null;
+            }
+        }
+
+        LinkedList<TypedArg> args = new LinkedList<>();
+        LinkedList<TypedExp> arguments = new LinkedList<>();
+        LinkedList<TypedStm> body = new LinkedList<>();
+        passVariables(env, assigned, used, declared, args, arguments, body);
+        body.addAll(part);
+
+        CType returns = CType.VOID;
+        if (result != null) {
+            returns = env.lookupVar(result);
+            body.add(new TypedStm.Return(new TypedExp.Ident(result, returns)));
+        }
+
+        String name = functionName + "$split" + nextPart++;
+        parts.add(new TypedDef.Func(returns, args, body, name));
+
+        TypedExp call = new TypedExp.Func(name, arguments, returns);
+        return result == null
+                ? new TypedStm.Exp(CType.VOID, call)
+                : new TypedStm.Exp(returns,
+                        new TypedExp.Assign(result, call, returns));
+    }
+
+    // declares the variables of the statement in env and adds those it
+    // definitely assigns to assigned
+    private void track(
+            Environment<CType> env,
+            Set<String> assigned,
+            TypedStm stm) {
+
+        switch (stm) {
+            case TypedStm.Exp s -> assigned.addAll(
+                    TreeAnalysis.definitelyAssigned(s.exp()));
+
+            case TypedStm.Decls s -> {
+                for (String name : s.names()) {
+                    env.extendVar(name, s.type());
+                    assigned.remove(name);
+                }
+            }
+
+            case TypedStm.Init s -> {
+                assigned.addAll(TreeAnalysis.definitelyAssigned(s.exp()));
+                env.extendVar(s.name(), s.type());
+                assigned.add(s.name());
+            }
+
+            case TypedStm.Return s -> assigned.addAll(
+                    TreeAnalysis.definitelyAssigned(s.exp()));
+
+            // the body may never run
+            case TypedStm.While s -> assigned.addAll(
+                    TreeAnalysis.definitelyAssigned(s.exp()));
+
+            case TypedStm.IfElse s -> {
+                assigned.addAll(TreeAnalysis.definitelyAssigned(s.exp()));
+                Set<String> thenAssigned = new HashSet<>(assigned);
+                trackScope(env, thenAssigned, List.of(s.stm1()));
+                Set<String> elseAssigned = new HashSet<>(assigned);
+                trackScope(env, elseAssigned, List.of(s.stm2()));
+                thenAssigned.retainAll(elseAssigned);
+                assigned.addAll(thenAssigned);
+            }
+
+            case TypedStm.Block s -> trackScope(env, assigned, s.stms());
+
+            default -> throw new RuntimeException(
+                    "Statement " + stm.getClass() + " not yet implemented.");
+        }
+    }
+
+    // the variables declared in a scope hide the outer ones of the same name
+    // until it ends, after which those are as they were before
+    private void trackScope(
+            Environment<CType> env,
+            Set<String> assigned,
+            List<TypedStm> stms) {
+
+        Set<String> before = new HashSet<>(assigned);
+        env.newContext();
+        for (TypedStm stm : stms) {
+            track(env, assigned, stm);
+        }
+        env.removeContext();
+
+        for (String variableName : declaredVars(stms)) {
+            if (before.contains(variableName)) {
+                assigned.add(variableName);
+            } else {
+                assigned.remove(variableName);
+            }
+        }
+    }
+
+    // the variables declared directly in a list of statements
+    private Set<String> declaredVars(List<TypedStm> stms) {
+        Set<String> declared = new HashSet<>();
+        for (TypedStm stm : stms) {
+            if (stm instanceof TypedStm.Decls decls) {
+                declared.addAll(decls.names());
+            } else if (stm instanceof TypedStm.Init init) {
+                declared.add(init.name());
+            }
+        }
+        return declared;
+    }
+}
@@ -0,0 +1,81 @@
+import typed_tree.*;
+
+// runs the optimization passes over the typed tree. the optimized tree is
+// what both the interpreter and the compiler get to see
+public class Optimizer {
+
+    // whether double arithmetic may be rewritten in ways that change results
+    // involving nan, infinities, negative zero or rounding
+    private final boolean fastMath;
+
+    // how much code loop unrolling may add per loop, in tree nodes, and how
+    // many copies of its body a loop with an unknown trip count gets
+    private final int unrollBudget;
+    private final int unrollFactor;
+
+    public Optimizer() {
+        this(false);
+    }
+
+    public Optimizer(boolean fastMath) {
+        this(fastMath, LoopUnroller.DEFAULT_SIZE_BUDGET,
+                LoopUnroller.DEFAULT_FACTOR);
+    }
+
+    public Optimizer(boolean fastMath, int unrollBudget, int unrollFactor) {
+        this.fastMath = fastMath;
+        this.unrollBudget = unrollBudget;
+        this.unrollFactor = unrollFactor;
+    }
+
+    public TypedProgram optimize(TypedProgram program) {
+        program = new ConstantFolder().fold(program);
+        program = new AlgebraicSimplifier(fastMath).simplify(program);
+        program = new DeadCodeEliminator().eliminate(program);
+
+        // inlined bodies get to see the constant arguments of the call site,
+        // so fold and clean up once more afterwards
+        program = new Inliner().inline(program);
+        program = new DeadFunctionEliminator().eliminate(program);
+        program = new ConstantFolder().fold(program);
+
+        // the copies of an unrolled body are folded with the rest below
+        program = new LoopUnroller(unrollBudget, unrollFactor)
+                .unroll(program);
+
+        // calls that now only get literals can be run right away, and their
+        // results folded further
+        program = new PartialEvaluator().evaluate(program);
+        program = new ConstantFolder().fold(program);
+        program = new AlgebraicSimplifier(fastMath).simplify(program);
+        program = new DeadCodeEliminator().eliminate(program);
+
+        // calls evaluated away may leave functions and parameters unused
+        program = new DeadFunctionEliminator().eliminate(program);
+
+        // last, so that the hoisted expressions are already folded
+        program = new LoopInvariantMover().move(program);
+
+        // also shares the values the hoisted locals are computed from
+        program = new CommonSubexpressionEliminator().eliminate(program);
+
+        return program;
+    }
+
+    // only the passes that look at one function at a time, for functions
+    // that are compiled on their own while the functions they call may
+    // still be defined again
+    public TypedProgram optimizeLocally(TypedProgram program) {
+        program = new ConstantFolder().fold(program);
+        program = new AlgebraicSimplifier(fastMath).simplify(program);
+        program = new DeadCodeEliminator().eliminate(program);
+        program = new LoopUnroller(unrollBudget, unrollFactor)
+                .unroll(program);
+        program = new ConstantFolder().fold(program);
+        program = new AlgebraicSimplifier(fastMath).simplify(program);
+        program = new DeadCodeEliminator().eliminate(program);
+        program = new LoopInvariantMover().move(program);
+        program = new CommonSubexpressionEliminator().eliminate(program);
+        return program;
+    }
+}
@@ -0,0 +1,194 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+import typed_tree.*;
+
+// runs calls whose arguments are all literals at compile time and puts the
+// result in their place. only functions that can neither read input nor
+// print, directly or through the functions they call, are run, and the
+// interpreter does the running with a limited amount of fuel. a call that
+// runs out of fuel, divides by zero or recurses too deep is left alone, so
+// it still does the same at run time, and so is one giving a double that has
+// no literal
+public class PartialEvaluator {
+
+    // steps of the interpreter one call may take, and all calls together
+    private static final long FUEL_PER_CALL = 30_000_000;
+    private static final long TOTAL_FUEL = 60_000_000;
+
+    private long fuelLeft = TOTAL_FUEL;
+    private List<TypedDef.Func> functions = new LinkedList<>();
+    private HashSet<String> pure = new HashSet<>();
+
+    // the result of every call tried so far, or the call itself when it could
+    // not be evaluated
+    private HashMap<TypedExp, TypedExp> results = new HashMap<>();
+
+    public TypedStm evaluateStm(TypedStm stm) {
+        return switch (stm) {
+            case TypedStm.Exp s -> new TypedStm.Exp(s.type(),
+                    evaluateExp(s.exp()), s.line());
+
+            case TypedStm.Decls s -> s;
+
+            case TypedStm.Init s -> new TypedStm.Init(s.type(), s.name(),
+                    evaluateExp(s.exp()), s.line());
+
+            case TypedStm.Return s -> new TypedStm.Return(
+                    evaluateExp(s.exp()), s.line());
+
+            case TypedStm.While s -> new TypedStm.While(
+                    evaluateExp(s.exp()),
+                    evaluateStm(s.stm()), s.line());
+
+            case TypedStm.IfElse s -> new TypedStm.IfElse(
+                    evaluateExp(s.exp()),
+                    evaluateStm(s.stm1()),
+                    evaluateStm(s.stm2()), s.line());
+
+            case TypedStm.Block s -> {
+                LinkedList<TypedStm> stms = new LinkedList<>();
+                for (var statement : s.stms()) {
+                    stms.add(evaluateStm(statement));
+                }
+                yield new TypedStm.Block(stms);
+            }
+
+            default -> throw new RuntimeException(
+                    "Statement " + stm.getClass() + " not yet implemented.");
+        };
+    }
+
+    // arguments are evaluated first, so a call that only gets literal
+    // arguments from inner calls can be evaluated as well
+    public TypedExp evaluateExp(TypedExp exp) {
+        return switch (exp) {
+            case TypedExp.Paren e -> new TypedExp.Paren(
+                    evaluateExp(e.exp()), e.type());
+
+            case TypedExp.Func e -> {
+                LinkedList<TypedExp> args = new LinkedList<>();
+                for (var argument : e.exps()) {
+                    args.add(evaluateExp(argument));
+                }
+                TypedExp.Func call = new TypedExp.Func(e.id(), args, e.type());
+                if (pure.contains(e.id())
+                        && e.type() != CType.VOID
+                        && args.stream().allMatch(TreeAnalysis::isLiteral)) {
+                    yield evaluateCall(call);
+                }
+                yield call;
+            }
+
+            case TypedExp.Mul _ -> TreeAnalysis.foldSpine(
+                    exp, this::evaluateExp, TreeAnalysis::withOperands);
+
+            case TypedExp.Add _ -> TreeAnalysis.foldSpine(
+                    exp, this::evaluateExp, TreeAnalysis::withOperands);
+
+            case TypedExp.Cmp e -> new TypedExp.Cmp(
+                    evaluateExp(e.exp1()),
+                    evaluateExp(e.exp2()),
+                    e.operator());
+
+            case TypedExp.And e -> new TypedExp.And(
+                    evaluateExp(e.exp1()),
+                    evaluateExp(e.exp2()));
+
+            case TypedExp.Or e -> new TypedExp.Or(
+                    evaluateExp(e.exp1()),
+                    evaluateExp(e.exp2()));
+
+            case TypedExp.Assign e -> new TypedExp.Assign(e.id(),
+                    evaluateExp(e.exp()), e.type());
+
+            case TypedExp.Int2Double e -> new TypedExp.Int2Double(
+                    evaluateExp(e.exp()));
+
+            // literals, identifiers and increments
+            default -> exp;
+        };
+    }
+
+    private TypedExp evaluateCall(TypedExp.Func call) {
+        TypedExp result = results.get(call);
+        if (result != null) {
+            return result;
+        }
+        if (fuelLeft <= 0) {
+            return call;
+        }
+
+        Interpreter interpreter = new Interpreter(
+                Math.min(FUEL_PER_CALL, fuelLeft));
+        long fuelBefore = interpreter.fuel();
+        Environment<Value> env = new Environment<>();
+        env.newContext();
+        try {
+            result = literal(interpreter.runExp(env, functions, call),
+                    call.type());
+        } catch (RuntimeException | StackOverflowError e) {
+            // out of fuel, a division by zero, too deep recursion or reading
+            // a variable that was never assigned
+            result = null;
+        }
+        fuelLeft -= fuelBefore - Math.max(interpreter.fuel(), 0);
+
+        if (result == null) {
+            result = call;
+        }
+        results.put(call, result);
+        return result;
+    }
+
+    // a double the constant folder would not write as a literal either is
+    // left to the call at runtime
+    private TypedExp literal(Value value, CType type) {
+        if (value.value() == null) {
+            return null;
+        }
+        return switch (type) {
+            case CType.INT -> new TypedExp.IntLit(value.toInt().value());
+            case CType.DOUBLE -> {
+                double result = value.toDubbel().value();
+                yield ConstantFolder.isRepresentable(result)
+                        ? new TypedExp.DoubleLit(result)
+                        : null;
+            }
+            case CType.BOOL -> new TypedExp.BoolLit(value.toBool().value());
+            default -> null;
+        };
+    }
+
+    public TypedDef.Func evaluateFunc(TypedDef.Func function) {
+        LinkedList<TypedStm> stms = new LinkedList<>();
+        for (var stm : function.stms()) {
+            stms.add(evaluateStm(stm));
+        }
+        return new TypedDef.Func(
+                function.returns(),
+                function.args(),
+                stms,
+                function.funcName());
+    }
+
+    public TypedProgram evaluate(TypedProgram program) {
+        CallGraph callGraph = new CallGraph(program);
+        for (TypedDef def : program.defintions()) {
+            TypedDef.Func function = (TypedDef.Func) def;
+            functions.add(function);
+            if (!function.funcName().equals("main")
+                    && !callGraph.performsIo(function.funcName())) {
+                pure.add(function.funcName());
+            }
+        }
+
+        LinkedList<TypedDef> definitions = new LinkedList<>();
+        for (TypedDef.Func function : functions) {
+            definitions.add(evaluateFunc(function));
+        }
+        return new TypedProgram(definitions);
+    }
+}
@@ -0,0 +1,160 @@
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import cmm_grammar.*;
+import typed_tree.*;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+// reads function definitions and statements one input at a time and runs
+// them right away. the type checker keeps one session environment with the
+// signatures of the functions and the variables declared at the top level,
+// and the ReplLinker keeps their code and values. an input goes on over
+// several lines while it has brackets open
+public class Repl {
+
+    private static final Set<String> TYPES =
+            Set.of("bool", "int", "double", "void");
+
+    // any syntax error ends the parse of the input
+    private static final BaseErrorListener FAIL = new BaseErrorListener() {
+        @Override
+        public void syntaxError(Recognizer<?, ?> recognizer,
+                Object offendingSymbol, int line, int charPositionInLine,
+                String msg, RecognitionException e) {
+            throw new ParseCancellationException(
+                    "line " + line + ":" + charPositionInLine + " " + msg);
+        }
+    };
+
+    private final TypeChecker typeChecker = new TypeChecker();
+    private final TypeChecker.TypeCheckerEnvironment session =
+            typeChecker.initialEnvironment();
+    private final ReplLinker linker;
+
+    public Repl(Optimizer optimizer) {
+        this.linker = new ReplLinker(optimizer);
+    }
+
+    // reads through Runtime, so the programs that read input and the repl
+    // share one buffer
+    public void run() {
+        StringBuilder input = new StringBuilder();
+        while (true) {
+            prompt(input.isEmpty() ? "> " : "... ");
+            String line = Runtime.readLine();
+            if (line == null) {
+                break;
+            }
+            if (input.isEmpty() && line.strip().equals(":quit")) {
+                break;
+            }
+            input.append(line).append('\n');
+            if (!isOpen(input.toString())) {
+                eval(input.toString());
+                input.setLength(0);
+            }
+        }
+        Runtime.flush();
+    }
+
+    private void prompt(String prompt) {
+        Runtime.flush();
+        System.out.print(prompt);
+        System.out.flush();
+    }
+
+    // whether the input has more brackets opened than closed
+    private boolean isOpen(String input) {
+        cmmLexer lexer = new cmmLexer(CharStreams.fromString(input));
+        lexer.removeErrorListeners();
+        int depth = 0;
+        for (Token token = lexer.nextToken(); token.getType() != Token.EOF;
+                token = lexer.nextToken()) {
+            switch (token.getText()) {
+                case "(", "{" -> ++depth;
+                case ")", "}" -> --depth;
+                default -> {
+                    // nothing to count
+                }
+            }
+        }
+        return depth > 0;
+    }
+
+    public void eval(String input) {
+        try {
+            // the whole input is parsed before any of it runs
+            cmmLexer lexer = new cmmLexer(CharStreams.fromString(input, "repl"));
+            lexer.removeErrorListeners();
+            lexer.addErrorListener(FAIL);
+            CommonTokenStream tokens = new CommonTokenStream(lexer);
+            cmmParser parser = new cmmParser(tokens);
+            parser.removeErrorListeners();
+            parser.addErrorListener(FAIL);
+
+            LinkedList<Object> items = new LinkedList<>();
+            while (tokens.LA(1) != Token.EOF) {
+                if (startsDefinition(tokens)) {
+                    items.add(parser.def());
+                } else {
+                    items.add(parser.stm());
+                }
+            }
+
+            // statements that follow each other run together
+            LinkedList<cmmParser.StmContext> stms = new LinkedList<>();
+            for (Object item : items) {
+                if (item instanceof cmmParser.StmContext stm) {
+                    stms.add(stm);
+                    continue;
+                }
+                runStms(stms);
+                stms.clear();
+                define((cmmParser.DefContext) item);
+            }
+            runStms(stms);
+        } catch (ParseCancellationException e) {
+            System.out.println("SYNTAX ERROR: " + e.getMessage());
+        } catch (TypeException e) {
+            System.out.println("TYPE ERROR: " + e.getMessage());
+        } catch (Throwable e) {
+            Runtime.flush();
+            System.out.println("EXCEPTION: " + e);
+        }
+    }
+
+    // a definition starts with a type, a name and an opening parenthesis,
+    // where a declaration has anything else after the name
+    private boolean startsDefinition(CommonTokenStream tokens) {
+        return TYPES.contains(tokens.LT(1).getText())
+                && tokens.LT(2).getType() == cmmLexer.Ident
+                && tokens.LT(3).getText().equals("(");
+    }
+
+    private void define(cmmParser.DefContext def) throws Throwable {
+        TypedDef.Func function = typeChecker.checkSessionFunc(session, def);
+        boolean replaced = linker.define(function);
+        System.out.println((replaced ? "redefined " : "defined ")
+                + function.funcName());
+    }
+
+    private void runStms(List<cmmParser.StmContext> stms) throws Throwable {
+        if (stms.isEmpty()) {
+            return;
+        }
+        LinkedList<TypedStm> typedStms = typeChecker.checkSessionStms(
+                session, stms);
+        try {
+            linker.run(typedStms);
+        } finally {
+            Runtime.flush();
+        }
+    }
+}
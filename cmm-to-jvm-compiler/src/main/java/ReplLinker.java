@@ -0,0 +1,221 @@
+import java.lang.constant.ConstantDescs;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import typed_tree.*;
+
+// runs what a repl is given inside this jvm. every function is compiled
+// into a hidden class of its own, and calls between functions go through
+// invokedynamic to one mutable call site per function. defining a function
+// again compiles only the new definition and points its call site at it,
+// the callers keep their code. statements entered at the top level become
+// a method of a hidden class of their own, which gets the variables of the
+// earlier statements as parameters and hands all values back at the end
+// through calls linked to keep. the hidden classes get the linker as their
+// class data, which is how the bootstrap method finds it
+public class ReplLinker {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    // calls that hand back the value of the variable named after the
+    // prefix, which can never clash with a c-- identifier
+    private static final String KEEP_PREFIX = "$keep$";
+    private static final String RUN = "$run";
+
+    private static final MethodHandle KEEP;
+
+    static {
+        try {
+            KEEP = LOOKUP.findVirtual(ReplLinker.class, "keep",
+                    MethodType.methodType(void.class, String.class,
+                            Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Compiler compiler = new Compiler(true, false, false);
+    private final Optimizer optimizer;
+
+    private final HashMap<String, MutableCallSite> functions = new HashMap<>();
+
+    // the variables declared at the top level so far, in order, and their
+    // values
+    private final LinkedHashMap<String, CType> variables = new LinkedHashMap<>();
+    private final HashMap<String, Object> values = new HashMap<>();
+
+    public ReplLinker() {
+        this(new Optimizer());
+    }
+
+    public ReplLinker(Optimizer optimizer) {
+        this.optimizer = optimizer;
+    }
+
+    // the bootstrap method of every invokedynamic in the hidden classes
+    public static CallSite link(MethodHandles.Lookup caller, String name,
+            MethodType type) throws ReflectiveOperationException {
+        ReplLinker linker = MethodHandles.classData(caller,
+                ConstantDescs.DEFAULT_NAME, ReplLinker.class);
+        if (name.startsWith(KEEP_PREFIX)) {
+            return new ConstantCallSite(MethodHandles.insertArguments(KEEP,
+                    0, linker, name.substring(KEEP_PREFIX.length()))
+                    .asType(type));
+        }
+        MutableCallSite site = linker.functions.get(name);
+        if (site == null || !site.type().equals(type)) {
+            throw new NoSuchMethodException("No function " + name + type);
+        }
+        return site;
+    }
+
+    private void keep(String variableName, Object value) {
+        values.put(variableName, value);
+    }
+
+    // returns whether the function replaced an earlier definition
+    public boolean define(TypedDef.Func function)
+            throws ReflectiveOperationException {
+        MethodHandle target = load(function);
+        MutableCallSite site = functions.get(function.funcName());
+        if (site == null) {
+            functions.put(function.funcName(), new MutableCallSite(target));
+            return false;
+        }
+        site.setTarget(target);
+        MutableCallSite.syncAll(new MutableCallSite[] { site });
+        return true;
+    }
+
+    // the variables declared by the statements are kept even when running
+    // them fails, with the values of the ones that were not handed back
+    // yet being zero. variables declared without a value start at zero too
+    public void run(List<TypedStm> stms) throws Throwable {
+        LinkedHashMap<String, CType> declared = new LinkedHashMap<>();
+        LinkedList<TypedStm> body = new LinkedList<>();
+        for (TypedStm stm : stms) {
+            switch (stm) {
+                case TypedStm.Decls s -> {
+                    for (String name : s.names()) {
+                        declared.put(name, s.type());
+                        body.add(new TypedStm.Init(s.type(), name,
+                                zero(s.type())));
+                    }
+                }
+
+                case TypedStm.Init s -> {
+                    declared.put(s.name(), s.type());
+                    body.add(s);
+                }
+
+                default -> body.add(stm);
+            }
+        }
+
+        LinkedList<TypedArg> parameters = new LinkedList<>();
+        for (Map.Entry<String, CType> variable : variables.entrySet()) {
+            parameters.add(new TypedArg.Decl(variable.getValue(),
+                    variable.getKey()));
+        }
+        LinkedHashMap<String, CType> all = new LinkedHashMap<>(variables);
+        all.putAll(declared);
+        for (Map.Entry<String, CType> variable : all.entrySet()) {
+            body.add(new TypedStm.Exp(CType.VOID, new TypedExp.Func(
+                    KEEP_PREFIX + variable.getKey(),
+                    new LinkedList<>(List.of(new TypedExp.Ident(
+                            variable.getKey(), variable.getValue()))),
+                    CType.VOID)));
+        }
+
+        try {
+            ArrayList<Object> arguments = new ArrayList<>();
+            for (String name : variables.keySet()) {
+                arguments.add(values.get(name));
+            }
+            load(new TypedDef.Func(CType.VOID, parameters, body, RUN))
+                    .invokeWithArguments(arguments);
+        } finally {
+            for (Map.Entry<String, CType> variable : declared.entrySet()) {
+                variables.put(variable.getKey(), variable.getValue());
+                values.putIfAbsent(variable.getKey(),
+                        zeroValue(variable.getValue()));
+            }
+        }
+    }
+
+    public Map<String, CType> variables() {
+        return variables;
+    }
+
+    public Object value(String variableName) {
+        return values.get(variableName);
+    }
+
+    // compiles the function into a hidden class of its own and returns its
+    // method
+    private MethodHandle load(TypedDef.Func function)
+            throws ReflectiveOperationException {
+        TypedDef.Func optimized = (TypedDef.Func) optimizer
+                .optimizeLocally(new TypedProgram(
+                        new LinkedList<>(List.of(function))))
+                .defintions().get(0);
+
+        // hidden classes have to be in the package of the lookup
+        String className = "Repl$" + function.funcName();
+        ClassFileWriter writer = new ClassFileWriter(className,
+                "ReplLinker", "repl");
+        writer.addMethod(compiler.compileFunc(optimized, className)
+                .instructions());
+        MethodHandles.Lookup hidden = LOOKUP.defineHiddenClassWithClassData(
+                writer.toByteArray(), this, true);
+
+        ArrayList<Class<?>> parameterTypes = new ArrayList<>();
+        for (TypedArg arg : function.args()) {
+            parameterTypes.add(javaType(arg.type()));
+        }
+        return hidden.findStatic(hidden.lookupClass(), function.funcName(),
+                MethodType.methodType(javaType(function.returns()),
+                        parameterTypes));
+    }
+
+    private static Class<?> javaType(CType type) {
+        return switch (type) {
+            case CType.INT -> int.class;
+            case CType.DOUBLE -> double.class;
+            case CType.BOOL -> boolean.class;
+            case CType.VOID -> void.class;
+            default -> throw new IllegalArgumentException(
+                    "Unsupported type " + type);
+        };
+    }
+
+    private static TypedExp zero(CType type) {
+        return switch (type) {
+            case CType.INT -> new TypedExp.IntLit(0);
+            case CType.DOUBLE -> new TypedExp.DoubleLit(0.0);
+            case CType.BOOL -> new TypedExp.BoolLit(false);
+            default -> throw new IllegalArgumentException(
+                    "No variables of type " + type);
+        };
+    }
+
+    private static Object zeroValue(CType type) {
+        return switch (type) {
+            case CType.INT -> 0;
+            case CType.DOUBLE -> 0.0;
+            case CType.BOOL -> false;
+            default -> throw new IllegalArgumentException(
+                    "No variables of type " + type);
+        };
+    }
+}
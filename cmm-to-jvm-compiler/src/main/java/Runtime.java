@@ -0,0 +1,301 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.InputMismatchException;
+import java.util.NoSuchElementException;
+
+// the builtins compiled programs call, 'Runtime/printInt(I)V' and so on.
+// the output is formatted straight into a byte buffer that is written when
+// it is full, before the program blocks on input and when the jvm shuts
+// down. input is read in large blocks and tokenized in place. reads and
+// prints behave like Scanner and println, which the interpreter uses, so
+// both print the same for the same program and input
+public class Runtime {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // longest int is 11 characters, the separator is at most 2
+    private static final int MAX_INT_LENGTH = 16;
+
+    private static final byte[] NEWLINE = System.lineSeparator()
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private static final OutputStream out = System.out;
+    private static final byte[] output = new byte[BUFFER_SIZE];
+    private static int outputLength = 0;
+
+    private static final InputStream in = System.in;
+    private static final byte[] input = new byte[BUFFER_SIZE];
+    private static int inputPosition = 0;
+    private static int inputLength = 0;
+
+    // the current token, for the numbers that can not be read on the fly
+    private static byte[] token = new byte[64];
+    private static int tokenLength = 0;
+
+    // powers of ten that are exact doubles
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+        // the class name hides java.lang.Runtime
+        java.lang.Runtime.getRuntime().addShutdownHook(
+                new Thread(Runtime::flush));
+    }
+
+    //// output
+
+    public static void printInt(int value) {
+        if (outputLength + MAX_INT_LENGTH > output.length) {
+            flush();
+        }
+        writeInt(value);
+        writeNewline();
+    }
+
+    // whole numbers are formatted here, anything else the way
+    // Double.toString does it
+    public static void printDouble(double value) {
+        if (value == (int) value && Math.abs(value) < 1e7
+                && Double.doubleToRawLongBits(value) != Long.MIN_VALUE) {
+            if (outputLength + MAX_INT_LENGTH + 2 > output.length) {
+                flush();
+            }
+            writeInt((int) value);
+            output[outputLength++] = '.';
+            output[outputLength++] = '0';
+            writeNewline();
+            return;
+        }
+
+        String text = Double.toString(value);
+        if (outputLength + text.length() + NEWLINE.length > output.length) {
+            flush();
+        }
+        for (int i = 0; i < text.length(); i++) {
+            output[outputLength++] = (byte) text.charAt(i);
+        }
+        writeNewline();
+    }
+
+    // writes the digits from the back, working on the negative value so
+    // that Integer.MIN_VALUE needs no special case
+    private static void writeInt(int value) {
+        boolean negative = value < 0;
+        if (!negative) {
+            value = -value;
+        }
+        int digits = 1;
+        for (int rest = value / 10; rest != 0; rest /= 10) {
+            ++digits;
+        }
+        if (negative) {
+            output[outputLength++] = '-';
+        }
+        int position = outputLength + digits;
+        outputLength = position;
+        do {
+            output[--position] = (byte) ('0' - value % 10);
+            value /= 10;
+        } while (value != 0);
+    }
+
+    private static void writeNewline() {
+        for (byte b : NEWLINE) {
+            output[outputLength++] = b;
+        }
+    }
+
+    public static void flush() {
+        if (outputLength == 0) {
+            return;
+        }
+        try {
+            out.write(output, 0, outputLength);
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        outputLength = 0;
+    }
+
+    //// input
+
+    public static int readInt() {
+        int b = skipWhitespace();
+        boolean negative = b == '-';
+        if (b == '-' || b == '+') {
+            b = read();
+        }
+        if (!isDigit(b)) {
+            throw new InputMismatchException();
+        }
+
+        // accumulated negatively, the range is one larger that way
+        long value = 0;
+        while (isDigit(b)) {
+            value = value * 10 - (b - '0');
+            if (value < Integer.MIN_VALUE) {
+                throw new InputMismatchException();
+            }
+            b = read();
+        }
+        if (!isSeparator(b)) {
+            throw new InputMismatchException();
+        }
+        if (!negative) {
+            if (value == Integer.MIN_VALUE) {
+                throw new InputMismatchException();
+            }
+            value = -value;
+        }
+        return (int) value;
+    }
+
+    // plain decimals with at most 15 significant digits are exact as a
+    // quotient of two exact doubles, anything else is left to
+    // Double.parseDouble
+    public static double readDouble() {
+        int b = skipWhitespace();
+        tokenLength = 0;
+        while (!isSeparator(b)) {
+            if (tokenLength == token.length) {
+                token = Arrays.copyOf(token, 2 * token.length);
+            }
+            token[tokenLength++] = (byte) b;
+            b = read();
+        }
+
+        int position = 0;
+        boolean negative = token[0] == '-';
+        if (token[0] == '-' || token[0] == '+') {
+            ++position;
+        }
+        long mantissa = 0;
+        boolean anyDigit = false;
+        int digits = 0;
+        int decimals = -1;
+        for (; position < tokenLength; position++) {
+            int c = token[position];
+            if (isDigit(c)) {
+                anyDigit = true;
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0) {
+                    ++digits;
+                }
+                if (decimals >= 0) {
+                    ++decimals;
+                }
+            } else if (c == '.' && decimals < 0) {
+                decimals = 0;
+            } else {
+                break;
+            }
+        }
+        if (position == tokenLength && anyDigit && digits <= 15
+                && decimals < POWERS_OF_TEN.length) {
+            double value = decimals > 0
+                    ? mantissa / POWERS_OF_TEN[decimals]
+                    : mantissa;
+            return negative ? -value : value;
+        }
+
+        // Double.parseDouble also takes hexadecimal and a type suffix, as in
+        // 1d, which Scanner does not
+        String text = new String(token, 0, tokenLength,
+                StandardCharsets.ISO_8859_1);
+        String unsigned = token[0] == '-' || token[0] == '+'
+                ? text.substring(1)
+                : text;
+        if (!unsigned.equals("NaN") && !unsigned.equals("Infinity")
+                && !isDecimal(unsigned)) {
+            throw new InputMismatchException(text);
+        }
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            throw new InputMismatchException(e.getMessage());
+        }
+    }
+
+    // the rest of the current line without its line break, or null at the
+    // end of the input. for a program that reads lines itself, so the lines
+    // and the numbers come out of the same buffer
+    public static String readLine() {
+        int b = read();
+        if (b == -1) {
+            return null;
+        }
+        tokenLength = 0;
+        while (b != -1 && b != '\n') {
+            if (tokenLength == token.length) {
+                token = Arrays.copyOf(token, 2 * token.length);
+            }
+            token[tokenLength++] = (byte) b;
+            b = read();
+        }
+        if (tokenLength > 0 && token[tokenLength - 1] == '\r') {
+            --tokenLength;
+        }
+        return new String(token, 0, tokenLength, StandardCharsets.UTF_8);
+    }
+
+    // the first byte of the next token
+    private static int skipWhitespace() {
+        int b = read();
+        while (b != -1 && isSeparator(b)) {
+            b = read();
+        }
+        if (b == -1) {
+            throw new NoSuchElementException();
+        }
+        return b;
+    }
+
+    private static int read() {
+        if (inputPosition == inputLength) {
+            // a prompt should be visible before the program waits for input
+            flush();
+            try {
+                inputLength = in.read(input, 0, input.length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            inputPosition = 0;
+            if (inputLength <= 0) {
+                inputLength = 0;
+                return -1;
+            }
+        }
+        return input[inputPosition++] & 0xff;
+    }
+
+    private static boolean isDigit(int b) {
+        return '0' <= b && b <= '9';
+    }
+
+    // digits, points, exponents and signs, the rest is left to
+    // Double.parseDouble
+    private static boolean isDecimal(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!isDigit(c) && c != '.' && c != 'e' && c != 'E' && c != '+'
+                    && c != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // whitespace or the end of the input
+    private static boolean isSeparator(int b) {
+        return b == -1 || b == ' ' || b == '\n' || b == '\r' || b == '\t'
+                || b == '\f' || b == 0x0b;
+    }
+}
@@ -0,0 +1,224 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+import typed_tree.*;
+
+// assigns local variable slots from the liveness of each variable. the
+// compiler gives every declared variable its own virtual address, and this
+// maps those onto as few real slots as possible: two variables can share a
+// slot as long as they are never live at the same time. the parameters stay
+// at the slots the calling convention puts them in. stores to variables that
+// are never read again are turned into pops
+public class SlotAllocator {
+
+    private ArrayList<JVMInstr> instrs;
+    private int parameterSlots;
+    private HashMap<Integer, Integer> labelIndices = new HashMap<>();
+    private ArrayList<List<Integer>> predecessors = new ArrayList<>();
+    private BitSet[] liveOut;
+
+    // parameterSlots is the number of slots taken by the parameters, whose
+    // virtual addresses are their real slots
+    public SlotAllocator(List<JVMInstr> body, int parameterSlots) {
+        this.instrs = new ArrayList<>(body);
+        this.parameterSlots = parameterSlots;
+        for (int i = 0; i < instrs.size(); i++) {
+            if (instrs.get(i) instanceof JVMInstr.Label label) {
+                labelIndices.put(label.label(), i);
+            }
+            predecessors.add(new LinkedList<>());
+        }
+        for (int i = 0; i < instrs.size(); i++) {
+            for (int successor : successors(i)) {
+                predecessors.get(successor).add(i);
+            }
+        }
+    }
+
+    public LinkedList<JVMInstr> allocate() {
+        computeLiveness();
+        removeDeadStores();
+
+        // the size and first appearance of every variable, and the variables
+        // each one may never share a slot with
+        LinkedHashMap<Integer, Integer> sizes = new LinkedHashMap<>();
+        HashMap<Integer, BitSet> interference = new HashMap<>();
+        for (int slot = 0; slot < parameterSlots; slot++) {
+            interference.put(slot, new BitSet());
+        }
+        for (JVMInstr instr : instrs) {
+            Integer address = addressOf(instr);
+            if (address != null) {
+                sizes.putIfAbsent(address, instr.type() == CType.DOUBLE
+                        ? 2
+                        : 1);
+                interference.putIfAbsent(address, new BitSet());
+            }
+        }
+
+        // a variable interferes with everything that is live where it is
+        // written. the parameters are written on entry
+        for (int i = 0; i < instrs.size(); i++) {
+            if (instrs.get(i) instanceof JVMInstr.Store store) {
+                interfere(store.address(), liveOut[i], interference);
+            }
+            if (instrs.get(i) instanceof JVMInstr.Iinc increment) {
+                interfere(increment.address(), liveOut[i], interference);
+            }
+        }
+        BitSet liveOnEntry = instrs.isEmpty() ? new BitSet() : liveIn(0);
+        for (int slot = 0; slot < parameterSlots; slot++) {
+            interfere(slot, liveOnEntry, interference);
+        }
+
+        HashMap<Integer, Integer> slots = new HashMap<>();
+        for (int slot = 0; slot < parameterSlots; slot++) {
+            slots.put(slot, slot);
+        }
+        for (var entry : sizes.entrySet()) {
+            if (!slots.containsKey(entry.getKey())) {
+                slots.put(entry.getKey(), lowestFreeSlot(entry.getKey(),
+                        entry.getValue(), sizes, slots, interference));
+            }
+        }
+
+        LinkedList<JVMInstr> allocated = new LinkedList<>();
+        for (JVMInstr instr : instrs) {
+            allocated.add(switch (instr) {
+                case JVMInstr.Load i -> new JVMInstr.Load(i.type(),
+                        slots.get(i.address()));
+                case JVMInstr.Store i -> new JVMInstr.Store(i.type(),
+                        slots.get(i.address()));
+                case JVMInstr.Iinc i -> new JVMInstr.Iinc(
+                        slots.get(i.address()), i.increment());
+                default -> instr;
+            });
+        }
+        return allocated;
+    }
+
+    // first slot where the variable does not overlap any variable it
+    // interferes with that already has a slot. a double takes two slots
+    private int lowestFreeSlot(int address, int size,
+            HashMap<Integer, Integer> sizes,
+            HashMap<Integer, Integer> slots,
+            HashMap<Integer, BitSet> interference) {
+
+        BitSet taken = new BitSet();
+        BitSet neighbours = interference.get(address);
+        for (int other = neighbours.nextSetBit(0); other >= 0;
+                other = neighbours.nextSetBit(other + 1)) {
+            Integer otherSlot = slots.get(other);
+            if (otherSlot != null) {
+                taken.set(otherSlot, otherSlot + sizes.getOrDefault(other, 1));
+            }
+        }
+
+        int slot = 0;
+        while (taken.get(slot, slot + size).cardinality() > 0) {
+            ++slot;
+        }
+        return slot;
+    }
+
+    private void interfere(int address, BitSet live,
+            HashMap<Integer, BitSet> interference) {
+        for (int other = live.nextSetBit(0); other >= 0;
+                other = live.nextSetBit(other + 1)) {
+            if (other != address) {
+                interference.computeIfAbsent(address, _ -> new BitSet())
+                        .set(other);
+                interference.computeIfAbsent(other, _ -> new BitSet())
+                        .set(address);
+            }
+        }
+    }
+
+    // backward dataflow: a variable is live after an instruction if some
+    // path from there reads it before writing it
+    private void computeLiveness() {
+        liveOut = new BitSet[instrs.size()];
+        for (int i = 0; i < instrs.size(); i++) {
+            liveOut[i] = new BitSet();
+        }
+
+        ArrayDeque<Integer> worklist = new ArrayDeque<>();
+        for (int i = instrs.size() - 1; i >= 0; i--) {
+            worklist.add(i);
+        }
+        while (!worklist.isEmpty()) {
+            int index = worklist.poll();
+            BitSet in = liveIn(index);
+            for (int predecessor : predecessors.get(index)) {
+                BitSet out = liveOut[predecessor];
+                BitSet added = (BitSet) in.clone();
+                added.andNot(out);
+                if (!added.isEmpty()) {
+                    out.or(added);
+                    worklist.add(predecessor);
+                }
+            }
+        }
+    }
+
+    private BitSet liveIn(int index) {
+        BitSet in = (BitSet) liveOut[index].clone();
+        switch (instrs.get(index)) {
+            case JVMInstr.Store i -> in.clear(i.address());
+            case JVMInstr.Load i -> in.set(i.address());
+            // reads the variable before writing it back
+            case JVMInstr.Iinc i -> in.set(i.address());
+            default -> {
+            }
+        }
+        return in;
+    }
+
+    // the value of a dead store still has to leave the stack, a dead
+    // increment can go entirely
+    private void removeDeadStores() {
+        ArrayList<JVMInstr> kept = new ArrayList<>();
+        ArrayList<BitSet> keptLiveOut = new ArrayList<>();
+        for (int i = 0; i < instrs.size(); i++) {
+            JVMInstr instr = instrs.get(i);
+            if (instr instanceof JVMInstr.Store store
+                    && !liveOut[i].get(store.address())) {
+                instr = new JVMInstr.Pop(store.type());
+            }
+            if (instr instanceof JVMInstr.Iinc increment
+                    && !liveOut[i].get(increment.address())) {
+                continue;
+            }
+            kept.add(instr);
+            keptLiveOut.add(liveOut[i]);
+        }
+        instrs = kept;
+        liveOut = keptLiveOut.toArray(new BitSet[0]);
+    }
+
+    private List<Integer> successors(int index) {
+        LinkedList<Integer> successors = new LinkedList<>();
+        JVMInstr instr = instrs.get(index);
+        if (instr.fallsThrough() && index + 1 < instrs.size()) {
+            successors.add(index + 1);
+        }
+        if (instr.jumpTarget() != null) {
+            successors.add(labelIndices.get(instr.jumpTarget()));
+        }
+        return successors;
+    }
+
+    private Integer addressOf(JVMInstr instr) {
+        return switch (instr) {
+            case JVMInstr.Load i -> i.address();
+            case JVMInstr.Store i -> i.address();
+            case JVMInstr.Iinc i -> i.address();
+            default -> null;
+        };
+    }
+}
@@ -0,0 +1,477 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+import ssa.*;
+import typed_tree.*;
+
+// builds the ssa form of a function straight from the typed tree, following
+// "simple and efficient construction of static single assignment form" by
+// braun et al. the current value of every local is tracked per block, and a
+// phi is only created where a block with several predecessors reads a
+// local. a block is sealed once all of its predecessors are known; reads in
+// a block that is not sealed yet, such as a loop header, get a phi whose
+// operands are filled in when it is sealed. phis that turn out to merge a
+// single value are removed at the end
+public class SsaBuilder {
+
+    private SsaFunction function;
+    private BasicBlock current;
+
+    // the block after the parameters, and the variables holding them
+    private BasicBlock start;
+    private LinkedList<String> parameterVariables = new LinkedList<>();
+
+    // scoped c-- names to unique variable names, since an inner scope may
+    // declare a name again
+    private Environment<String> names = new Environment<>();
+    private int nextVariable = 0;
+    private HashMap<String, CType> variableTypes = new HashMap<>();
+
+    // the value of each variable at the end of each block, where known
+    private HashMap<String, HashMap<BasicBlock, SsaValue>> currentDefs =
+            new HashMap<>();
+
+    private HashSet<BasicBlock> sealed = new HashSet<>();
+    private HashMap<BasicBlock, LinkedHashMap<String, SsaInstr.Phi>>
+            incompletePhis = new HashMap<>();
+
+    public SsaFunction buildFunc(TypedDef.Func function) {
+        LinkedList<CType> parameterTypes = new LinkedList<>();
+        for (var arg : function.args()) {
+            parameterTypes.add(arg.type());
+        }
+        this.function = new SsaFunction(function.funcName(), parameterTypes,
+                function.returns());
+
+        names.setCurrentFunc(function.funcName());
+        names.newContext();
+        current = this.function.newBlock();
+        sealBlock(current);
+
+        int index = 0;
+        for (var arg : function.args()) {
+            String variable = declare(arg.id(), arg.type());
+            SsaValue value = this.function.newValue(arg.type());
+            current.add(new SsaInstr.Param(value, index++));
+            writeVariable(variable, current, value);
+            parameterVariables.add(variable);
+        }
+
+        // self tail calls jump back here, so it is sealed last
+        start = this.function.newBlock();
+        current.terminate(new Terminator.Jump(start));
+        current = start;
+
+        for (var stm : function.stms()) {
+            buildStm(stm);
+        }
+
+        // running off the end of the function returns, like the compiler
+        if (!current.isTerminated()) {
+            current.terminate(new Terminator.Return(null));
+        }
+
+        sealBlock(start);
+        this.function.removeUnreachableBlocks();
+        removeTrivialPhis();
+        return this.function;
+    }
+
+    public List<SsaFunction> build(TypedProgram program) {
+        LinkedList<SsaFunction> functions = new LinkedList<>();
+        for (TypedDef def : program.defintions()) {
+            functions.add(new SsaBuilder().buildFunc((TypedDef.Func) def));
+        }
+        return functions;
+    }
+
+    private void buildStm(TypedStm stm) {
+        switch (stm) {
+            case TypedStm.Exp s -> buildExp(s.exp());
+
+            case TypedStm.Decls s -> {
+                for (String name : s.names()) {
+                    declare(name, s.type());
+                }
+            }
+
+            case TypedStm.Init s -> {
+                SsaValue value = buildExp(s.exp());
+                writeVariable(declare(s.name(), s.type()), current, value);
+            }
+
+            case TypedStm.Return s -> {
+                // a self tail call assigns the arguments to the parameters
+                // and starts the function over
+                if (s.exp() instanceof TypedExp.Func call
+                        && call.id().equals(names.currentFuncName())
+                        && !names.currentFuncName().equals("main")) {
+                    LinkedList<SsaValue> arguments = new LinkedList<>();
+                    for (var argument : call.exps()) {
+                        arguments.add(buildExp(argument));
+                    }
+                    for (int i = 0; i < arguments.size(); i++) {
+                        writeVariable(parameterVariables.get(i), current,
+                                arguments.get(i));
+                    }
+                    current.terminate(new Terminator.Jump(start));
+                    startUnreachable();
+                    return;
+                }
+
+                SsaValue value = buildExp(s.exp());
+                // main is void on the jvm, its return value is dropped
+                current.terminate(new Terminator.Return(
+                        names.currentFuncName().equals("main") ? null : value));
+                startUnreachable();
+            }
+
+            case TypedStm.While s -> {
+                BasicBlock header = function.newBlock();
+                current.terminate(new Terminator.Jump(header));
+
+                // the header is only sealed once the back edge exists
+                current = header;
+                BasicBlock body = function.newBlock();
+                BasicBlock exit = function.newBlock();
+                if (s.exp() instanceof TypedExp.BoolLit cond && cond.value()) {
+                    // only a return leaves the loop, nothing follows it
+                    current.terminate(new Terminator.Jump(body));
+                } else {
+                    SsaValue condition = buildExp(s.exp());
+                    current.terminate(
+                            new Terminator.Branch(condition, body, exit));
+                }
+                sealBlock(body);
+                sealBlock(exit);
+
+                current = body;
+                names.newContext();
+                buildStm(s.stm());
+                names.removeContext();
+                if (!current.isTerminated()) {
+                    current.terminate(new Terminator.Jump(header));
+                }
+                sealBlock(header);
+                current = exit;
+            }
+
+            case TypedStm.IfElse s -> {
+                SsaValue condition = buildExp(s.exp());
+                BasicBlock thenBlock = function.newBlock();
+                BasicBlock elseBlock = function.newBlock();
+                BasicBlock join = function.newBlock();
+                current.terminate(
+                        new Terminator.Branch(condition, thenBlock, elseBlock));
+                sealBlock(thenBlock);
+                sealBlock(elseBlock);
+
+                buildArm(thenBlock, s.stm1(), join);
+                buildArm(elseBlock, s.stm2(), join);
+                sealBlock(join);
+                current = join;
+            }
+
+            case TypedStm.Block s -> {
+                names.newContext();
+                for (var statement : s.stms()) {
+                    buildStm(statement);
+                }
+                names.removeContext();
+            }
+
+            default -> throw new RuntimeException(
+                    "Statement " + stm.getClass() + " not yet implemented.");
+        }
+    }
+
+    private void buildArm(BasicBlock block, TypedStm stm, BasicBlock join) {
+        current = block;
+        names.newContext();
+        buildStm(stm);
+        names.removeContext();
+        if (!current.isTerminated()) {
+            current.terminate(new Terminator.Jump(join));
+        }
+    }
+
+    // the value of the expression, or null for a call of a void function
+    private SsaValue buildExp(TypedExp exp) {
+        return switch (exp) {
+            case TypedExp.Paren e -> buildExp(e.exp());
+
+            case TypedExp.BoolLit e -> constant(CType.BOOL, e.value());
+
+            case TypedExp.IntLit e -> constant(CType.INT, e.value());
+
+            case TypedExp.DoubleLit e -> constant(CType.DOUBLE, e.value());
+
+            case TypedExp.Ident e -> readVariable(names.lookupVar(e.id()),
+                    current);
+
+            case TypedExp.Func e -> {
+                LinkedList<SsaValue> arguments = new LinkedList<>();
+                for (var argument : e.exps()) {
+                    arguments.add(buildExp(argument));
+                }
+                SsaValue result = e.type() == CType.VOID
+                        ? null
+                        : function.newValue(e.type());
+                current.add(new SsaInstr.Call(result, e.id(), arguments,
+                        e.type()));
+                yield result;
+            }
+
+            case TypedExp.Post e -> {
+                SsaValue old = readVariable(names.lookupVar(e.id()), current);
+                step(e.id(), e.type(), e.operator(), old);
+                yield old;
+            }
+
+            case TypedExp.Pre e -> {
+                SsaValue old = readVariable(names.lookupVar(e.id()), current);
+                yield step(e.id(), e.type(), e.operator(), old);
+            }
+
+            case TypedExp.Mul _ -> TreeAnalysis.foldSpine(
+                    exp, this::buildExp, this::arithmetic);
+
+            case TypedExp.Add _ -> TreeAnalysis.foldSpine(
+                    exp, this::buildExp, this::arithmetic);
+
+            case TypedExp.Cmp e -> {
+                SsaValue left = buildExp(e.exp1());
+                SsaValue right = buildExp(e.exp2());
+                SsaValue result = function.newValue(CType.BOOL);
+                current.add(new SsaInstr.Cmp(result, e.operator(), left,
+                        right));
+                yield result;
+            }
+
+            case TypedExp.And e -> shortCircuit(e.exp1(), e.exp2(), false);
+
+            case TypedExp.Or e -> shortCircuit(e.exp1(), e.exp2(), true);
+
+            case TypedExp.Assign e -> {
+                SsaValue value = buildExp(e.exp());
+                writeVariable(names.lookupVar(e.id()), current, value);
+                yield value;
+            }
+
+            case TypedExp.Int2Double e -> {
+                SsaValue operand = buildExp(e.exp());
+                SsaValue result = function.newValue(CType.DOUBLE);
+                current.add(new SsaInstr.I2d(result, operand));
+                yield result;
+            }
+
+            default -> throw new RuntimeException(
+                    "Expression " + exp.getClass() + " not yet implemented.");
+        };
+    }
+
+    private SsaValue arithmetic(TypedExp node, SsaValue left,
+            SsaValue right) {
+        return switch (node) {
+            case TypedExp.Mul e -> binary(e.type(), e.operator(), left,
+                    right);
+
+            // every operator but ADD is a subtraction here
+            case TypedExp.Add e -> binary(e.type(),
+                    e.operator() == Operator.ADD ? Operator.ADD : Operator.SUB,
+                    left, right);
+
+            default -> throw new IllegalArgumentException(
+                    "Only arithmetic is on the spine.");
+        };
+    }
+
+    // && and || only evaluate their right hand side when the left one does
+    // not decide the result already, which is the value shortCut
+    private SsaValue shortCircuit(TypedExp exp1, TypedExp exp2,
+            boolean shortCut) {
+        SsaValue left = buildExp(exp1);
+        SsaValue decided = constant(CType.BOOL, shortCut);
+        BasicBlock leftEnd = current;
+        BasicBlock rightBlock = function.newBlock();
+        BasicBlock join = function.newBlock();
+        leftEnd.terminate(shortCut
+                ? new Terminator.Branch(left, join, rightBlock)
+                : new Terminator.Branch(left, rightBlock, join));
+        sealBlock(rightBlock);
+
+        current = rightBlock;
+        SsaValue right = buildExp(exp2);
+        BasicBlock rightEnd = current;
+        rightEnd.terminate(new Terminator.Jump(join));
+        sealBlock(join);
+
+        current = join;
+        SsaValue result = function.newValue(CType.BOOL);
+        LinkedHashMap<BasicBlock, SsaValue> incoming = new LinkedHashMap<>();
+        incoming.put(leftEnd, decided);
+        incoming.put(rightEnd, right);
+        join.addPhi(new SsaInstr.Phi(result, incoming));
+        return result;
+    }
+
+    private SsaValue step(String id, CType type, Operator operator,
+            SsaValue old) {
+        SsaValue result = binary(type,
+                operator == Operator.INC ? Operator.ADD : Operator.SUB,
+                old,
+                constant(type, type == CType.DOUBLE ? (Object) 1.0 : 1));
+        writeVariable(names.lookupVar(id), current, result);
+        return result;
+    }
+
+    private SsaValue binary(CType type, Operator operator, SsaValue left,
+            SsaValue right) {
+        SsaValue result = function.newValue(type);
+        current.add(new SsaInstr.Binary(result, operator, left, right));
+        return result;
+    }
+
+    private SsaValue constant(CType type, Object value) {
+        SsaValue result = function.newValue(type);
+        current.add(new SsaInstr.Const(result, value));
+        return result;
+    }
+
+    // code after a return can not run, it goes into a block without
+    // predecessors that is removed at the end
+    private void startUnreachable() {
+        current = function.newBlock();
+        sealBlock(current);
+    }
+
+    private String declare(String name, CType type) {
+        String variable = name + "#" + nextVariable++;
+        names.extendVar(name, variable);
+        variableTypes.put(variable, type);
+        return variable;
+    }
+
+    private void writeVariable(String variable, BasicBlock block,
+            SsaValue value) {
+        currentDefs.computeIfAbsent(variable, _ -> new HashMap<>())
+                .put(block, value);
+    }
+
+    private SsaValue readVariable(String variable, BasicBlock block) {
+        SsaValue value = currentDefs.getOrDefault(variable, new HashMap<>())
+                .get(block);
+        if (value != null) {
+            return value;
+        }
+        return readVariableRecursive(variable, block);
+    }
+
+    private SsaValue readVariableRecursive(String variable, BasicBlock block) {
+        CType type = variableTypes.get(variable);
+        SsaValue value;
+        if (!sealed.contains(block)) {
+            // the operands follow once all predecessors are known
+            SsaInstr.Phi phi = newPhi(block, type);
+            incompletePhis.computeIfAbsent(block, _ -> new LinkedHashMap<>())
+                    .put(variable, phi);
+            value = phi.result();
+        } else if (block.predecessors().isEmpty()) {
+            // read before any assignment. the jvm would reject such a read,
+            // it gets the zero of its type here
+            value = function.newValue(type);
+            block.instrs().addFirst(new SsaInstr.Const(value, zero(type)));
+        } else if (block.predecessors().size() == 1) {
+            value = readVariable(variable, block.predecessors().getFirst());
+        } else {
+            // the phi is the value of the variable while its operands are
+            // read, which ends the search around loops
+            SsaInstr.Phi phi = newPhi(block, type);
+            writeVariable(variable, block, phi.result());
+            addPhiOperands(variable, phi, block);
+            value = phi.result();
+        }
+        writeVariable(variable, block, value);
+        return value;
+    }
+
+    private SsaInstr.Phi newPhi(BasicBlock block, CType type) {
+        SsaInstr.Phi phi = new SsaInstr.Phi(function.newValue(type),
+                new LinkedHashMap<>());
+        block.addPhi(phi);
+        return phi;
+    }
+
+    private void addPhiOperands(String variable, SsaInstr.Phi phi,
+            BasicBlock block) {
+        for (BasicBlock predecessor : block.predecessors()) {
+            phi.incoming().put(predecessor,
+                    readVariable(variable, predecessor));
+        }
+    }
+
+    private void sealBlock(BasicBlock block) {
+        var pending = incompletePhis.remove(block);
+        if (pending != null) {
+            for (var entry : pending.entrySet()) {
+                addPhiOperands(entry.getKey(), entry.getValue(), block);
+            }
+        }
+        sealed.add(block);
+    }
+
+    // a phi whose operands are all the same value, apart from the phi
+    // itself, is just that value. removing one phi can make others trivial
+    private void removeTrivialPhis() {
+        HashMap<SsaValue, SsaValue> replacements = new HashMap<>();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BasicBlock block : function.blocks()) {
+                for (SsaInstr.Phi phi : List.copyOf(block.phis())) {
+                    SsaValue same = null;
+                    boolean trivial = true;
+                    for (SsaValue operand : phi.incoming().values()) {
+                        SsaValue resolved = resolve(replacements, operand);
+                        if (resolved.equals(phi.result())
+                                || resolved.equals(same)) {
+                            continue;
+                        }
+                        if (same != null) {
+                            trivial = false;
+                            break;
+                        }
+                        same = resolved;
+                    }
+                    if (trivial && same != null) {
+                        replacements.put(phi.result(), same);
+                        block.phis().remove(phi);
+                        changed = true;
+                    }
+                }
+            }
+        }
+        function.replaceValues(replacements);
+    }
+
+    private SsaValue resolve(HashMap<SsaValue, SsaValue> replacements,
+            SsaValue value) {
+        while (replacements.containsKey(value)) {
+            value = replacements.get(value);
+        }
+        return value;
+    }
+
+    private Object zero(CType type) {
+        return switch (type) {
+            case CType.INT -> 0;
+            case CType.DOUBLE -> 0.0;
+            case CType.BOOL -> false;
+            default -> throw new IllegalArgumentException(
+                    "No value of type " + type);
+        };
+    }
+}
@@ -0,0 +1,296 @@
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+import ssa.*;
+import typed_tree.*;
+
+// translates a function out of ssa form into jvm instructions. every value
+// that is used later gets a local of its own, which the SlotAllocator then
+// packs by liveness. a value used only by the very next instruction, as the
+// first thing that instruction pushes, is left on the stack instead.
+// constants are pushed where they are used rather than kept in locals.
+//
+// phis become copies at the end of their predecessors. all operands are
+// pushed before any phi local is stored, so the copies act in parallel, and
+// critical edges are split first so the copies only run on their own edge
+public class SsaLowering {
+
+    private static final List<String> BUILTINS =
+            List.of("readInt", "readDouble", "printInt", "printDouble");
+
+    private SsaFunction function;
+    private String className;
+    private LinkedList<JVMInstr> instrs = new LinkedList<>();
+
+    private HashMap<SsaValue, Integer> addresses = new HashMap<>();
+    private HashMap<SsaValue, SsaInstr.Const> constants = new HashMap<>();
+    private HashMap<SsaValue, Integer> uses = new HashMap<>();
+    private int nextAddress = 0;
+    private int nextLabel = 0;
+
+    public SsaLowering(SsaFunction function, String className) {
+        this.function = function;
+        this.className = className;
+    }
+
+    // the number of slots taken by the parameters, which keep the slots the
+    // method descriptor gives them
+    public int parameterSlots() {
+        if (function.name().equals("main")) {
+            return 1;
+        }
+        int slots = 0;
+        for (CType type : function.parameterTypes()) {
+            slots += type == CType.DOUBLE ? 2 : 1;
+        }
+        return slots;
+    }
+
+    public LinkedList<JVMInstr> lower() {
+        function.splitCriticalEdges();
+        nextAddress = parameterSlots();
+        for (BasicBlock block : function.blocks()) {
+            nextLabel = Math.max(nextLabel, block.id() + 1);
+        }
+
+        List<Integer> parameterAddresses = new LinkedList<>();
+        int slot = 0;
+        for (CType type : function.parameterTypes()) {
+            parameterAddresses.add(slot);
+            slot += type == CType.DOUBLE ? 2 : 1;
+        }
+        for (BasicBlock block : function.blocks()) {
+            for (SsaInstr.Phi phi : block.phis()) {
+                countUses(phi);
+            }
+            for (SsaInstr instr : block.instrs()) {
+                countUses(instr);
+                switch (instr) {
+                    case SsaInstr.Const i -> constants.put(i.result(), i);
+                    case SsaInstr.Param i -> addresses.put(i.result(),
+                            parameterAddresses.get(i.index()));
+                    default -> {
+                    }
+                }
+            }
+            for (SsaValue operand : block.terminator().operands()) {
+                uses.merge(operand, 1, Integer::sum);
+            }
+        }
+
+        List<BasicBlock> order = function.reversePostorder();
+        for (int i = 0; i < order.size(); i++) {
+            BasicBlock next = i + 1 < order.size() ? order.get(i + 1) : null;
+            lowerBlock(order.get(i), next);
+        }
+        return instrs;
+    }
+
+    private void lowerBlock(BasicBlock block, BasicBlock next) {
+        instrs.add(new JVMInstr.Label(block.id()));
+
+        List<SsaInstr> body = emitted(block);
+        SsaValue stacked = null;
+        for (int k = 0; k < body.size(); k++) {
+            SsaInstr instr = body.get(k);
+
+            // a comparison only used by the branch that ends the block jumps
+            // directly instead of making a bool first
+            if (k == body.size() - 1
+                    && instr instanceof SsaInstr.Cmp cmp
+                    && block.terminator() instanceof Terminator.Branch branch
+                    && branch.condition().equals(cmp.result())
+                    && uses.get(cmp.result()) == 1) {
+                load(cmp.left(), stacked);
+                load(cmp.right(), null);
+                instrs.add(new JVMInstr.Cmp(cmp.left().type(),
+                        cmp.operator(), branch.ifTrue().id()));
+                if (branch.ifFalse() != next) {
+                    instrs.add(new JVMInstr.Goto(branch.ifFalse().id()));
+                }
+                return;
+            }
+
+            lowerInstr(instr, stacked);
+            stacked = null;
+            SsaValue result = instr.result();
+            if (result == null) {
+                continue;
+            }
+
+            List<SsaValue> consumer = k + 1 < body.size()
+                    ? body.get(k + 1).operands()
+                    : block.terminator() instanceof Terminator.Jump
+                            ? List.of()
+                            : block.terminator().operands();
+            int used = uses.getOrDefault(result, 0);
+            if (used == 1 && !consumer.isEmpty()
+                    && consumer.get(0).equals(result)) {
+                stacked = result;
+            } else if (used == 0) {
+                instrs.add(new JVMInstr.Pop(result.type()));
+            } else {
+                instrs.add(new JVMInstr.Store(result.type(),
+                        addressOf(result)));
+            }
+        }
+
+        lowerTerminator(block, block.terminator(), stacked, next);
+    }
+
+    // the instructions that produce code: constants are pushed at their
+    // uses, parameters already are in their slots, and pure instructions
+    // whose result is never used can be left out
+    private List<SsaInstr> emitted(BasicBlock block) {
+        LinkedList<SsaInstr> body = new LinkedList<>();
+        for (SsaInstr instr : block.instrs()) {
+            boolean unused = instr.result() != null
+                    && uses.getOrDefault(instr.result(), 0) == 0;
+            if (instr instanceof SsaInstr.Const
+                    || instr instanceof SsaInstr.Param
+                    || unused && instr.isPure()) {
+                continue;
+            }
+            body.add(instr);
+        }
+        return body;
+    }
+
+    private void lowerInstr(SsaInstr instr, SsaValue stacked) {
+        switch (instr) {
+            case SsaInstr.Binary i -> {
+                load(i.left(), stacked);
+                load(i.right(), null);
+                CType type = i.result().type();
+                instrs.add(switch (i.operator()) {
+                    case Operator.ADD -> new JVMInstr.Add(type);
+                    case Operator.SUB -> new JVMInstr.Sub(type);
+                    case Operator.MUL -> new JVMInstr.Mul(type);
+                    case Operator.DIV -> new JVMInstr.Div(type);
+                    default -> throw new IllegalArgumentException(
+                            "Unsupported binary operator " + i.operator());
+                });
+            }
+
+            case SsaInstr.Cmp i -> {
+                Integer trueLabel = nextLabel++;
+                Integer endLabel = nextLabel++;
+                load(i.left(), stacked);
+                load(i.right(), null);
+                instrs.add(new JVMInstr.Cmp(i.left().type(), i.operator(),
+                        trueLabel));
+                instrs.add(new JVMInstr.Push(CType.BOOL, false));
+                instrs.add(new JVMInstr.Goto(endLabel));
+                instrs.add(new JVMInstr.Label(trueLabel));
+                instrs.add(new JVMInstr.Push(CType.BOOL, true));
+                instrs.add(new JVMInstr.Label(endLabel));
+            }
+
+            case SsaInstr.I2d i -> {
+                load(i.operand(), stacked);
+                instrs.add(new JVMInstr.I2d());
+            }
+
+            case SsaInstr.Call i -> {
+                LinkedList<CType> argumentTypes = new LinkedList<>();
+                SsaValue onStack = stacked;
+                for (SsaValue argument : i.arguments()) {
+                    load(argument, onStack);
+                    onStack = null;
+                    argumentTypes.add(argument.type());
+                }
+                instrs.add(new JVMInstr.Invokestatic(
+                        i.name(),
+                        BUILTINS.contains(i.name()) ? "Runtime" : className,
+                        argumentTypes,
+                        i.returns()));
+            }
+
+            default -> throw new IllegalArgumentException(
+                    "Instruction " + instr + " can not be lowered.");
+        }
+    }
+
+    private void lowerTerminator(BasicBlock block, Terminator terminator,
+            SsaValue stacked, BasicBlock next) {
+        switch (terminator) {
+            case Terminator.Return t -> {
+                if (t.value() == null) {
+                    instrs.add(new JVMInstr.Return(CType.VOID));
+                } else {
+                    load(t.value(), stacked);
+                    instrs.add(new JVMInstr.Return(t.value().type()));
+                }
+            }
+
+            case Terminator.Jump t -> {
+                copyToPhis(block, t.target());
+                if (t.target() != next) {
+                    instrs.add(new JVMInstr.Goto(t.target().id()));
+                }
+            }
+
+            case Terminator.Branch t -> {
+                load(t.condition(), stacked);
+                if (t.ifFalse() == next) {
+                    instrs.add(new JVMInstr.Ifne(t.ifTrue().id()));
+                } else {
+                    instrs.add(new JVMInstr.Ifeq(t.ifFalse().id()));
+                    if (t.ifTrue() != next) {
+                        instrs.add(new JVMInstr.Goto(t.ifTrue().id()));
+                    }
+                }
+            }
+
+            default -> throw new IllegalArgumentException(
+                    "Terminator " + terminator + " can not be lowered.");
+        }
+    }
+
+    // all operands go on the stack before the first store, so a phi may read
+    // the value another phi of the same block is about to overwrite
+    private void copyToPhis(BasicBlock block, BasicBlock target) {
+        for (SsaInstr.Phi phi : target.phis()) {
+            load(phi.incoming().get(block), null);
+        }
+        for (int i = target.phis().size() - 1; i >= 0; i--) {
+            SsaInstr.Phi phi = target.phis().get(i);
+            if (uses.getOrDefault(phi.result(), 0) == 0) {
+                instrs.add(new JVMInstr.Pop(phi.result().type()));
+            } else {
+                instrs.add(new JVMInstr.Store(phi.result().type(),
+                        addressOf(phi.result())));
+            }
+        }
+    }
+
+    // pushes the value unless it is already on top of the stack
+    private void load(SsaValue value, SsaValue stacked) {
+        if (value.equals(stacked)) {
+            return;
+        }
+        SsaInstr.Const constant = constants.get(value);
+        if (constant != null) {
+            instrs.add(new JVMInstr.Push(value.type(), constant.value()));
+        } else {
+            instrs.add(new JVMInstr.Load(value.type(), addressOf(value)));
+        }
+    }
+
+    private Integer addressOf(SsaValue value) {
+        Integer address = addresses.get(value);
+        if (address == null) {
+            address = nextAddress;
+            nextAddress += value.type() == CType.DOUBLE ? 2 : 1;
+            addresses.put(value, address);
+        }
+        return address;
+    }
+
+    private void countUses(SsaInstr instr) {
+        for (SsaValue operand : instr.operands()) {
+            uses.merge(operand, 1, Integer::sum);
+        }
+    }
+}
@@ -0,0 +1,665 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+import typed_tree.*;
+
+// queries over the typed tree that are shared by the optimization passes
+public class TreeAnalysis {
+
+    // names of all variables that may be written to when running the
+    // statement. variables declared by the statement itself are not included
+    // since writes to them can never be seen outside of it
+    public static Set<String> assignedVars(TypedStm stm) {
+        Set<String> assigned = new HashSet<>();
+        collectAssigned(stm, assigned);
+        return assigned;
+    }
+
+    public static Set<String> assignedVars(TypedExp exp) {
+        Set<String> assigned = new HashSet<>();
+        collectAssigned(exp, assigned);
+        return assigned;
+    }
+
+    private static void collectAssigned(TypedStm stm, Set<String> assigned) {
+        switch (stm) {
+            case TypedStm.Exp s -> collectAssigned(s.exp(), assigned);
+
+            case TypedStm.Decls _ -> {
+                // declarations do not write to any existing variable
+            }
+
+            case TypedStm.Init s -> collectAssigned(s.exp(), assigned);
+
+            case TypedStm.Return s -> collectAssigned(s.exp(), assigned);
+
+            case TypedStm.While s -> {
+                collectAssigned(s.exp(), assigned);
+                collectAssigned(s.stm(), assigned);
+            }
+
+            case TypedStm.Block s -> {
+                for (var statement : s.stms()) {
+                    collectAssigned(statement, assigned);
+                }
+            }
+
+            case TypedStm.IfElse s -> {
+                collectAssigned(s.exp(), assigned);
+                collectAssigned(s.stm1(), assigned);
+                collectAssigned(s.stm2(), assigned);
+            }
+
+            default -> throw new RuntimeException(
+                    "Statement " + stm.getClass() + " not yet implemented.");
+        }
+    }
+
+    private static void collectAssigned(TypedExp exp, Set<String> assigned) {
+        switch (exp) {
+            case TypedExp.Paren e -> collectAssigned(e.exp(), assigned);
+
+            case TypedExp.BoolLit _ -> {
+                // literals and identifiers never write to variables
+            }
+
+            case TypedExp.IntLit _ -> {
+            }
+
+            case TypedExp.DoubleLit _ -> {
+            }
+
+            case TypedExp.Ident _ -> {
+            }
+
+            case TypedExp.Func e -> {
+                for (var argument : e.exps()) {
+                    collectAssigned(argument, assigned);
+                }
+            }
+
+            case TypedExp.Post e -> assigned.add(e.id());
+
+            case TypedExp.Pre e -> assigned.add(e.id());
+
+            case TypedExp.Mul _ -> {
+                for (TypedExp operand : spineOperands(exp)) {
+                    collectAssigned(operand, assigned);
+                }
+            }
+
+            case TypedExp.Add _ -> {
+                for (TypedExp operand : spineOperands(exp)) {
+                    collectAssigned(operand, assigned);
+                }
+            }
+
+            case TypedExp.Cmp e -> {
+                collectAssigned(e.exp1(), assigned);
+                collectAssigned(e.exp2(), assigned);
+            }
+
+            case TypedExp.And e -> {
+                collectAssigned(e.exp1(), assigned);
+                collectAssigned(e.exp2(), assigned);
+            }
+
+            case TypedExp.Or e -> {
+                collectAssigned(e.exp1(), assigned);
+                collectAssigned(e.exp2(), assigned);
+            }
+
+            case TypedExp.Assign e -> {
+                assigned.add(e.id());
+                collectAssigned(e.exp(), assigned);
+            }
+
+            case TypedExp.Int2Double e -> collectAssigned(e.exp(), assigned);
+
+            default -> throw new RuntimeException(
+                    "Expression " + exp.getClass() + " not yet implemented.");
+        }
+    }
+
+    // names of all variables declared anywhere inside the statement
+    public static Set<String> declaredVars(TypedStm stm) {
+        Set<String> declared = new HashSet<>();
+        collectDeclared(stm, declared);
+        return declared;
+    }
+
+    private static void collectDeclared(TypedStm stm, Set<String> declared) {
+        switch (stm) {
+            case TypedStm.Decls s -> declared.addAll(s.names());
+
+            case TypedStm.Init s -> declared.add(s.name());
+
+            case TypedStm.While s -> collectDeclared(s.stm(), declared);
+
+            case TypedStm.Block s -> {
+                for (var statement : s.stms()) {
+                    collectDeclared(statement, declared);
+                }
+            }
+
+            case TypedStm.IfElse s -> {
+                collectDeclared(s.stm1(), declared);
+                collectDeclared(s.stm2(), declared);
+            }
+
+            default -> {
+                // expression statements and returns declare nothing
+            }
+        }
+    }
+
+    // names of all variables the statement reads or writes, including the
+    // ones it declares itself
+    public static Set<String> usedVars(TypedStm stm) {
+        Set<String> used = new HashSet<>();
+        collectUsed(stm, used);
+        return used;
+    }
+
+    private static void collectUsed(TypedStm stm, Set<String> used) {
+        switch (stm) {
+            case TypedStm.Exp s -> collectUsed(s.exp(), used);
+
+            case TypedStm.Decls s -> used.addAll(s.names());
+
+            case TypedStm.Init s -> {
+                used.add(s.name());
+                collectUsed(s.exp(), used);
+            }
+
+            case TypedStm.Return s -> collectUsed(s.exp(), used);
+
+            case TypedStm.While s -> {
+                collectUsed(s.exp(), used);
+                collectUsed(s.stm(), used);
+            }
+
+            case TypedStm.Block s -> {
+                for (var statement : s.stms()) {
+                    collectUsed(statement, used);
+                }
+            }
+
+            case TypedStm.IfElse s -> {
+                collectUsed(s.exp(), used);
+                collectUsed(s.stm1(), used);
+                collectUsed(s.stm2(), used);
+            }
+
+            default -> throw new RuntimeException(
+                    "Statement " + stm.getClass() + " not yet implemented.");
+        }
+    }
+
+    // names of all variables the expression reads or writes
+    public static Set<String> usedVars(TypedExp exp) {
+        Set<String> used = new HashSet<>();
+        collectUsed(exp, used);
+        return used;
+    }
+
+    private static void collectUsed(TypedExp exp, Set<String> used) {
+        switch (exp) {
+            case TypedExp.Paren e -> collectUsed(e.exp(), used);
+
+            case TypedExp.Ident e -> used.add(e.id());
+
+            case TypedExp.Func e -> {
+                for (var argument : e.exps()) {
+                    collectUsed(argument, used);
+                }
+            }
+
+            case TypedExp.Post e -> used.add(e.id());
+
+            case TypedExp.Pre e -> used.add(e.id());
+
+            case TypedExp.Mul _ -> {
+                for (TypedExp operand : spineOperands(exp)) {
+                    collectUsed(operand, used);
+                }
+            }
+
+            case TypedExp.Add _ -> {
+                for (TypedExp operand : spineOperands(exp)) {
+                    collectUsed(operand, used);
+                }
+            }
+
+            case TypedExp.Cmp e -> {
+                collectUsed(e.exp1(), used);
+                collectUsed(e.exp2(), used);
+            }
+
+            case TypedExp.And e -> {
+                collectUsed(e.exp1(), used);
+                collectUsed(e.exp2(), used);
+            }
+
+            case TypedExp.Or e -> {
+                collectUsed(e.exp1(), used);
+                collectUsed(e.exp2(), used);
+            }
+
+            case TypedExp.Assign e -> {
+                used.add(e.id());
+                collectUsed(e.exp(), used);
+            }
+
+            case TypedExp.Int2Double e -> collectUsed(e.exp(), used);
+
+            default -> {
+                // literals use no variables
+            }
+        }
+    }
+
+    // variables that are always assigned when the expression is evaluated.
+    // the right hand side of && and || may be skipped
+    public static Set<String> definitelyAssigned(TypedExp exp) {
+        Set<String> assigned = new HashSet<>();
+        collectDefinitelyAssigned(exp, assigned);
+        return assigned;
+    }
+
+    private static void collectDefinitelyAssigned(TypedExp exp,
+            Set<String> assigned) {
+        switch (exp) {
+            case TypedExp.Paren e -> collectDefinitelyAssigned(e.exp(), assigned);
+
+            case TypedExp.Func e -> {
+                for (var argument : e.exps()) {
+                    collectDefinitelyAssigned(argument, assigned);
+                }
+            }
+
+            case TypedExp.Post e -> assigned.add(e.id());
+
+            case TypedExp.Pre e -> assigned.add(e.id());
+
+            case TypedExp.Mul _ -> {
+                for (TypedExp operand : spineOperands(exp)) {
+                    collectDefinitelyAssigned(operand, assigned);
+                }
+            }
+
+            case TypedExp.Add _ -> {
+                for (TypedExp operand : spineOperands(exp)) {
+                    collectDefinitelyAssigned(operand, assigned);
+                }
+            }
+
+            case TypedExp.Cmp e -> {
+                collectDefinitelyAssigned(e.exp1(), assigned);
+                collectDefinitelyAssigned(e.exp2(), assigned);
+            }
+
+            case TypedExp.And e -> collectDefinitelyAssigned(e.exp1(), assigned);
+
+            case TypedExp.Or e -> collectDefinitelyAssigned(e.exp1(), assigned);
+
+            case TypedExp.Assign e -> {
+                collectDefinitelyAssigned(e.exp(), assigned);
+                assigned.add(e.id());
+            }
+
+            case TypedExp.Int2Double e -> collectDefinitelyAssigned(e.exp(),
+                    assigned);
+
+            default -> {
+                // literals and identifiers assign nothing
+            }
+        }
+    }
+
+    // whether a return statement occurs anywhere inside the statement
+    public static boolean containsReturn(TypedStm stm) {
+        return switch (stm) {
+            case TypedStm.Return _ -> true;
+
+            case TypedStm.While s -> containsReturn(s.stm());
+
+            case TypedStm.Block s -> s.stms().stream()
+                    .anyMatch(TreeAnalysis::containsReturn);
+
+            case TypedStm.IfElse s -> containsReturn(s.stm1())
+                    || containsReturn(s.stm2());
+
+            default -> false;
+        };
+    }
+
+    // an expression is pure if evaluating it can neither change any state,
+    // print or read anything, nor throw. pure expressions may be removed,
+    // duplicated or moved freely as long as the variables they read are not
+    // written in between
+    public static boolean isPure(TypedExp exp) {
+        return switch (exp) {
+            case TypedExp.Paren e -> isPure(e.exp());
+
+            case TypedExp.BoolLit _ -> true;
+
+            case TypedExp.IntLit _ -> true;
+
+            case TypedExp.DoubleLit _ -> true;
+
+            case TypedExp.Ident _ -> true;
+
+            // calls may print, read input or never return
+            case TypedExp.Func _ -> false;
+
+            case TypedExp.Post _ -> false;
+
+            case TypedExp.Pre _ -> false;
+
+            case TypedExp.Assign _ -> false;
+
+            case TypedExp.Mul _ -> leftSpine(exp).stream()
+                    .allMatch(TreeAnalysis::isPureNode)
+                    && spineOperands(exp).stream()
+                            .allMatch(TreeAnalysis::isPure);
+
+            case TypedExp.Add _ -> leftSpine(exp).stream()
+                    .allMatch(TreeAnalysis::isPureNode)
+                    && spineOperands(exp).stream()
+                            .allMatch(TreeAnalysis::isPure);
+
+            case TypedExp.Cmp e -> isPure(e.exp1()) && isPure(e.exp2());
+
+            case TypedExp.And e -> isPure(e.exp1()) && isPure(e.exp2());
+
+            case TypedExp.Or e -> isPure(e.exp1()) && isPure(e.exp2());
+
+            case TypedExp.Int2Double e -> isPure(e.exp());
+
+            default -> throw new RuntimeException(
+                    "Expression " + exp.getClass() + " not yet implemented.");
+        };
+    }
+
+    // number of nodes in the tree, used as an estimate of code size
+    public static int size(TypedStm stm) {
+        return switch (stm) {
+            case TypedStm.Exp s -> 1 + size(s.exp());
+
+            case TypedStm.Decls s -> s.names().size();
+
+            case TypedStm.Init s -> 1 + size(s.exp());
+
+            case TypedStm.Return s -> 1 + size(s.exp());
+
+            case TypedStm.While s -> 1 + size(s.exp()) + size(s.stm());
+
+            case TypedStm.Block s -> s.stms().stream()
+                    .mapToInt(TreeAnalysis::size)
+                    .sum();
+
+            case TypedStm.IfElse s -> 1 + size(s.exp()) + size(s.stm1())
+                    + size(s.stm2());
+
+            default -> throw new RuntimeException(
+                    "Statement " + stm.getClass() + " not yet implemented.");
+        };
+    }
+
+    public static int size(TypedExp exp) {
+        return switch (exp) {
+            case TypedExp.Paren e -> size(e.exp());
+
+            case TypedExp.Func e -> 1 + e.exps().stream()
+                    .mapToInt(TreeAnalysis::size)
+                    .sum();
+
+            // one for every node of the spine, which has one operand less
+            case TypedExp.Mul _ -> {
+                int size = -1;
+                for (TypedExp operand : spineOperands(exp)) {
+                    size += 1 + size(operand);
+                }
+                yield size;
+            }
+
+            case TypedExp.Add _ -> {
+                int size = -1;
+                for (TypedExp operand : spineOperands(exp)) {
+                    size += 1 + size(operand);
+                }
+                yield size;
+            }
+
+            case TypedExp.Cmp e -> 1 + size(e.exp1()) + size(e.exp2());
+
+            case TypedExp.And e -> 1 + size(e.exp1()) + size(e.exp2());
+
+            case TypedExp.Or e -> 1 + size(e.exp1()) + size(e.exp2());
+
+            case TypedExp.Assign e -> 1 + size(e.exp());
+
+            case TypedExp.Int2Double e -> 1 + size(e.exp());
+
+            // literals, identifiers and increments
+            default -> 1;
+        };
+    }
+
+    public static int size(TypedDef.Func function) {
+        return function.stms().stream()
+                .mapToInt(TreeAnalysis::size)
+                .sum();
+    }
+
+    //// chains of arithmetic
+
+    // chains that the type checker can not regroup, like those of doubles,
+    // are as deep as they are long. the passes walk their left spine of
+    // arithmetic nodes in a loop and only recurse into the operands, which
+    // keeps the stack flat however long the chain is
+
+    // combines a node of the spine with what its operands gave
+    public interface SpineNode<T> {
+        T combine(TypedExp node, T exp1, T exp2);
+    }
+
+    // the arithmetic nodes down the left spine, outermost first
+    public static List<TypedExp> leftSpine(TypedExp exp) {
+        ArrayList<TypedExp> spine = new ArrayList<>();
+        while (exp instanceof TypedExp.Mul || exp instanceof TypedExp.Add) {
+            spine.add(exp);
+            exp = leftOperand(exp);
+        }
+        return spine;
+    }
+
+    // the operands hanging off the left spine in the order they are
+    // evaluated, the leftmost first
+    public static List<TypedExp> spineOperands(TypedExp exp) {
+        List<TypedExp> spine = leftSpine(exp);
+        ArrayList<TypedExp> operands = new ArrayList<>(spine.size() + 1);
+        operands.add(spine.isEmpty() ? exp : leftOperand(spine.getLast()));
+        for (TypedExp node : spine.reversed()) {
+            operands.add(rightOperand(node));
+        }
+        return operands;
+    }
+
+    // goes through the chain in the order it is evaluated: the operands one
+    // by one, and every node of the spine once both of its operands are done
+    public static <T> T foldSpine(TypedExp exp,
+            Function<TypedExp, T> operand, SpineNode<T> node) {
+        List<TypedExp> spine = leftSpine(exp);
+        if (spine.isEmpty()) {
+            return operand.apply(exp);
+        }
+        T result = operand.apply(leftOperand(spine.getLast()));
+        for (TypedExp original : spine.reversed()) {
+            result = node.combine(original, result,
+                    operand.apply(rightOperand(original)));
+        }
+        return result;
+    }
+
+    // whether the operation of an arithmetic node is pure by itself, apart
+    // from its operands. integer division throws when dividing by zero
+    public static boolean isPureNode(TypedExp node) {
+        return !(node instanceof TypedExp.Mul e
+                && e.type() == CType.INT
+                && e.operator() == Operator.DIV
+                && !(e.exp2() instanceof TypedExp.IntLit divisor
+                        && divisor.value() != 0));
+    }
+
+    // the node with its operands replaced
+    public static TypedExp withOperands(TypedExp node, TypedExp exp1,
+            TypedExp exp2) {
+        return switch (node) {
+            case TypedExp.Mul e -> new TypedExp.Mul(exp1, exp2, e.type(),
+                    e.operator());
+
+            case TypedExp.Add e -> new TypedExp.Add(exp1, exp2, e.type(),
+                    e.operator());
+
+            default -> throw new IllegalArgumentException(
+                    "Only arithmetic is on the spine.");
+        };
+    }
+
+    private static TypedExp leftOperand(TypedExp node) {
+        return switch (node) {
+            case TypedExp.Mul e -> e.exp1();
+
+            case TypedExp.Add e -> e.exp1();
+
+            default -> throw new IllegalArgumentException(
+                    "Only arithmetic is on the spine.");
+        };
+    }
+
+    private static TypedExp rightOperand(TypedExp node) {
+        return switch (node) {
+            case TypedExp.Mul e -> e.exp2();
+
+            case TypedExp.Add e -> e.exp2();
+
+            default -> throw new IllegalArgumentException(
+                    "Only arithmetic is on the spine.");
+        };
+    }
+
+    // an expression as the key of a hash map. records hash and compare their
+    // operands by recursion, which a long chain does not survive, so the key
+    // goes through the nodes with a stack of its own
+    public record ExpKey(TypedExp exp) {
+
+        @Override
+        public int hashCode() {
+            int hash = 0;
+            ArrayDeque<TypedExp> stack = new ArrayDeque<>();
+            stack.push(exp);
+            while (!stack.isEmpty()) {
+                TypedExp node = stack.pop();
+                hash = 31 * hash + label(node).hashCode();
+                for (TypedExp operand : operands(node)) {
+                    stack.push(operand);
+                }
+            }
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof ExpKey key)) {
+                return false;
+            }
+            ArrayDeque<TypedExp> stack = new ArrayDeque<>();
+            ArrayDeque<TypedExp> otherStack = new ArrayDeque<>();
+            stack.push(exp);
+            otherStack.push(key.exp());
+            while (!stack.isEmpty()) {
+                TypedExp node = stack.pop();
+                TypedExp otherNode = otherStack.pop();
+                // equal labels mean as many operands on both sides
+                if (!label(node).equals(label(otherNode))) {
+                    return false;
+                }
+                for (TypedExp operand : operands(node)) {
+                    stack.push(operand);
+                }
+                for (TypedExp operand : operands(otherNode)) {
+                    otherStack.push(operand);
+                }
+            }
+            return true;
+        }
+
+        // everything about the node but its operands
+        private static Object label(TypedExp node) {
+            return switch (node) {
+                case TypedExp.Paren e -> List.of(TypedExp.Paren.class,
+                        e.type());
+
+                case TypedExp.Func e -> List.of(TypedExp.Func.class, e.id(),
+                        e.type(), e.exps().size());
+
+                case TypedExp.Mul e -> List.of(TypedExp.Mul.class, e.type(),
+                        e.operator());
+
+                case TypedExp.Add e -> List.of(TypedExp.Add.class, e.type(),
+                        e.operator());
+
+                case TypedExp.Cmp e -> List.of(TypedExp.Cmp.class,
+                        e.operator());
+
+                case TypedExp.And _ -> TypedExp.And.class;
+
+                case TypedExp.Or _ -> TypedExp.Or.class;
+
+                case TypedExp.Assign e -> List.of(TypedExp.Assign.class,
+                        e.id(), e.type());
+
+                case TypedExp.Int2Double _ -> TypedExp.Int2Double.class;
+
+                // literals, identifiers and increments have no operands
+                default -> node;
+            };
+        }
+
+        private static List<TypedExp> operands(TypedExp node) {
+            return switch (node) {
+                case TypedExp.Paren e -> List.of(e.exp());
+
+                case TypedExp.Func e -> e.exps();
+
+                case TypedExp.Mul e -> List.of(e.exp1(), e.exp2());
+
+                case TypedExp.Add e -> List.of(e.exp1(), e.exp2());
+
+                case TypedExp.Cmp e -> List.of(e.exp1(), e.exp2());
+
+                case TypedExp.And e -> List.of(e.exp1(), e.exp2());
+
+                case TypedExp.Or e -> List.of(e.exp1(), e.exp2());
+
+                case TypedExp.Assign e -> List.of(e.exp());
+
+                case TypedExp.Int2Double e -> List.of(e.exp());
+
+                default -> List.of();
+            };
+        }
+    }
+
+    public static boolean isLiteral(TypedExp exp) {
+        return exp instanceof TypedExp.IntLit
+                || exp instanceof TypedExp.DoubleLit
+                || exp instanceof TypedExp.BoolLit;
+    }
+}
@@ -1,3 +1,6 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -7,6 +10,9 @@ import typed_tree.*;
 
 public class TypeChecker {
 
+    private static final List<String> BUILTINS =
+            List.of("printInt", "printDouble", "readInt", "readDouble");
+
     class TypeCheckerEnvironment extends Environment<CType> {
 
         public record Signature(
@@ -32,6 +38,10 @@ public class TypeChecker {
         }
 
         public CType currrentReturnType() {
+            // statements entered at the top level of a repl are in no function
+            if (currentFuncName == null || !signs.containsKey(currentFuncName)) {
+                throw new TypeException("Return outside of a function.");
+            }
             return signs.get(currentFuncName).returns();
         }
 
@@ -83,7 +93,8 @@ public class TypeChecker {
                 TypedExp inferredExp = inferExp(env, s.exp());
                 yield new TypedStm.Exp(
                         inferredExp.type(),
-                        inferredExp);
+                        inferredExp,
+                        s.getStart().getLine());
             }
 
             case cmmParser.DeclsStmContext s -> {
@@ -130,7 +141,8 @@ public class TypeChecker {
                 yield new TypedStm.Init(
                         cType,
                         varName,
-                        promoteExp(typedExp, cType));
+                        promoteExp(typedExp, cType),
+                        s.getStart().getLine());
             }
 
             case cmmParser.ReturnStmContext s -> {
@@ -139,7 +151,8 @@ public class TypeChecker {
                 if (isConvertible(retType, typedRetExp.type())) {
                     yield new TypedStm.Return(promoteExp(
                             typedRetExp,
-                            env.currrentReturnType()));
+                            env.currrentReturnType()),
+                            s.getStart().getLine());
                 } else {
                     throw new TypeException("Illegal conversion in return. "
                             + "Expected " + typedRetExp.type() + ", but got "
@@ -156,7 +169,8 @@ public class TypeChecker {
                 env.newContext();
                 TypedStm typedStm = checkStm(env, s.stm());
                 env.removeContext();
-                yield new TypedStm.While(inferredExp, typedStm);
+                yield new TypedStm.While(inferredExp, typedStm,
+                        s.getStart().getLine());
 
             }
 
@@ -188,7 +202,8 @@ public class TypeChecker {
                 yield new TypedStm.IfElse(
                         inferredExp,
                         typedStmIf,
-                        typedStmElse);
+                        typedStmElse,
+                        s.getStart().getLine());
             }
 
             default -> throw new IllegalStateException("Case for " + stm
@@ -201,8 +216,13 @@ public class TypeChecker {
 
         return switch (exp) {
 
+            // nested parentheses are one
             case cmmParser.ParenExpContext e -> {
-                TypedExp innerExp = inferExp(env, e.exp());
+                cmmParser.ExpContext inner = e.exp();
+                while (inner instanceof cmmParser.ParenExpContext paren) {
+                    inner = paren.exp();
+                }
+                TypedExp innerExp = inferExp(env, inner);
                 yield new TypedExp.Paren(innerExp, innerExp.type());
             }
 
@@ -339,9 +359,171 @@ public class TypeChecker {
                         operator);
             }
 
+            case cmmParser.MulExpContext e -> inferChain(env, e);
+
+            case cmmParser.AddExpContext e -> inferChain(env, e);
+
+            case cmmParser.CmpExpContext e -> inferChain(env, e);
+
+            case cmmParser.AndExpContext e -> inferChain(env, e);
+
+            case cmmParser.OrExpContext e -> inferChain(env, e);
+
+            case cmmParser.AssignExpContext e -> {
+                String varName = e.Ident().getText();
+                CType variableType = env.lookupVar(varName);
+                TypedExp typedExp = inferExp(env, e.exp());
+                if (!isConvertible(variableType, typedExp.type())) {
+                    throw new TypeException("Illegal implicit conversion in "
+                            + "assignment. Expected " + variableType
+                            + ", but got " + typedExp.type() + " instead.");
+                }
+
+                yield new TypedExp.Assign(
+                        varName,
+                        promoteExp(typedExp, variableType),
+                        variableType);
+            }
+
+            default -> throw new IllegalStateException("Case for " + exp
+                    + " is not implemented.");
+        };
+    }
+
+    // an operator chain nests as deep as it is long in the parse tree, with
+    // the first operand at the bottom of its left spine. the spine is walked
+    // with a stack instead of recursion, the right operands are at most as
+    // deep as the precedence levels below. chains whose grouping can not
+    // change the result are then built as balanced trees, so that the later
+    // passes recurse only logarithmically deep into them
+    private TypedExp inferChain(TypeCheckerEnvironment env,
+            cmmParser.ExpContext exp) {
+        ArrayDeque<cmmParser.ExpContext> spine = new ArrayDeque<>();
+        cmmParser.ExpContext leftmost = exp;
+        while (isBinary(leftmost)) {
+            spine.push(leftmost);
+            leftmost = leftmost.getRuleContext(cmmParser.ExpContext.class, 0);
+        }
+
+        TypedExp typedExp = inferExp(env, leftmost);
+        while (!spine.isEmpty()) {
+            cmmParser.ExpContext node = spine.pop();
+            TypedExp typedExpRhs = inferExp(env,
+                    node.getRuleContext(cmmParser.ExpContext.class, 1));
+            TypedExp combined = inferBinary(node, typedExp, typedExpRhs);
+
+            // a chain ends where an operator of another kind takes it as its
+            // operand
+            Class<?> kind = associativeKind(typedExp);
+            if (kind != null && kind != associativeKind(combined)) {
+                combined = inferBinary(node, balance(typedExp), typedExpRhs);
+            }
+            typedExp = combined;
+        }
+        return balance(typedExp);
+    }
+
+    private boolean isBinary(cmmParser.ExpContext exp) {
+        return exp instanceof cmmParser.MulExpContext
+                || exp instanceof cmmParser.AddExpContext
+                || exp instanceof cmmParser.CmpExpContext
+                || exp instanceof cmmParser.AndExpContext
+                || exp instanceof cmmParser.OrExpContext;
+    }
+
+    // the kind of chain the expression is a link of, or null if regrouping
+    // it could change the result. int addition, subtraction and
+    // multiplication wrap around, so any grouping gives the same bits, and
+    // && and || stop at the same operand however they are grouped. the
+    // operands keep their order, so their effects happen in the same order
+    private Class<?> associativeKind(TypedExp exp) {
+        if (exp instanceof TypedExp.Add e && e.type() == CType.INT) {
+            return TypedExp.Add.class;
+        } else if (exp instanceof TypedExp.Mul e && e.type() == CType.INT
+                && e.operator() == Operator.MUL) {
+            return TypedExp.Mul.class;
+        } else if (exp instanceof TypedExp.And || exp instanceof TypedExp.Or) {
+            return exp.getClass();
+        }
+        return null;
+    }
+
+    // regroups the chain at the top of the expression into a balanced tree
+    private TypedExp balance(TypedExp exp) {
+        Class<?> kind = associativeKind(exp);
+        if (kind == null) {
+            return exp;
+        }
+
+        // the operands from the first to the last, and whether each one is
+        // subtracted
+        ArrayList<TypedExp> operands = new ArrayList<>();
+        ArrayList<Boolean> subtracted = new ArrayList<>();
+        TypedExp link = exp;
+        while (associativeKind(link) == kind) {
+            switch (link) {
+                case TypedExp.Add e -> {
+                    operands.add(e.exp2());
+                    subtracted.add(e.operator() != Operator.ADD);
+                    link = e.exp1();
+                }
+                case TypedExp.Mul e -> {
+                    operands.add(e.exp2());
+                    subtracted.add(false);
+                    link = e.exp1();
+                }
+                case TypedExp.And e -> {
+                    operands.add(e.exp2());
+                    subtracted.add(false);
+                    link = e.exp1();
+                }
+                case TypedExp.Or e -> {
+                    operands.add(e.exp2());
+                    subtracted.add(false);
+                    link = e.exp1();
+                }
+                default -> throw new IllegalStateException("Case for " + link
+                        + " is not implemented.");
+            }
+        }
+        operands.add(link);
+        subtracted.add(false);
+        Collections.reverse(operands);
+        Collections.reverse(subtracted);
+        return balance(kind, operands, subtracted, 0, operands.size() - 1);
+    }
+
+    // the operands from first to last combined, with the signs relative to
+    // the sign of the first one
+    private TypedExp balance(Class<?> kind, List<TypedExp> operands,
+            List<Boolean> subtracted, int first, int last) {
+        if (first == last) {
+            return operands.get(first);
+        }
+        int middle = (first + last + 1) / 2;
+        TypedExp lhs = balance(kind, operands, subtracted, first, middle - 1);
+        TypedExp rhs = balance(kind, operands, subtracted, middle, last);
+        if (kind == TypedExp.Add.class) {
+            return new TypedExp.Add(lhs, rhs, CType.INT,
+                    subtracted.get(middle) != subtracted.get(first)
+                            ? Operator.SUB
+                            : Operator.ADD);
+        } else if (kind == TypedExp.Mul.class) {
+            return new TypedExp.Mul(lhs, rhs, CType.INT, Operator.MUL);
+        } else if (kind == TypedExp.And.class) {
+            return new TypedExp.And(lhs, rhs);
+        } else {
+            return new TypedExp.Or(lhs, rhs);
+        }
+    }
+
+    // the type check of one binary operator whose operands are checked
+    private TypedExp inferBinary(cmmParser.ExpContext exp,
+            TypedExp typedExpLhs, TypedExp typedExpRhs) {
+
+        return switch (exp) {
+
             case cmmParser.MulExpContext e -> {
-                TypedExp typedExpLhs = inferExp(env, e.exp(0));
-                TypedExp typedExpRhs = inferExp(env, e.exp(1));
 
                 if (typedExpLhs.type() == CType.BOOL ||
                         typedExpRhs.type() == CType.BOOL) {
@@ -383,8 +565,6 @@ public class TypeChecker {
             }
 
             case cmmParser.AddExpContext e -> {
-                TypedExp typedExpLhs = inferExp(env, e.exp(0));
-                TypedExp typedExpRhs = inferExp(env, e.exp(1));
                 if (typedExpLhs.type() == CType.BOOL ||
                         typedExpRhs.type() == CType.BOOL) {
 
@@ -425,8 +605,6 @@ public class TypeChecker {
             }
 
             case cmmParser.CmpExpContext e -> {
-                TypedExp typedExpLhs = inferExp(env, e.exp(0));
-                TypedExp typedExpRhs = inferExp(env, e.exp(1));
 
                 if (typedExpLhs.type() == CType.VOID ||
                         typedExpRhs.type() == CType.VOID) {
@@ -504,8 +682,6 @@ public class TypeChecker {
             }
 
             case cmmParser.AndExpContext e -> {
-                TypedExp typedExpLhs = inferExp(env, e.exp(0));
-                TypedExp typedExpRhs = inferExp(env, e.exp(1));
                 if (!(typedExpLhs.type() == CType.BOOL &&
                         typedExpRhs.type() == CType.BOOL)) {
 
@@ -516,30 +692,12 @@ public class TypeChecker {
             }
 
             case cmmParser.OrExpContext e -> {
-                TypedExp typedExp1 = inferExp(env, e.exp(0));
-                TypedExp typedExp2 = inferExp(env, e.exp(1));
-                if (!(typedExp1.type() == CType.BOOL &&
-                        typedExp2.type() == CType.BOOL)) {
+                if (!(typedExpLhs.type() == CType.BOOL &&
+                        typedExpRhs.type() == CType.BOOL)) {
                     throw new TypeException("|| operation can only occur "
                             + "between booleans");
                 }
-                yield new TypedExp.Or(typedExp1, typedExp2);
-            }
-
-            case cmmParser.AssignExpContext e -> {
-                String varName = e.Ident().getText();
-                CType variableType = env.lookupVar(varName);
-                TypedExp typedExp = inferExp(env, e.exp());
-                if (!isConvertible(variableType, typedExp.type())) {
-                    throw new TypeException("Illegal implicit conversion in "
-                            + "assignment. Expected " + variableType
-                            + ", but got " + typedExp.type() + " instead.");
-                }
-
-                yield new TypedExp.Assign(
-                        varName,
-                        promoteExp(typedExp, variableType),
-                        variableType);
+                yield new TypedExp.Or(typedExpLhs, typedExpRhs);
             }
 
             default -> throw new IllegalStateException("Case for " + exp
@@ -593,34 +751,72 @@ public class TypeChecker {
         }
     }
 
+    public TypeCheckerEnvironment.Signature signature(
+            cmmParser.DefContext func) {
+
+        CType type = toCType(func.type());
+        LinkedHashMap<String, CType> parameters = new LinkedHashMap<>();
+
+        for (var param : func.arg()) {
+            String paramName = param.Ident().getText();
+            CType paramType = toCType(param.type());
+
+            if (parameters.containsKey(paramName)) {
+                throw new TypeException(
+                        "Duplicate function parameter names not allowed");
+            }
+            if (paramType == CType.VOID) {
+                throw new TypeException(
+                        "Variable can not be of type void.");
+            }
+            parameters.put(paramName, paramType);
+        }
+
+        return new TypeCheckerEnvironment.Signature(type, parameters);
+    }
+
     private void functionPass(
             TypeCheckerEnvironment env,
             List<cmmParser.DefContext> funcDefs) {
 
         for (cmmParser.DefContext func : funcDefs) {
+            env.extendFunc(func.Ident().getText(), signature(func));
+        }
+    }
 
-            String name = func.Ident().getText();
-            CType type = toCType(func.type());
-            LinkedHashMap<String, CType> parameters = new LinkedHashMap<>();
+    // checks the body of a function whose signature is already in the
+    // environment
+    public TypedDef.Func checkFunc(TypeCheckerEnvironment env,
+            cmmParser.DefContext func) {
 
-            for (var param : func.arg()) {
-                String paramName = param.Ident().getText();
-                CType paramType = toCType(param.type());
+        String funcName = func.Ident().getText();
+        CType type = toCType(func.type());
+        LinkedHashMap<String, CType> params = new LinkedHashMap<>();
 
-                if (parameters.containsKey(paramName)) {
-                    throw new TypeException(
-                            "Duplicate function parameter names not allowed");
-                }
-                if (paramType == CType.VOID) {
-                    throw new TypeException(
-                            "Variable can not be of type void.");
-                }
-                parameters.put(paramName, paramType);
-            }
+        // set the current function being processed
+        env.setCurrentFunc(funcName);
+        // create a new context for that function
+        env.newContextCurrentFunc();
+
+        for (var param : func.arg()) {
+            params.put(param.Ident().getText(), toCType(param.type()));
+        }
+        TypeCheckerEnvironment.Signature sign = new TypeCheckerEnvironment.Signature(type, params);
 
-            TypeCheckerEnvironment.Signature signature = new TypeCheckerEnvironment.Signature(type, parameters);
-            env.extendFunc(name, signature);
+        // loop over all statements in current function
+        LinkedList<TypedStm> typedStmList = new LinkedList<>();
+        for (var stm : func.stm()) {
+            typedStmList.add(checkStm(env, stm));
         }
+
+        // construct argument list
+        LinkedList<TypedArg> typedArgList = new LinkedList<>();
+        for (String key : sign.parameters().keySet()) {
+            typedArgList.add(new TypedArg.Decl(params.get(key), key));
+        }
+
+        return new TypedDef.Func(sign.returns(),
+                typedArgList, typedStmList, funcName);
     }
 
     private TypedProgram stmPass(TypeCheckerEnvironment env,
@@ -629,43 +825,14 @@ public class TypeChecker {
         LinkedList<TypedDef> typedDefList = new LinkedList<>();
 
         for (cmmParser.DefContext func : funcDefs) {
-
-            String funcName = func.Ident().getText();
-            CType type = toCType(func.type());
-            LinkedHashMap<String, CType> params = new LinkedHashMap<>();
-
-            // set the current function being processed
-            env.setCurrentFunc(funcName);
-            // create a new context for that function
-            env.newContextCurrentFunc();
-
-            for (var param : func.arg()) {
-                params.put(param.Ident().getText(), toCType(param.type()));
-            }
-            TypeCheckerEnvironment.Signature sign = new TypeCheckerEnvironment.Signature(type, params);
-
-            // loop over all statements in current function
-            LinkedList<TypedStm> typedStmList = new LinkedList<>();
-            for (var stm : func.stm()) {
-                typedStmList.add(checkStm(env, stm));
-            }
-
-            // construct argument list
-            LinkedList<TypedArg> typedArgList = new LinkedList<>();
-            for (String key : sign.parameters().keySet()) {
-                typedArgList.add(new TypedArg.Decl(params.get(key), key));
-            }
-
-            typedDefList.add(new TypedDef.Func(sign.returns(),
-                    typedArgList, typedStmList, funcName));
-
+            typedDefList.add(checkFunc(env, func));
             env.clearContexts();
         }
         return new TypedProgram(typedDefList);
     }
 
-    public TypedProgram typecheck(cmmParser.ProgramContext program) {
-
+    // the environment every program starts from, which knows the builtins
+    public TypeCheckerEnvironment initialEnvironment() {
         TypeCheckerEnvironment environment = new TypeCheckerEnvironment();
         environment.newContext();
 
@@ -673,6 +840,70 @@ public class TypeChecker {
         environment.addSimpleFunction("printDouble", CType.VOID, CType.DOUBLE);
         environment.addSimpleFunction("readInt", CType.INT, null);
         environment.addSimpleFunction("readDouble", CType.DOUBLE, null);
+        return environment;
+    }
+
+    //// checking the inputs of a repl one at a time. the session is an
+    //// environment that keeps the signatures of the functions defined so far
+    //// and one context with the variables declared at the top level
+
+    // a function may be defined again with the same signature, since the
+    // code compiled against the old definition keeps calling it. the
+    // session only learns the signature once the body checks
+    public TypedDef.Func checkSessionFunc(TypeCheckerEnvironment session,
+            cmmParser.DefContext func) {
+
+        String name = func.Ident().getText();
+        TypeCheckerEnvironment.Signature signature = signature(func);
+        TypeCheckerEnvironment.Signature previous = session.signs.get(name);
+        if (previous != null && BUILTINS.contains(name)) {
+            throw new TypeException("Function " + name + " is built in.");
+        }
+        if (name.equals("main")) {
+            throw new TypeException("The statements of 'main' are entered "
+                    + "at the top level instead.");
+        }
+        if (previous != null && (previous.returns() != signature.returns()
+                || !List.copyOf(previous.parameters().values()).equals(
+                        List.copyOf(signature.parameters().values())))) {
+            throw new TypeException("Function " + name
+                    + " is already defined with another signature.");
+        }
+
+        TypeCheckerEnvironment env = new TypeCheckerEnvironment();
+        env.signs = new LinkedHashMap<>(session.signs);
+        env.signs.put(name, signature);
+        TypedDef.Func typedFunc = checkFunc(env, func);
+
+        session.signs.put(name, signature);
+        return typedFunc;
+    }
+
+    // statements see the variables declared by the ones entered before them.
+    // when one of them does not check, none of their variables are kept
+    public LinkedList<TypedStm> checkSessionStms(
+            TypeCheckerEnvironment session,
+            List<cmmParser.StmContext> stms) {
+
+        LinkedHashMap<String, CType> variables = new LinkedHashMap<>(
+                session.contexts.peek());
+        session.setCurrentFunc(null);
+        try {
+            LinkedList<TypedStm> typedStmList = new LinkedList<>();
+            for (var stm : stms) {
+                typedStmList.add(checkStm(session, stm));
+            }
+            return typedStmList;
+        } catch (RuntimeException e) {
+            session.clearContexts();
+            session.contexts.push(variables);
+            throw e;
+        }
+    }
+
+    public TypedProgram typecheck(cmmParser.ProgramContext program) {
+
+        TypeCheckerEnvironment environment = initialEnvironment();
 
         List<cmmParser.DefContext> functionDefinitions = program.def();
 
@@ -0,0 +1,79 @@
+package ssa;
+
+import java.util.LinkedList;
+import java.util.List;
+
+// a straight line of instructions that is only entered at the top and only
+// left through its terminator. phis come before all other instructions
+public class BasicBlock {
+
+    private Integer id;
+    private LinkedList<SsaInstr.Phi> phis = new LinkedList<>();
+    private LinkedList<SsaInstr> instrs = new LinkedList<>();
+    private Terminator terminator;
+    private LinkedList<BasicBlock> predecessors = new LinkedList<>();
+
+    public BasicBlock(Integer id) {
+        this.id = id;
+    }
+
+    public Integer id() {
+        return id;
+    }
+
+    public LinkedList<SsaInstr.Phi> phis() {
+        return phis;
+    }
+
+    public LinkedList<SsaInstr> instrs() {
+        return instrs;
+    }
+
+    public Terminator terminator() {
+        return terminator;
+    }
+
+    public LinkedList<BasicBlock> predecessors() {
+        return predecessors;
+    }
+
+    public List<BasicBlock> successors() {
+        return terminator == null ? List.of() : terminator.successors();
+    }
+
+    public boolean isTerminated() {
+        return terminator != null;
+    }
+
+    public void add(SsaInstr instr) {
+        instrs.add(instr);
+    }
+
+    public void addPhi(SsaInstr.Phi phi) {
+        phis.add(phi);
+    }
+
+    // ends the block and adds it as a predecessor of every block it can
+    // continue in
+    public void terminate(Terminator terminator) {
+        if (this.terminator != null) {
+            throw new IllegalStateException("Block " + this
+                    + " is already terminated.");
+        }
+        this.terminator = terminator;
+        for (BasicBlock successor : terminator.successors()) {
+            successor.predecessors.add(this);
+        }
+    }
+
+    // replaces the terminator without touching the predecessor lists, for
+    // rewrites that keep the edges as they are or fix them up themselves
+    public void setTerminator(Terminator terminator) {
+        this.terminator = terminator;
+    }
+
+    @Override
+    public String toString() {
+        return "b" + id;
+    }
+}
@@ -0,0 +1,173 @@
+package ssa;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import typed_tree.*;
+
+// a function as a control flow graph of basic blocks in ssa form. the first
+// block is the entry
+public class SsaFunction {
+
+    private String name;
+    private List<CType> parameterTypes;
+    private CType returns;
+    private ArrayList<BasicBlock> blocks = new ArrayList<>();
+    private Integer nextValue = 0;
+    private Integer nextBlock = 0;
+
+    public SsaFunction(String name, List<CType> parameterTypes, CType returns) {
+        this.name = name;
+        this.parameterTypes = parameterTypes;
+        this.returns = returns;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public List<CType> parameterTypes() {
+        return parameterTypes;
+    }
+
+    public CType returns() {
+        return returns;
+    }
+
+    public List<BasicBlock> blocks() {
+        return blocks;
+    }
+
+    public BasicBlock entry() {
+        return blocks.get(0);
+    }
+
+    public BasicBlock newBlock() {
+        BasicBlock block = new BasicBlock(nextBlock++);
+        blocks.add(block);
+        return block;
+    }
+
+    public SsaValue newValue(CType type) {
+        return new SsaValue(nextValue++, type);
+    }
+
+    // the blocks reachable from the entry, each one before its successors
+    // apart from loop back edges
+    public List<BasicBlock> reversePostorder() {
+        LinkedList<BasicBlock> order = new LinkedList<>();
+        HashSet<BasicBlock> visited = new HashSet<>();
+        ArrayDeque<BasicBlock> stack = new ArrayDeque<>();
+        ArrayDeque<Integer> nextSuccessor = new ArrayDeque<>();
+        visited.add(entry());
+        stack.push(entry());
+        nextSuccessor.push(0);
+
+        while (!stack.isEmpty()) {
+            BasicBlock block = stack.peek();
+            int index = nextSuccessor.pop();
+            if (index < block.successors().size()) {
+                nextSuccessor.push(index + 1);
+                BasicBlock successor = block.successors().get(index);
+                if (visited.add(successor)) {
+                    stack.push(successor);
+                    nextSuccessor.push(0);
+                }
+            } else {
+                stack.pop();
+                order.addFirst(block);
+            }
+        }
+        return order;
+    }
+
+    // drops blocks that can not be reached from the entry, along with the
+    // phi operands and predecessor entries that came from them
+    public void removeUnreachableBlocks() {
+        HashSet<BasicBlock> reachable = new HashSet<>(reversePostorder());
+        blocks.removeIf(block -> !reachable.contains(block));
+        for (BasicBlock block : blocks) {
+            block.predecessors().removeIf(pred -> !reachable.contains(pred));
+            for (SsaInstr.Phi phi : block.phis()) {
+                phi.incoming().keySet().removeIf(
+                        pred -> !reachable.contains(pred));
+            }
+        }
+    }
+
+    // puts an empty block on every edge from a block with several successors
+    // to a block with several predecessors. code that has to run on exactly
+    // one edge, such as the copies for phis, then has a block of its own
+    public void splitCriticalEdges() {
+        for (BasicBlock block : new ArrayList<>(blocks)) {
+            if (block.successors().size() < 2) {
+                continue;
+            }
+            for (BasicBlock successor
+                    : new LinkedHashSet<>(block.successors())) {
+                if (successor.predecessors().size() < 2) {
+                    continue;
+                }
+                BasicBlock split = newBlock();
+                block.setTerminator(
+                        block.terminator().withSuccessor(successor, split));
+                split.predecessors().add(block);
+                split.setTerminator(new Terminator.Jump(successor));
+                successor.predecessors().set(
+                        successor.predecessors().indexOf(block), split);
+                for (SsaInstr.Phi phi : successor.phis()) {
+                    replaceIncoming(phi, block, split);
+                }
+            }
+        }
+    }
+
+    // replaces every use of a key of the map by its value, following chains
+    // of replacements
+    public void replaceValues(Map<SsaValue, SsaValue> replacements) {
+        HashMap<SsaValue, SsaValue> resolved = new HashMap<>();
+        for (SsaValue value : replacements.keySet()) {
+            SsaValue target = value;
+            while (replacements.containsKey(target)) {
+                target = replacements.get(target);
+            }
+            resolved.put(value, target);
+        }
+
+        for (BasicBlock block : blocks) {
+            LinkedList<SsaInstr.Phi> phis = new LinkedList<>();
+            for (SsaInstr.Phi phi : block.phis()) {
+                phis.add((SsaInstr.Phi) phi.withOperands(
+                        value -> resolved.getOrDefault(value, value)));
+            }
+            block.phis().clear();
+            block.phis().addAll(phis);
+
+            block.instrs().replaceAll(instr -> instr.withOperands(
+                    value -> resolved.getOrDefault(value, value)));
+
+            if (block.terminator() != null) {
+                block.setTerminator(block.terminator().withOperands(
+                        value -> resolved.getOrDefault(value, value)));
+            }
+        }
+    }
+
+    private void replaceIncoming(SsaInstr.Phi phi, BasicBlock from,
+            BasicBlock to) {
+        // keep the order of the operands
+        var entries = new LinkedHashMap<>(phi.incoming()).entrySet();
+        phi.incoming().clear();
+        for (var entry : entries) {
+            phi.incoming().put(entry.getKey() == from ? to : entry.getKey(),
+                    entry.getValue());
+        }
+    }
+}
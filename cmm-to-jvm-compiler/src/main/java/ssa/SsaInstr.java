@@ -0,0 +1,150 @@
+package ssa;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+import typed_tree.*;
+
+// instructions inside a basic block. every instruction defines at most one
+// value from the values it uses
+public interface SsaInstr {
+
+    // the value defined by the instruction, or null for a call of a void
+    // function
+    SsaValue result();
+
+    List<SsaValue> operands();
+
+    // the same instruction with every operand passed through replace
+    SsaInstr withOperands(UnaryOperator<SsaValue> replace);
+
+    // whether the instruction may be removed when its result is unused.
+    // calls may have side effects and integer division may throw
+    default boolean isPure() {
+        return true;
+    }
+
+    record Const(SsaValue result, Object value) implements SsaInstr {
+
+        public List<SsaValue> operands() {
+            return List.of();
+        }
+
+        public SsaInstr withOperands(UnaryOperator<SsaValue> replace) {
+            return this;
+        }
+    }
+
+    // the argument at the given position of the function
+    record Param(SsaValue result, Integer index) implements SsaInstr {
+
+        public List<SsaValue> operands() {
+            return List.of();
+        }
+
+        public SsaInstr withOperands(UnaryOperator<SsaValue> replace) {
+            return this;
+        }
+    }
+
+    // ADD, SUB, MUL or DIV of two values of the type of the result
+    record Binary(
+            SsaValue result,
+            Operator operator,
+            SsaValue left,
+            SsaValue right)
+            implements SsaInstr {
+
+        public List<SsaValue> operands() {
+            return List.of(left, right);
+        }
+
+        public SsaInstr withOperands(UnaryOperator<SsaValue> replace) {
+            return new Binary(result, operator, replace.apply(left),
+                    replace.apply(right));
+        }
+
+        @Override
+        public boolean isPure() {
+            return !(operator == Operator.DIV && result.type() == CType.INT);
+        }
+    }
+
+    // comparison of two values of the same type, giving a bool
+    record Cmp(
+            SsaValue result,
+            Operator operator,
+            SsaValue left,
+            SsaValue right)
+            implements SsaInstr {
+
+        public List<SsaValue> operands() {
+            return List.of(left, right);
+        }
+
+        public SsaInstr withOperands(UnaryOperator<SsaValue> replace) {
+            return new Cmp(result, operator, replace.apply(left),
+                    replace.apply(right));
+        }
+    }
+
+    record I2d(SsaValue result, SsaValue operand) implements SsaInstr {
+
+        public List<SsaValue> operands() {
+            return List.of(operand);
+        }
+
+        public SsaInstr withOperands(UnaryOperator<SsaValue> replace) {
+            return new I2d(result, replace.apply(operand));
+        }
+    }
+
+    record Call(
+            SsaValue result,
+            String name,
+            LinkedList<SsaValue> arguments,
+            CType returns)
+            implements SsaInstr {
+
+        public List<SsaValue> operands() {
+            return arguments;
+        }
+
+        public SsaInstr withOperands(UnaryOperator<SsaValue> replace) {
+            LinkedList<SsaValue> replaced = new LinkedList<>();
+            for (SsaValue argument : arguments) {
+                replaced.add(replace.apply(argument));
+            }
+            return new Call(result, name, replaced, returns);
+        }
+
+        @Override
+        public boolean isPure() {
+            return false;
+        }
+    }
+
+    // the value coming in from each predecessor of the block. phis are
+    // only found at the start of a block, and are filled in while the block
+    // is built, so the incoming map is mutable
+    record Phi(
+            SsaValue result,
+            LinkedHashMap<BasicBlock, SsaValue> incoming)
+            implements SsaInstr {
+
+        public List<SsaValue> operands() {
+            return new LinkedList<>(incoming.values());
+        }
+
+        public SsaInstr withOperands(UnaryOperator<SsaValue> replace) {
+            LinkedHashMap<BasicBlock, SsaValue> replaced =
+                    new LinkedHashMap<>();
+            for (var entry : incoming.entrySet()) {
+                replaced.put(entry.getKey(), replace.apply(entry.getValue()));
+            }
+            return new Phi(result, replaced);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package ssa;
+
+import java.util.LinkedList;
+import java.util.stream.Collectors;
+
+import typed_tree.*;
+
+// textual dump of a function, one instruction per line, for debugging the
+// ssa form
+public class SsaPrinter {
+
+    public String print(SsaFunction function) {
+        StringBuilder out = new StringBuilder();
+        LinkedList<String> parameters = new LinkedList<>();
+        for (CType type : function.parameterTypes()) {
+            parameters.add(typeName(type));
+        }
+        out.append("function " + function.name() + "("
+                + String.join(", ", parameters) + ") -> "
+                + typeName(function.returns()) + "\n");
+
+        for (BasicBlock block : function.blocks()) {
+            out.append(block + ":");
+            if (!block.predecessors().isEmpty()) {
+                out.append(" ; preds " + block.predecessors().stream()
+                        .map(BasicBlock::toString)
+                        .collect(Collectors.joining(", ")));
+            }
+            out.append("\n");
+            for (SsaInstr.Phi phi : block.phis()) {
+                out.append("    " + print(phi) + "\n");
+            }
+            for (SsaInstr instr : block.instrs()) {
+                out.append("    " + print(instr) + "\n");
+            }
+            out.append("    " + (block.terminator() == null
+                    ? "<unterminated>"
+                    : print(block.terminator())) + "\n");
+        }
+        return out.toString();
+    }
+
+    public String print(SsaInstr instr) {
+        String definition = instr.result() == null
+                ? ""
+                : instr.result() + " = ";
+        String type = instr.result() == null
+                ? ""
+                : " " + typeName(instr.result().type());
+        return definition + switch (instr) {
+            case SsaInstr.Const i -> "const" + type + " " + i.value();
+
+            case SsaInstr.Param i -> "param" + type + " " + i.index();
+
+            case SsaInstr.Binary i -> i.operator().name().toLowerCase() + type
+                    + " " + i.left() + ", " + i.right();
+
+            case SsaInstr.Cmp i -> "cmp " + i.operator().name().toLowerCase()
+                    + " " + i.left() + ", " + i.right();
+
+            case SsaInstr.I2d i -> "i2d " + i.operand();
+
+            case SsaInstr.Call i -> "call" + type + " " + i.name() + "("
+                    + i.arguments().stream()
+                            .map(SsaValue::toString)
+                            .collect(Collectors.joining(", "))
+                    + ")";
+
+            case SsaInstr.Phi i -> "phi" + type + " "
+                    + i.incoming().entrySet().stream()
+                            .map(entry -> "[" + entry.getKey() + ": "
+                                    + entry.getValue() + "]")
+                            .collect(Collectors.joining(", "));
+
+            default -> throw new IllegalArgumentException(
+                    "Unknown instruction " + instr);
+        };
+    }
+
+    public String print(Terminator terminator) {
+        return switch (terminator) {
+            case Terminator.Jump t -> "jump " + t.target();
+
+            case Terminator.Branch t -> "branch " + t.condition() + ", "
+                    + t.ifTrue() + ", " + t.ifFalse();
+
+            case Terminator.Return t -> t.value() == null
+                    ? "return"
+                    : "return " + t.value();
+
+            default -> throw new IllegalArgumentException(
+                    "Unknown terminator " + terminator);
+        };
+    }
+
+    private String typeName(CType type) {
+        return type.name().toLowerCase();
+    }
+}
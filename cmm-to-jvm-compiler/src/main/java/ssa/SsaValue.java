@@ -0,0 +1,13 @@
+package ssa;
+
+import typed_tree.*;
+
+// a value in static single assignment form. it is defined by exactly one
+// instruction or phi, and never changes afterwards
+public record SsaValue(Integer id, CType type) {
+
+    @Override
+    public String toString() {
+        return "%" + id;
+    }
+}
@@ -0,0 +1,269 @@
+package ssa;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+import typed_tree.*;
+
+// checks that a function is well formed ssa: every block ends in a
+// terminator whose edges agree with the predecessor lists, every value is
+// defined once and before all of its uses, phis have one operand per
+// predecessor and the types of the operands fit their instructions
+public class SsaVerifier {
+
+    private SsaFunction function;
+    private LinkedList<String> errors = new LinkedList<>();
+
+    // block and position of the definition of every value. phis are at
+    // position -1, before all instructions of their block
+    private HashMap<SsaValue, BasicBlock> definedIn = new HashMap<>();
+    private HashMap<SsaValue, Integer> definedAt = new HashMap<>();
+    private HashMap<BasicBlock, BasicBlock> immediateDominators;
+
+    public SsaVerifier(SsaFunction function) {
+        this.function = function;
+    }
+
+    // all problems found, empty if the function is well formed
+    public List<String> errors() {
+        errors.clear();
+        checkEdges();
+        checkDefinitions();
+        if (errors.isEmpty()) {
+            immediateDominators = dominators();
+            checkUses();
+        }
+        return errors;
+    }
+
+    public void verify() {
+        List<String> found = errors();
+        if (!found.isEmpty()) {
+            throw new IllegalStateException("Malformed ssa in function "
+                    + function.name() + ": " + String.join("; ", found));
+        }
+    }
+
+    private void checkEdges() {
+        HashSet<BasicBlock> blocks = new HashSet<>(function.blocks());
+        HashSet<BasicBlock> reachable =
+                new HashSet<>(function.reversePostorder());
+        for (BasicBlock block : function.blocks()) {
+            if (!block.isTerminated()) {
+                error(block, "has no terminator");
+                continue;
+            }
+            if (!reachable.contains(block)) {
+                error(block, "can not be reached from the entry");
+            }
+            for (BasicBlock successor : block.successors()) {
+                if (!blocks.contains(successor)) {
+                    error(block, "jumps to " + successor
+                            + " outside the function");
+                } else if (!successor.predecessors().contains(block)) {
+                    error(block, "is missing from the predecessors of "
+                            + successor);
+                }
+            }
+            for (BasicBlock predecessor : block.predecessors()) {
+                if (!predecessor.successors().contains(block)) {
+                    error(block, "lists " + predecessor
+                            + " as predecessor without an edge from it");
+                }
+            }
+            for (SsaInstr.Phi phi : block.phis()) {
+                if (!new HashSet<>(block.predecessors())
+                        .equals(phi.incoming().keySet())) {
+                    error(block, "phi " + phi.result() + " has operands for "
+                            + phi.incoming().keySet()
+                            + " but the predecessors are "
+                            + block.predecessors());
+                }
+            }
+        }
+        if (!function.blocks().isEmpty()
+                && !function.entry().predecessors().isEmpty()) {
+            error(function.entry(), "is the entry but has predecessors");
+        }
+    }
+
+    private void checkDefinitions() {
+        for (BasicBlock block : function.blocks()) {
+            for (SsaInstr.Phi phi : block.phis()) {
+                define(phi.result(), block, -1);
+            }
+            int position = 0;
+            for (SsaInstr instr : block.instrs()) {
+                if (instr instanceof SsaInstr.Phi) {
+                    error(block, "has a phi after other instructions");
+                }
+                if (instr.result() != null) {
+                    define(instr.result(), block, position);
+                }
+                ++position;
+            }
+        }
+    }
+
+    private void define(SsaValue value, BasicBlock block, int position) {
+        if (definedIn.containsKey(value)) {
+            error(block, value + " is defined more than once");
+        }
+        definedIn.put(value, block);
+        definedAt.put(value, position);
+    }
+
+    private void checkUses() {
+        for (BasicBlock block : function.blocks()) {
+            for (SsaInstr.Phi phi : block.phis()) {
+                for (var entry : phi.incoming().entrySet()) {
+                    // a phi operand is used at the end of its predecessor
+                    checkUse(entry.getValue(), entry.getKey(),
+                            Integer.MAX_VALUE);
+                    checkType(block, phi.result(), entry.getValue(),
+                            phi.result().type());
+                }
+            }
+            int position = 0;
+            for (SsaInstr instr : block.instrs()) {
+                for (SsaValue operand : instr.operands()) {
+                    checkUse(operand, block, position);
+                }
+                checkTypes(block, instr);
+                ++position;
+            }
+            for (SsaValue operand : block.terminator().operands()) {
+                checkUse(operand, block, Integer.MAX_VALUE);
+            }
+            checkTypes(block, block.terminator());
+        }
+    }
+
+    private void checkUse(SsaValue value, BasicBlock block, int position) {
+        BasicBlock definition = definedIn.get(value);
+        if (definition == null) {
+            error(block, value + " is used but never defined");
+        } else if (definition == block
+                ? definedAt.get(value) >= position
+                : !dominates(definition, block)) {
+            error(block, value + " is used where its definition in "
+                    + definition + " does not dominate");
+        }
+    }
+
+    private void checkTypes(BasicBlock block, SsaInstr instr) {
+        switch (instr) {
+            case SsaInstr.Binary i -> {
+                checkType(block, i.result(), i.left(), i.result().type());
+                checkType(block, i.result(), i.right(), i.result().type());
+            }
+
+            case SsaInstr.Cmp i -> {
+                checkType(block, i.result(), i.right(), i.left().type());
+                checkType(block, i.result(), i.result(), CType.BOOL);
+            }
+
+            case SsaInstr.I2d i -> {
+                checkType(block, i.result(), i.operand(), CType.INT);
+                checkType(block, i.result(), i.result(), CType.DOUBLE);
+            }
+
+            default -> {
+            }
+        }
+    }
+
+    private void checkTypes(BasicBlock block, Terminator terminator) {
+        switch (terminator) {
+            case Terminator.Branch t -> checkType(block, null, t.condition(),
+                    CType.BOOL);
+
+            case Terminator.Return t -> {
+                if (t.value() != null && function.returns() != CType.VOID) {
+                    checkType(block, null, t.value(), function.returns());
+                }
+            }
+
+            default -> {
+            }
+        }
+    }
+
+    private void checkType(BasicBlock block, SsaValue user, SsaValue value,
+            CType expected) {
+        if (value.type() != expected) {
+            error(block, value + " of type " + value.type() + " used as "
+                    + expected + (user == null ? "" : " by " + user));
+        }
+    }
+
+    // immediate dominators by the iterative algorithm of cooper, harvey and
+    // kennedy over the reverse postorder
+    private HashMap<BasicBlock, BasicBlock> dominators() {
+        List<BasicBlock> order = function.reversePostorder();
+        HashMap<BasicBlock, Integer> index = new HashMap<>();
+        for (BasicBlock block : order) {
+            index.put(block, index.size());
+        }
+
+        HashMap<BasicBlock, BasicBlock> idom = new HashMap<>();
+        idom.put(function.entry(), function.entry());
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BasicBlock block : order) {
+                if (block == function.entry()) {
+                    continue;
+                }
+                BasicBlock newIdom = null;
+                for (BasicBlock predecessor : block.predecessors()) {
+                    if (!idom.containsKey(predecessor)) {
+                        continue;
+                    }
+                    newIdom = newIdom == null
+                            ? predecessor
+                            : intersect(predecessor, newIdom, idom, index);
+                }
+                if (newIdom != null && idom.get(block) != newIdom) {
+                    idom.put(block, newIdom);
+                    changed = true;
+                }
+            }
+        }
+        return idom;
+    }
+
+    private BasicBlock intersect(BasicBlock a, BasicBlock b,
+            HashMap<BasicBlock, BasicBlock> idom,
+            HashMap<BasicBlock, Integer> index) {
+        while (a != b) {
+            while (index.get(a) > index.get(b)) {
+                a = idom.get(a);
+            }
+            while (index.get(b) > index.get(a)) {
+                b = idom.get(b);
+            }
+        }
+        return a;
+    }
+
+    private boolean dominates(BasicBlock dominator, BasicBlock block) {
+        BasicBlock current = block;
+        while (true) {
+            if (current == dominator) {
+                return true;
+            }
+            BasicBlock next = immediateDominators.get(current);
+            if (next == null || next == current) {
+                return false;
+            }
+            current = next;
+        }
+    }
+
+    private void error(BasicBlock block, String message) {
+        errors.add(block + " " + message);
+    }
+}
@@ -0,0 +1,84 @@
+package ssa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+// the last instruction of every basic block, the only place where control
+// leaves a block
+public interface Terminator {
+
+    List<SsaValue> operands();
+
+    List<BasicBlock> successors();
+
+    Terminator withOperands(UnaryOperator<SsaValue> replace);
+
+    // the same terminator with every edge to from going to to instead
+    Terminator withSuccessor(BasicBlock from, BasicBlock to);
+
+    record Jump(BasicBlock target) implements Terminator {
+
+        public List<SsaValue> operands() {
+            return List.of();
+        }
+
+        public List<BasicBlock> successors() {
+            return List.of(target);
+        }
+
+        public Terminator withOperands(UnaryOperator<SsaValue> replace) {
+            return this;
+        }
+
+        public Terminator withSuccessor(BasicBlock from, BasicBlock to) {
+            return new Jump(target == from ? to : target);
+        }
+    }
+
+    record Branch(SsaValue condition, BasicBlock ifTrue, BasicBlock ifFalse)
+            implements Terminator {
+
+        public List<SsaValue> operands() {
+            return List.of(condition);
+        }
+
+        public List<BasicBlock> successors() {
+            return List.of(ifTrue, ifFalse);
+        }
+
+        public Terminator withOperands(UnaryOperator<SsaValue> replace) {
+            return new Branch(replace.apply(condition), ifTrue, ifFalse);
+        }
+
+        public Terminator withSuccessor(BasicBlock from, BasicBlock to) {
+            return new Branch(condition,
+                    ifTrue == from ? to : ifTrue,
+                    ifFalse == from ? to : ifFalse);
+        }
+    }
+
+    // value is null when nothing is returned
+    record Return(SsaValue value) implements Terminator {
+
+        public List<SsaValue> operands() {
+            ArrayList<SsaValue> operands = new ArrayList<>();
+            if (value != null) {
+                operands.add(value);
+            }
+            return operands;
+        }
+
+        public List<BasicBlock> successors() {
+            return List.of();
+        }
+
+        public Terminator withOperands(UnaryOperator<SsaValue> replace) {
+            return new Return(value == null ? null : replace.apply(value));
+        }
+
+        public Terminator withSuccessor(BasicBlock from, BasicBlock to) {
+            return this;
+        }
+    }
+}
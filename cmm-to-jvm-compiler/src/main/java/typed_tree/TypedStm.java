@@ -2,25 +2,44 @@ package typed_tree;
 
 import java.util.LinkedList;
 
+// statements that compile to code of their own carry the source line they
+// start on, or 0 when they were made up by an optimization pass
 public interface TypedStm {
-    record Exp(CType type, TypedExp exp) implements TypedStm {
+    record Exp(CType type, TypedExp exp, int line) implements TypedStm {
+        public Exp(CType type, TypedExp exp) {
+            this(type, exp, 0);
+        }
     }
 
     record Decls(CType type, LinkedList<String> names) implements TypedStm {
     }
 
-    record Init(CType type, String name, TypedExp exp) implements TypedStm {
+    record Init(CType type, String name, TypedExp exp, int line)
+            implements TypedStm {
+        public Init(CType type, String name, TypedExp exp) {
+            this(type, name, exp, 0);
+        }
     }
 
-    record Return(TypedExp exp) implements TypedStm {
+    record Return(TypedExp exp, int line) implements TypedStm {
+        public Return(TypedExp exp) {
+            this(exp, 0);
+        }
     }
 
-    record While(TypedExp exp, TypedStm stm) implements TypedStm {
+    record While(TypedExp exp, TypedStm stm, int line) implements TypedStm {
+        public While(TypedExp exp, TypedStm stm) {
+            this(exp, stm, 0);
+        }
     }
 
     record Block(LinkedList<TypedStm> stms) implements TypedStm {
     }
 
-    record IfElse(TypedExp exp, TypedStm stm1, TypedStm stm2) implements TypedStm {
+    record IfElse(TypedExp exp, TypedStm stm1, TypedStm stm2, int line)
+            implements TypedStm {
+        public IfElse(TypedExp exp, TypedStm stm1, TypedStm stm2) {
+            this(exp, stm1, stm2, 0);
+        }
     }
 }
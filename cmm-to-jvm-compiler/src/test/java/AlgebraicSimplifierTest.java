@@ -0,0 +1,199 @@
+import org.junit.jupiter.api.Test;
+import typed_tree.*;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// every rule of the simplifier is run on a function f, which is then called
+// on every pair of some values. only f is simplified, so the values reach it
+// as they were written, and the program as written is the oracle
+class AlgebraicSimplifierTest {
+
+    private static final List<String> INTS = List.of("0", "1", "7",
+            "(0 - 3)", "2147483647", "(0 - 2147483647 - 1)");
+
+    // c-- has no negative literals, so -0.0, nan and the infinities are
+    // computed
+    private static final List<String> DOUBLES = List.of("0.0",
+            "(0.0 * (0.0 - 1.0))", "1.0", "(0.0 - 2.5)", "3.0", "(0.0 / 0.0)",
+            "(1.0 / 0.0)", "(0.0 - 1.0 / 0.0)", "4.9e-324",
+            "1.7976931348623157e308");
+
+    // values for which the fast math rules happen to give the exact result
+    private static final List<String> ORDINARY_DOUBLES = List.of("0.5",
+            "1.0", "3.0");
+
+    private static final List<String> BOOLS = List.of("true", "false");
+
+    private static String program(String argType, String resultType,
+            String body, List<String> values) {
+        StringBuilder source = new StringBuilder();
+        source.append(resultType).append(" f(").append(argType).append(" x, ")
+                .append(argType).append(" y) { return ").append(body)
+                .append("; }\nint main() {\n");
+        for (String x : values) {
+            for (String y : values) {
+                String call = "f(" + x + ", " + y + ")";
+                source.append(switch (resultType) {
+                    case "int" -> "printInt(" + call + ");\n";
+                    case "double" -> "printDouble(" + call + ");\n";
+                    default -> "if (" + call + ") printInt(1); "
+                            + "else printInt(0);\n";
+                });
+            }
+        }
+        return source.append("return 0;\n}\n").toString();
+    }
+
+    // simplifies f alone and checks both whether a rule rewrote it and that
+    // it still prints the same
+    private static void check(String argType, String resultType, String body,
+            List<String> values, boolean fastMath, boolean rewritten) {
+        TypedProgram program = TestPrograms.check(
+                program(argType, resultType, body, values));
+        AlgebraicSimplifier simplifier = new AlgebraicSimplifier(fastMath);
+        LinkedList<TypedDef> definitions = new LinkedList<>();
+        for (TypedDef def : program.defintions()) {
+            TypedDef.Func function = (TypedDef.Func) def;
+            definitions.add(function.funcName().equals("f")
+                    ? simplifier.simplifyFunc(function)
+                    : function);
+        }
+        TypedProgram simplified = new TypedProgram(definitions);
+
+        assertEquals(rewritten, !simplified.equals(program),
+                body + (fastMath ? " with fast math" : ""));
+        assertEquals(TestPrograms.interpret(program),
+                TestPrograms.interpret(simplified),
+                body + (fastMath ? " with fast math" : ""));
+    }
+
+    // rules that hold exactly apply the same with and without fast math
+    private static void checkExact(String type, String resultType,
+            String body, List<String> values, boolean rewritten) {
+        check(type, resultType, body, values, false, rewritten);
+        check(type, resultType, body, values, true, rewritten);
+    }
+
+    // fast math rules leave doubles alone unless asked, and are then only
+    // exact for ordinary values
+    private static void checkFastMath(String body, String resultType) {
+        check("double", resultType, body, DOUBLES, false, false);
+        check("double", resultType, body, ORDINARY_DOUBLES, true, true);
+    }
+
+    @Test
+    void literalToTheRight() {
+        checkExact("int", "int", "3 * x", INTS, true);
+        checkExact("int", "int", "3 + x", INTS, true);
+        checkExact("int", "bool", "3 == x", INTS, true);
+        checkExact("double", "double", "2.5 * x", DOUBLES, true);
+        checkExact("double", "double", "2.5 + x", DOUBLES, true);
+        checkExact("double", "bool", "2.5 != x", DOUBLES, true);
+        checkExact("int", "int", "3 - x", INTS, false);
+    }
+
+    @Test
+    void multiplyAndDivideByOne() {
+        checkExact("int", "int", "x * 1", INTS, true);
+        checkExact("int", "int", "x / 1", INTS, true);
+        checkExact("double", "double", "x * 1.0", DOUBLES, true);
+        checkExact("double", "double", "x / 1.0", DOUBLES, true);
+    }
+
+    @Test
+    void multiplyByZero() {
+        checkExact("int", "int", "x * 0", INTS, true);
+        checkExact("int", "int", "x++ * 0", INTS, false);
+        checkFastMath("x * 0.0", "double");
+    }
+
+    @Test
+    void divideByPowerOfTwo() {
+        checkExact("double", "double", "x / 2.0", DOUBLES, true);
+        checkExact("double", "double", "x / 0.25", DOUBLES, true);
+        // 2^1022 and 2^-1022, whose inverses are normal
+        checkExact("double", "double", "x / 4.49423283715579e307", DOUBLES,
+                true);
+        checkExact("double", "double", "x / 2.2250738585072014e-308",
+                DOUBLES, true);
+        // the inverse of 2^1023 is subnormal, and that of the smallest
+        // double overflows
+        check("double", "double", "x / 8.98846567431158e307", DOUBLES, false,
+                false);
+        check("double", "double", "x / 4.9e-324", DOUBLES, false, false);
+    }
+
+    @Test
+    void divideByConstant() {
+        checkFastMath("x / 3.0", "double");
+        check("double", "double", "x / 0.0", DOUBLES, true, false);
+    }
+
+    @Test
+    void reassociateProduct() {
+        checkExact("int", "int", "(x * 65536) * 65536", INTS, true);
+        checkFastMath("(x * 3.0) * 5.0", "double");
+    }
+
+    @Test
+    void addZero() {
+        checkExact("int", "int", "x + 0", INTS, true);
+        checkExact("int", "int", "x - 0", INTS, true);
+        checkFastMath("x + 0.0", "double");
+    }
+
+    // -0.0 + 0.0 is 0.0, while -0.0 - 0.0 stays -0.0
+    @Test
+    void addExactZero() {
+        checkExact("double", "double", "x - 0.0", DOUBLES, true);
+        check("double", "double", "x + 0.0", DOUBLES, false, false);
+        assertEquals("0.0\n-0.0\n", TestPrograms.interpret("""
+                int main() {
+                    double z = 0.0 * (0.0 - 1.0);
+                    printDouble(z + 0.0);
+                    printDouble(z - 0.0);
+                    return 0;
+                }
+                """));
+    }
+
+    @Test
+    void reassociateSum() {
+        checkExact("int", "int", "(x + 2147483647) + 1", INTS, true);
+        checkExact("int", "int", "(x - 3) + 5", INTS, true);
+        checkFastMath("(x + 0.5) - 0.25", "double");
+    }
+
+    @Test
+    void subtractSelf() {
+        checkExact("int", "int", "x - x", INTS, true);
+        checkExact("int", "int", "x - y", INTS, false);
+        checkFastMath("x - x", "double");
+    }
+
+    // nan is neither less than nor equal to itself
+    @Test
+    void compareSelf() {
+        for (String operator : List.of("<", ">", "<=", ">=", "==", "!=")) {
+            String body = "x " + operator + " x";
+            checkExact("int", "bool", body, INTS, true);
+            checkFastMath(body, "bool");
+        }
+        checkExact("bool", "bool", "x == x", BOOLS, true);
+        checkExact("bool", "bool", "x != x", BOOLS, true);
+    }
+
+    @Test
+    void compareWithTrueOrFalse() {
+        checkExact("bool", "bool", "x == true", BOOLS, true);
+        checkExact("bool", "bool", "x != false", BOOLS, true);
+        checkExact("bool", "bool", "x == false", BOOLS, false);
+        checkExact("int", "bool", "(x < y) == false", INTS, true);
+        checkExact("int", "bool", "(x >= y) != true", INTS, true);
+        checkFastMath("(x < y) == false", "bool");
+        checkFastMath("(x == y) != true", "bool");
+    }
+}
@@ -0,0 +1,23 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ConstantFolderTest {
+
+    @Test
+    void constantAssignedInLoopIsUnknownAfterIt() {
+        String source = """
+                int zero() { return 0; }
+                int main() {
+                    int x = 1;
+                    int n = zero();
+                    while (n > 0) { x = 5; n--; }
+                    printInt(x);
+                    return 0;
+                }
+                """;
+        assertEquals(TestPrograms.interpret(source),
+                TestPrograms.interpretOptimized(source, false));
+        assertEquals("1\n", TestPrograms.interpretOptimized(source, false));
+    }
+}
@@ -0,0 +1,127 @@
+import org.junit.jupiter.api.Test;
+import typed_tree.*;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// the frames are checked by the verifier of this jvm, which runs when a
+// function is loaded into a class of its own
+class FrameAnalysisTest {
+
+    private static void assertVerifies(String source) {
+        ReplLinker linker = new ReplLinker();
+        for (TypedDef def : TestPrograms.check(
+                source + "int main() { return 0; }").defintions()) {
+            TypedDef.Func function = (TypedDef.Func) def;
+            if (!function.funcName().equals("main")) {
+                assertDoesNotThrow(() -> linker.define(function),
+                        function.funcName());
+            }
+        }
+    }
+
+    // falling into the first label has a local the jump to the second one
+    // does not, so the one frame of the run may only keep the parameter
+    @Test
+    void labelRunGetsTheStateMergedOverTheRun() {
+        List<JVMInstr> body = List.of(
+                new JVMInstr.Load(CType.INT, 0),
+                new JVMInstr.Ifeq(2),
+                new JVMInstr.Push(CType.INT, 1),
+                new JVMInstr.Store(CType.INT, 1),
+                new JVMInstr.Label(1),
+                new JVMInstr.Label(2),
+                new JVMInstr.Load(CType.INT, 0),
+                new JVMInstr.Return(CType.INT));
+        List<JVMInstr.StackMapFrame> frames = new FrameAnalysis(body,
+                List.of(FrameAnalysis.INTEGER)).withFrames().stream()
+                .filter(instr -> instr instanceof JVMInstr.StackMapFrame)
+                .map(instr -> (JVMInstr.StackMapFrame) instr)
+                .toList();
+        assertEquals(List.of(new JVMInstr.StackMapFrame(1,
+                List.of(FrameAnalysis.INTEGER), List.of())), frames);
+    }
+
+    // the ends of nested branches are adjacent labels, reached with a local
+    // declared on some of the paths only
+    @Test
+    void adjacentLabelsGetTheMergedFrame() {
+        assertVerifies("""
+                int f(int a, int b) {
+                    if (a > 0) {
+                        if (b > 0) {
+                            int c = a + b;
+                            printInt(c);
+                        } else {
+                            double d = 1.5;
+                            printDouble(d);
+                        }
+                    } else {
+                        while (b > 0) {
+                            int e = b;
+                            if (e > 2) { b--; } else { b = b - 2; }
+                        }
+                    }
+                    return a;
+                }
+                """);
+    }
+
+    // where the loops end a line number sits between labels, which are
+    // still one offset and one frame
+    @Test
+    void branchIntoLabelRunUsesTheMergedState() {
+        assertVerifies("""
+                int f(int a, int b) {
+                    if (a > 5) {
+                        while (a > 5) {
+                            while (a > 5) {
+                                if (b > 4) { a = a - 1; int c = b; } else {}
+                                a = a - 1;
+                            }
+                            int d = a;
+                            a = a - 1;
+                        }
+                        b = b - 1;
+                    } else {}
+                    return a;
+                }
+                """);
+    }
+
+    @Test
+    void nestedLoopsEndingTogether() {
+        assertVerifies("""
+                void g(int n) {
+                    int i = 0;
+                    while (i < n) {
+                        int j = 0;
+                        while (j < i) {
+                            if (j == 3) { int k = j; printInt(k); } else {}
+                            j++;
+                        }
+                        i++;
+                    }
+                }
+                """);
+    }
+
+    // line numbers sit between the labels at one offset
+    @Test
+    void linesBetweenLabelsShareTheFrame() {
+        assertVerifies("""
+                int h(int a) {
+                    while (a > 0) {
+                        if (a > 5) {
+                            while (a > 5) { a--; }
+                        } else {
+                            a--;
+                        }
+                    }
+                    return a;
+                }
+                """);
+    }
+}
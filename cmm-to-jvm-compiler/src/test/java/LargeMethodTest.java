@@ -0,0 +1,40 @@
+import org.junit.jupiter.api.Test;
+import typed_tree.*;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// compiles one method of over 100k instructions. increments, comparisons
+// and assignments all ask the builder for the last value, which has to stay
+// cheap however long the method gets. the method is compiled on its own,
+// since the compiler would otherwise split it up first
+class LargeMethodTest {
+
+    private static final int STATEMENTS = 4_000;
+
+    private static TypedDef.Func largeMain() {
+        StringBuilder source = new StringBuilder(
+                "int main() {\nint x = 0;\nint y = 1;\ndouble z = 0.5;\n");
+        for (int i = 0; i < STATEMENTS; i++) {
+            source.append("x = y + ").append(i).append(";\n")
+                    .append("y++;\n")
+                    .append("z = z * 2.0 + x;\n")
+                    .append("if (x < y) x--; else ++y;\n");
+        }
+        source.append("printInt(x);\nprintDouble(z);\nreturn 0;\n}\n");
+        TypedProgram program = TestPrograms.check(source.toString());
+        return (TypedDef.Func) program.defintions().getFirst();
+    }
+
+    @Test
+    void largeMethodIsCompiled() {
+        TypedDef.Func main = largeMain();
+        Compiler.InstructionBuilder instructions =
+                assertTimeoutPreemptively(Duration.ofSeconds(30),
+                        () -> new Compiler(true).compileFunc(main, "Large"));
+        int size = instructions.instructions().size();
+        assertTrue(size > 100_000, size + " instructions");
+    }
+}
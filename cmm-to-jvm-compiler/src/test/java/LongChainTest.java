@@ -0,0 +1,121 @@
+import org.junit.jupiter.api.Test;
+import typed_tree.*;
+
+import java.time.Duration;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+// chains that can not be regrouped, like those of doubles, are as deep as
+// they are long. they are run on a thread of their own with the default
+// stack, and the time limits are far below what quadratic passes would take
+class LongChainTest {
+
+    private static final int TERMS = 1_000_000;
+
+    // x + x * 0.0 + x * 1.0 + ... + x * 6.0 + x * 0.0 + ..., left deep
+    private static TypedExp chain(int terms) {
+        TypedExp x = new TypedExp.Ident("x", CType.DOUBLE);
+        List<TypedExp> factors = new LinkedList<>();
+        for (int i = 0; i < 7; i++) {
+            factors.add(new TypedExp.DoubleLit((double) i));
+        }
+        TypedExp chain = x;
+        for (int i = 1; i < terms; i++) {
+            chain = new TypedExp.Add(chain, new TypedExp.Mul(x,
+                    factors.get(i % 7), CType.DOUBLE, Operator.MUL),
+                    CType.DOUBLE, Operator.ADD);
+        }
+        return chain;
+    }
+
+    private static TypedExp.Ident ident(String name, CType type) {
+        return new TypedExp.Ident(name, type);
+    }
+
+    private static TypedExp.Func call(String name, CType type,
+            TypedExp... args) {
+        return new TypedExp.Func(name, new LinkedList<>(List.of(args)), type);
+    }
+
+    // sums the chain n times in a loop, where it is invariant, and takes it
+    // once more after it, where it repeats the hoisted one. printing keeps
+    // the call from being evaluated while optimizing
+    private static TypedProgram program(int terms) {
+        TypedExp chain = chain(terms);
+        TypedExp.Ident y = ident("y", CType.DOUBLE);
+        TypedExp.Ident n = ident("n", CType.INT);
+        LinkedList<TypedStm> body = new LinkedList<>(List.of(
+                new TypedStm.Exp(CType.DOUBLE, new TypedExp.Assign("y",
+                        new TypedExp.Add(y, chain, CType.DOUBLE,
+                                Operator.ADD), CType.DOUBLE)),
+                new TypedStm.Exp(CType.INT, new TypedExp.Post("n", CType.INT,
+                        Operator.DEC))));
+        TypedDef.Func sum = new TypedDef.Func(CType.VOID,
+                new LinkedList<>(List.of(
+                        new TypedArg.Decl(CType.DOUBLE, "x"),
+                        new TypedArg.Decl(CType.INT, "n"))),
+                new LinkedList<>(List.of(
+                        new TypedStm.Init(CType.DOUBLE, "y",
+                                new TypedExp.DoubleLit(0.0)),
+                        new TypedStm.While(new TypedExp.Cmp(n,
+                                new TypedExp.IntLit(0), Operator.GTH),
+                                new TypedStm.Block(body)),
+                        new TypedStm.Exp(CType.VOID, call("printDouble",
+                                CType.VOID, new TypedExp.Add(y, chain,
+                                        CType.DOUBLE, Operator.SUB))))),
+                "sum");
+
+        TypedDef.Func main = new TypedDef.Func(CType.INT, new LinkedList<>(),
+                new LinkedList<>(List.of(
+                        new TypedStm.Exp(CType.VOID, call("sum", CType.VOID,
+                                new TypedExp.DoubleLit(1.5),
+                                new TypedExp.IntLit(3))),
+                        new TypedStm.Return(new TypedExp.IntLit(0)))),
+                "main");
+        return new TypedProgram(new LinkedList<>(List.of(sum, main)));
+    }
+
+    // what the chain sums to for x = 1.5, added up in the same order
+    private static double expected(int terms, int times) {
+        double chain = 1.5;
+        for (int i = 1; i < terms; i++) {
+            chain = chain + 1.5 * (i % 7);
+        }
+        double y = 0.0;
+        for (int i = 0; i < times; i++) {
+            y = y + chain;
+        }
+        return y - chain;
+    }
+
+    @Test
+    void millionTermChainIsOptimizedAndInterpreted() {
+        TypedProgram program = program(TERMS);
+        String printed = assertTimeoutPreemptively(Duration.ofSeconds(60),
+                () -> TestPrograms.interpret(
+                        new Optimizer().optimize(program)));
+        assertEquals(expected(TERMS, 3) + "\n", printed);
+    }
+
+    // the parser reads a chain in a loop, and the type checker walks its
+    // left spine with a stack of its own
+    @Test
+    void longChainIsParsedAndChecked() {
+        StringBuilder source = new StringBuilder(
+                "int main() { double x = 1.5; printDouble(x");
+        for (int i = 1; i < TERMS / 10; i++) {
+            source.append(" + x * ").append(i % 7).append(".0");
+        }
+        source.append("); return 0; }");
+        String printed = assertTimeoutPreemptively(Duration.ofSeconds(60),
+                () -> TestPrograms.interpret(source.toString()));
+        double expected = 1.5;
+        for (int i = 1; i < TERMS / 10; i++) {
+            expected = expected + 1.5 * (i % 7);
+        }
+        assertEquals(expected + "\n", printed);
+    }
+}
@@ -0,0 +1,70 @@
+import org.junit.jupiter.api.Test;
+import typed_tree.*;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// functions too large for the jit are split, and the split program has to
+// print the same and load into a class the verifier of this jvm accepts
+class MethodSplitterTest {
+
+    private static final int STATEMENTS = 4_000;
+
+    // a long run of statements, followed by the given end
+    private static String program(String signature, String end) {
+        StringBuilder source = new StringBuilder(signature)
+                .append(" {\nint x = 0;\ndouble y = 0.5;\n");
+        for (int i = 0; i < STATEMENTS; i++) {
+            source.append(i % 2 == 0
+                    ? "x = x + " + i + ";\n"
+                    : "y = y * 0.5 + x;\n");
+        }
+        return source.append("printInt(x);\nprintDouble(y);\n").append(end)
+                .append("}\n").toString();
+    }
+
+    private static void assertSplitsCorrectly(String source) {
+        TypedProgram program = TestPrograms.check(source);
+        TypedProgram split = new MethodSplitter().split(program);
+        assertTrue(split.defintions().size() > program.defintions().size());
+        assertEquals(TestPrograms.interpret(program),
+                TestPrograms.interpret(split));
+
+        ClassFileWriter writer = new ClassFileWriter("Split");
+        Compiler compiler = new Compiler(true);
+        for (TypedDef def : split.defintions()) {
+            writer.addMethod(compiler.compileFunc((TypedDef.Func) def,
+                    "Split").instructions());
+        }
+        byte[] bytes = writer.toByteArray();
+        var loader = new ClassLoader(
+                MethodSplitterTest.class.getClassLoader()) {
+            Class<?> define() {
+                return defineClass("Split", bytes, 0, bytes.length);
+            }
+        };
+        // linking the class verifies all of its methods
+        assertDoesNotThrow(() -> Class.forName("Split", true,
+                loader.define().getClassLoader()));
+    }
+
+    // the parts of main return a value even though main itself does not
+    @Test
+    void mainWithoutReturnIsSplit() {
+        assertSplitsCorrectly(program("int main()", ""));
+    }
+
+    @Test
+    void mainEndingInReturnIsSplit() {
+        assertSplitsCorrectly(program("int main()", "return 0;\n"));
+    }
+
+    // the return added to the last part is never reached
+    @Test
+    void functionEndingInBranchesThatReturnIsSplit() {
+        assertSplitsCorrectly(program("int f(int a)",
+                "if (a > 0) return x; else return a;\n")
+                + "int main() { printInt(f(1)); printInt(f(0)); return 0; }");
+    }
+}
@@ -0,0 +1,70 @@
+import org.junit.jupiter.api.Test;
+import typed_tree.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// pure calls with literal arguments are run while compiling, the program as
+// written is the oracle for what they print
+class PartialEvaluatorTest {
+
+    // recursive, so the inliner leaves the calls to the evaluator
+    private static final String FUNCTIONS = """
+            double inv(double x, int n) {
+                if (n == 0) return 1.0 / x;
+                return inv(x, n - 1);
+            }
+            double negz(double x, int n) {
+                double m = 0.0 - x;
+                if (n == 0) return m * 0.0;
+                return negz(x, n - 1);
+            }
+            double nan(double x, int n) {
+                if (n == 0) return x / x;
+                return nan(x, n - 1);
+            }
+            """;
+
+    private static String evaluated(String main) {
+        TypedProgram program = TestPrograms.check(FUNCTIONS + main);
+        TypedProgram evaluated = new PartialEvaluator().evaluate(program);
+        assertEquals(TestPrograms.interpret(program),
+                TestPrograms.interpret(evaluated));
+        return new Compiler().compile("Evaluated", evaluated);
+    }
+
+    @Test
+    void finiteResultBecomesALiteral() {
+        String jasmin = evaluated("""
+                int main() { printDouble(inv(2.0, 3)); return 0; }
+                """);
+        assertFalse(jasmin.contains("Evaluated/inv"), jasmin);
+    }
+
+    // jasmin has no literal for them
+    @Test
+    void infinityAndNanAreLeftToRuntime() {
+        String jasmin = evaluated("""
+                int main() {
+                    printDouble(inv(0.0, 3));
+                    printDouble(nan(0.0, 3));
+                    return 0;
+                }
+                """);
+        assertFalse(jasmin.contains("Infinity"), jasmin);
+        assertFalse(jasmin.contains("NaN"), jasmin);
+        assertTrue(jasmin.contains("Evaluated/inv"), jasmin);
+        assertTrue(jasmin.contains("Evaluated/nan"), jasmin);
+    }
+
+    // a literal -0.0 would be pushed as 0.0, so 1.0 divided by it would give
+    // Infinity instead of -Infinity
+    @Test
+    void negativeZeroIsLeftToRuntime() {
+        String jasmin = evaluated("""
+                int main() { printDouble(1.0 / negz(1.0, 3)); return 0; }
+                """);
+        assertTrue(jasmin.contains("Evaluated/negz"), jasmin);
+    }
+}
@@ -0,0 +1,148 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.InputMismatchException;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// compiled programs print and read through Runtime, the interpreter through
+// println and Scanner, and both have to agree. Runtime takes hold of
+// System.in and System.out when it is initialized, so every case loads a
+// fresh copy of it after setting them
+class RuntimeTest {
+
+    private static final List<Double> DOUBLES = List.of(0.0, -0.0, 1.0, -1.5,
+            0.1, 9999999.0, -9999999.0, 1e7, -1e7, 123456789.0,
+            (double) Integer.MIN_VALUE, (double) Integer.MAX_VALUE, Double.NaN,
+            Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+            Double.MIN_VALUE, Double.MIN_NORMAL, Double.MAX_VALUE);
+
+    private static final List<Integer> INTS = List.of(0, 7, -1, 1_000_000,
+            Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+    // a Runtime class of its own, reading the input and printing to printed
+    private static Class<?> freshRuntime(String input,
+            ByteArrayOutputStream printed) throws Exception {
+        URL classes = Runtime.class.getProtectionDomain().getCodeSource()
+                .getLocation();
+        ClassLoader loader = new URLClassLoader(new URL[] {classes},
+                ClassLoader.getPlatformClassLoader());
+        InputStream in = System.in;
+        PrintStream out = System.out;
+        System.setIn(new ByteArrayInputStream(
+                input.getBytes(StandardCharsets.UTF_8)));
+        System.setOut(new PrintStream(printed, true, StandardCharsets.UTF_8));
+        try {
+            return Class.forName("Runtime", true, loader);
+        } finally {
+            System.setIn(in);
+            System.setOut(out);
+        }
+    }
+
+    private static Object call(Class<?> runtime, String name,
+            Class<?> parameter, Object argument) throws Throwable {
+        try {
+            return parameter == null
+                    ? runtime.getMethod(name).invoke(null)
+                    : runtime.getMethod(name, parameter).invoke(null,
+                            argument);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Test
+    void printsLikePrintln() throws Throwable {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        PrintStream println = new PrintStream(expected, true,
+                StandardCharsets.UTF_8);
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        Class<?> runtime = freshRuntime("", printed);
+        for (int value : INTS) {
+            println.println(value);
+            call(runtime, "printInt", int.class, value);
+        }
+        for (double value : DOUBLES) {
+            println.println(value);
+            call(runtime, "printDouble", double.class, value);
+        }
+        call(runtime, "flush", null, null);
+        assertEquals(expected.toString(StandardCharsets.UTF_8),
+                printed.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void readsIntsLikeScanner() throws Throwable {
+        String input = "+3 -0 007\n2147483647\t-2147483648 \r\n 42";
+        Scanner scanner = new Scanner(input);
+        Class<?> runtime = freshRuntime(input, new ByteArrayOutputStream());
+        List<Integer> expected = new ArrayList<>();
+        List<Object> read = new ArrayList<>();
+        while (scanner.hasNext()) {
+            expected.add(scanner.nextInt());
+            read.add(call(runtime, "readInt", null, null));
+        }
+        assertEquals(expected, read);
+    }
+
+    // Double.equals tells -0.0 from 0.0 and takes nan to be itself
+    @Test
+    void readsDoublesLikeScanner() throws Throwable {
+        String input = "+3 .5 -0.0 0.0 1e7 1E-400 NaN Infinity -Infinity "
+                + "4.9E-324 1.7976931348623157E308 0.1 -2147483648 "
+                + "123456789012345678 3. 0.30000000000000004";
+        Scanner scanner = new Scanner(input);
+        Class<?> runtime = freshRuntime(input, new ByteArrayOutputStream());
+        List<Double> expected = new ArrayList<>();
+        List<Object> read = new ArrayList<>();
+        while (scanner.hasNext()) {
+            expected.add(scanner.nextDouble());
+            read.add(call(runtime, "readDouble", null, null));
+        }
+        assertEquals(expected, read);
+    }
+
+    @Test
+    void rejectsWhatScannerRejects() throws Exception {
+        for (String token : List.of("2147483648", "-2147483649", "3.0", "+",
+                "-", "1e3", "12a", ".5")) {
+            assertThrows(InputMismatchException.class,
+                    () -> new Scanner(token).nextInt(), token);
+            Class<?> runtime = freshRuntime(token,
+                    new ByteArrayOutputStream());
+            assertThrows(InputMismatchException.class,
+                    () -> call(runtime, "readInt", null, null), token);
+        }
+        for (String token : List.of("abc", "1.2.3", "--1", "1e", ".", "1d",
+                "2f", "0x10", "0x1p3")) {
+            assertThrows(InputMismatchException.class,
+                    () -> new Scanner(token).nextDouble(), token);
+            Class<?> runtime = freshRuntime(token,
+                    new ByteArrayOutputStream());
+            assertThrows(InputMismatchException.class,
+                    () -> call(runtime, "readDouble", null, null), token);
+        }
+    }
+
+    @Test
+    void endOfInputIsNoSuchElement() throws Exception {
+        Class<?> runtime = freshRuntime(" \n", new ByteArrayOutputStream());
+        assertThrows(NoSuchElementException.class,
+                () -> new Scanner(" \n").nextInt());
+        assertThrows(NoSuchElementException.class,
+                () -> call(runtime, "readInt", null, null));
+    }
+}
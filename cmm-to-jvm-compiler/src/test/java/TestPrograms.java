@@ -0,0 +1,43 @@
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import cmm_grammar.*;
+import typed_tree.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+// runs c-- source through the same steps Main does, for the tests
+final class TestPrograms {
+
+    private TestPrograms() {
+    }
+
+    static TypedProgram check(String source) {
+        cmmParser parser = new cmmParser(new CommonTokenStream(
+                new cmmLexer(CharStreams.fromString(source))));
+        return new TypeChecker().typecheck(parser.program());
+    }
+
+    // what the program prints when interpreted as written
+    static String interpret(String source) {
+        return interpret(check(source));
+    }
+
+    // what the program prints when interpreted after the optimizer ran
+    static String interpretOptimized(String source, boolean fastMath) {
+        return interpret(new Optimizer(fastMath).optimize(check(source)));
+    }
+
+    static String interpret(TypedProgram program) {
+        PrintStream out = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(printed, true, StandardCharsets.UTF_8));
+        try {
+            new Interpreter().interpret(program);
+        } finally {
+            System.setOut(out);
+        }
+        return printed.toString(StandardCharsets.UTF_8);
+    }
+}